@@ -0,0 +1,58 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcast latency with the fan-out done by the sender alone and split across worker threads.
+ * With enough cores the sharded runs should stay flat while the single threaded ones grow with the users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastFanOutBenchmark {
+
+    @Param({"1000", "20000"})
+    public int users;
+
+    @Param({"1", "4"})
+    public int fanOutThreads;
+
+    private Server server;
+
+    @Setup
+    public void setUp() {
+        server = new Server(0, new ServerConfig().setLogLevel(ServerLog.Level.OFF)
+                .setFanOutThreads(fanOutThreads));
+        for (int i = 0; i < users; i++) {
+            Connection c = new Connection(new InMemorySocket(), server);
+            server.addConnection(c);
+            c.handleLine("IDEN user" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutdown(0);
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        server.broadcastMessage("Broadcast from user0: hello everyone");
+    }
+}
@@ -0,0 +1,129 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing inbound lines with CommandDecoder against the String based parsing
+ * Connection used before, on a mix of 60% HAIL, 20% MESG, 10% LIST and 10% STAT.
+ * Both sides start from the bytes read from the socket and produce the strings the command needs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+
+    private static final int MIX_SIZE = 1000;
+
+    private byte[][] lines;
+    private CommandDecoder decoder;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        ArrayList<String> mix = new ArrayList<String>();
+        for (int i = 0; i < MIX_SIZE; i++) {
+            int kind = i % 10;
+            if (kind < 6) {
+                mix.add("HAIL message number " + i + " from a fairly chatty user " + random.nextInt(100));
+            } else if (kind < 8) {
+                mix.add("MESG user" + random.nextInt(100) + " are you there? " + i);
+            } else if (kind == 8) {
+                mix.add("LIST");
+            } else {
+                mix.add("STAT");
+            }
+        }
+        Collections.shuffle(mix, random);
+        lines = new byte[MIX_SIZE][];
+        for (int i = 0; i < MIX_SIZE; i++) {
+            lines[i] = (mix.get(i) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        decoder = new CommandDecoder();
+    }
+
+    @Benchmark
+    public void decoder(Blackhole blackhole) {
+        for (byte[] line : lines) {
+            CommandDecoder.Verb verb = decoder.decode(line, 0, line.length - 1);
+            switch (verb) {
+                case HAIL:
+                    blackhole.consume(decoder.argument());
+                    break;
+
+                case MESG:
+                    if (decoder.argumentHasSpace()) {
+                        blackhole.consume(decoder.firstWord());
+                        blackhole.consume(decoder.afterFirstWord());
+                    }
+                    break;
+
+                case IDEN:
+                    blackhole.consume(decoder.firstWord());
+                    break;
+
+                default:
+                    blackhole.consume(verb);
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public void stringParsing(Blackhole blackhole) {
+        for (byte[] line : lines) {
+            String message = new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+            if (message.length() < 4) {
+                blackhole.consume(message);
+                continue;
+            }
+            String trimmed = message.trim();
+            switch (message.substring(0, 4)) {
+                case "HAIL":
+                    if (trimmed.length() >= 5) {
+                        blackhole.consume(trimmed.substring(5));
+                    }
+                    break;
+
+                case "MESG":
+                    if (trimmed.length() >= 5) {
+                        String argument = trimmed.substring(5);
+                        if (argument.contains(" ")) {
+                            int messageStart = argument.indexOf(" ");
+                            blackhole.consume(argument.substring(0, messageStart));
+                            blackhole.consume(argument.substring(messageStart + 1));
+                        }
+                    }
+                    break;
+
+                case "IDEN":
+                    if (trimmed.length() >= 5) {
+                        blackhole.consume(trimmed.substring(5).split(" ")[0]);
+                    }
+                    break;
+
+                default:
+                    blackhole.consume(trimmed);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes on the wire and time per message for the output of one connection, with and without MODE DEFLATE.
+ * Every operation prepares one write batch of broadcasts and private messages the way Connection.flush
+ * does, the secondary wireBytes and messages counters give the bytes written per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    /**
+     * Enough different text that repeats fall outside the 32KB window of deflate.
+     */
+    private static final int DISTINCT_MESSAGES = 4096;
+    private static final String[] WORDS = {"the", "meeting", "is", "moved", "to", "room", "after", "lunch",
+            "can", "someone", "review", "my", "patch", "build", "failed", "again", "thanks", "deploy", "today",
+            "tomorrow", "please", "check", "logs", "server", "client", "fixed", "now", "coffee", "anyone"};
+
+    /**
+     * Messages per write batch, a busy client gets many per flush while a quiet one gets them one by one.
+     */
+    @Param({"1", "16"})
+    public int batchSize;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private Frame[] messages;
+    private ByteBuffer[] batch;
+    private OutputCompressor compressor;
+    private int next;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Wire {
+        public long wireBytes;
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            wireBytes = 0;
+            messages = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        messages = new Frame[DISTINCT_MESSAGES];
+        for (int i = 0; i < messages.length; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 3 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            text.append(random.nextInt(100000));
+            String sender = "user" + random.nextInt(500);
+            messages[i] = Frame.of(i % 4 == 0 ? "PM from " + sender + ":" + text : "Broadcast from " + sender + ": " + text);
+        }
+        batch = new ByteBuffer[batchSize];
+        compressor = new OutputCompressor(level);
+    }
+
+    @TearDown
+    public void tearDown() {
+        compressor.release();
+    }
+
+    @Benchmark
+    public int plain(Wire wire) {
+        fillBatch();
+        int bytes = 0;
+        for (int i = 0; i < batchSize; i++) {
+            bytes += batch[i].remaining();
+        }
+        count(wire, bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public int deflate(Wire wire) {
+        fillBatch();
+        int bytes = compressor.compress(batch, 0, batchSize).remaining();
+        count(wire, bytes);
+        return bytes;
+    }
+
+    private void fillBatch() {
+        for (int i = 0; i < batchSize; i++) {
+            batch[i] = messages[next].view();
+            next = (next + 1) % DISTINCT_MESSAGES;
+        }
+    }
+
+    private void count(Wire wire, int bytes) {
+        wire.wireBytes += bytes;
+        wire.messages += batchSize;
+    }
+}
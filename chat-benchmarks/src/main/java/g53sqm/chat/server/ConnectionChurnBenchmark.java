@@ -0,0 +1,74 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects, logs in and quits one client after another while other users stay online, the churn
+ * of a reconnect storm. With sweep every QUIT is followed by a full removeDeadUsers scan, which
+ * is what each disconnect used to cost, so the two modes show what removing a connection by
+ * itself saves as the number of users grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionChurnBenchmark {
+
+    @Param({"1000", "10000"})
+    public int onlineUsers;
+
+    @Param({"incremental", "sweep"})
+    public String removal;
+
+    private Server server;
+    private boolean sweep;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // No reaper or sweeper, only the removal being measured touches the connections
+        server = new Server(0, new ServerConfig().setLogLevel(ServerLog.Level.OFF)
+                .setIdleTimeoutMillis(0).setSweepIntervalMillis(0));
+        for (int i = 0; i < onlineUsers; i++) {
+            Connection c = new Connection(new InMemorySocket(), server);
+            server.addConnection(c);
+            c.handleLine("IDEN user" + i);
+        }
+        sweep = "sweep".equals(removal);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.shutdown(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * @return the number of connections left, which stays at the online users
+     */
+    @Benchmark
+    public int connectLoginQuit() {
+        Connection c = new Connection(new InMemorySocket(), server);
+        server.addConnection(c);
+        c.handleLine("IDEN churner");
+        c.handleLine("QUIT");
+        if (sweep) {
+            server.removeDeadUsers();
+        }
+        return server.getNumberOfUsers();
+    }
+}
@@ -0,0 +1,74 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the same messages from a stream as text lines and as binary frames.
+ * Lines are found by scanning every byte for a terminator, frames by reading their length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    @Param({"40", "1000"})
+    public int messageLength;
+
+    private byte[] lines;
+    private byte[] frames;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder message = new StringBuilder("HAIL ");
+        while (message.length() < messageLength) {
+            message.append("chat ");
+        }
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            text.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            binary.write(BinaryFraming.encode(message.toString()).array());
+        }
+        lines = text.toByteArray();
+        frames = binary.toByteArray();
+    }
+
+    @Benchmark
+    public void textLines(Blackhole blackhole) throws IOException {
+        LineReader reader = new LineReader(new ByteArrayInputStream(lines));
+        while (reader.nextLine()) {
+            blackhole.consume(reader.lineLength());
+        }
+    }
+
+    @Benchmark
+    public void binaryFrames(Blackhole blackhole) throws IOException {
+        LineReader reader = new LineReader(new ByteArrayInputStream(frames));
+        reader.acceptFrames();
+        while (reader.nextLine()) {
+            blackhole.consume(reader.lineLength());
+        }
+    }
+}
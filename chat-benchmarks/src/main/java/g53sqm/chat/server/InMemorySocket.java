@@ -0,0 +1,70 @@
+package g53sqm.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * Socket stand-in for benchmarks, nothing is ever read and everything written is counted and discarded,
+ * so that measurements show the server's own CPU cost rather than the network's.
+ */
+class InMemorySocket extends Socket {
+
+    private final InputStream in;
+    private final CountingOutputStream out;
+    private volatile boolean closed;
+
+    InMemorySocket() {
+        in = new ByteArrayInputStream(new byte[0]);
+        out = new CountingOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return InetSocketAddress.createUnresolved("in-memory", 0);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of bytes written to the socket so far
+     */
+    long getBytesWritten() {
+        return out.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private volatile long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
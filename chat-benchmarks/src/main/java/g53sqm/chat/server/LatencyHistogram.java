@@ -0,0 +1,84 @@
+package g53sqm.chat.server;
+
+/**
+ * Histogram of latencies in microseconds with a fixed memory footprint.
+ * Values below 128 are counted exactly, larger values in buckets no wider than 1/64 of their value.
+ * Not thread safe, every recording thread keeps its own histogram and they are merged for the report.
+ */
+class LatencyHistogram {
+
+    private static final int EXACT = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int BUCKETS = EXACT + 58 * SUB_BUCKETS;
+
+    private final long[] counts;
+    private long total;
+    private long max;
+
+    LatencyHistogram() {
+        counts = new long[BUCKETS];
+    }
+
+    /**
+     * @param nanos the latency to record, negative values are counted as 0
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts[index(micros)]++;
+        total++;
+        max = Math.max(max, micros);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return total;
+    }
+
+    long getMaxMicros() {
+        return max;
+    }
+
+    /**
+     * @param fraction the percentile wanted, between 0 and 1
+     * @return the highest value of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    long percentileMicros(double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(max, highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    private static int index(long micros) {
+        if (micros < EXACT) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - 6;
+        int index = EXACT + (shift - 1) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long highestValue(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int shift = (index - EXACT) / SUB_BUCKETS + 1;
+        long sub = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
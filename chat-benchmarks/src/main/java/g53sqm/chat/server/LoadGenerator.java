@@ -0,0 +1,374 @@
+package g53sqm.chat.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a Server on a free local port with simulated clients over real sockets.
+ * Every client identifies itself and then sends a mix of HAIL, MESG, LIST and STAT at a fixed total rate.
+ * HAIL and MESG carry the time they were meant to be sent, so the receivers measure delivery latency,
+ * LIST, STAT and MESG replies are matched to their request to measure reply latency.
+ * Latency is taken from the scheduled send time rather than the actual one, so a stalled server
+ * shows up in the percentiles instead of silently lowering the send rate.
+ * <p>
+ * Options are given as --name=value: clients, rate (commands per second), duration-s, warmup-s,
+ * senders, mix (for example hail:60,mesg:20,list:10,stat:10), seed and max-p99-ms.
+ * Any other option is handed to the server, for example --engine=nio.
+ * With max-p99-ms set the exit code is 1 when the delivery p99 is higher or messages were lost.
+ */
+public class LoadGenerator {
+
+    private static final String TIMESTAMP_PREFIX = "lt";
+
+    private enum Command {
+        HAIL, MESG, LIST, STAT
+    }
+
+    private int clients = 100;
+    private int rate = 1000;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private int senders = 0;
+    private int[] weights = {60, 20, 10, 10};
+    private long seed = 42;
+    private double maxP99Millis = -1;
+    private final ArrayList<String> serverArgs = new ArrayList<String>();
+
+    private final AtomicLong[] sent = new AtomicLong[Command.values().length];
+    private volatile long measureFrom;
+    private volatile boolean sending;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        // The server's events would drown the report, unless asked for otherwise only warnings are logged
+        serverArgs.add("--log-level=warn");
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            String name = arg.startsWith("--") && split > 2 ? arg.substring(2, split) : "";
+            String value = split < 0 ? "" : arg.substring(split + 1);
+            switch (name) {
+                case "clients":
+                    clients = Integer.parseInt(value);
+                    break;
+
+                case "rate":
+                    rate = Integer.parseInt(value);
+                    break;
+
+                case "duration-s":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+
+                case "warmup-s":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+
+                case "senders":
+                    senders = Integer.parseInt(value);
+                    break;
+
+                case "mix":
+                    weights = parseMix(value);
+                    break;
+
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+
+                case "max-p99-ms":
+                    maxP99Millis = Double.parseDouble(value);
+                    break;
+
+                default:
+                    serverArgs.add(arg);
+                    break;
+            }
+        }
+        if (clients < 2 || rate < 1 || durationSeconds < 1) {
+            throw new IllegalArgumentException("at least 2 clients, a rate and a duration are needed");
+        }
+        if (senders < 1) {
+            senders = Math.min(4, clients);
+        }
+    }
+
+    private static int[] parseMix(String value) {
+        int[] mix = new int[Command.values().length];
+        for (String part : value.split(",")) {
+            String[] weight = part.split(":");
+            mix[Command.valueOf(weight[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(weight[1].trim());
+        }
+        return mix;
+    }
+
+    private boolean run() throws Exception {
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        final Server server = config.getEngine() == ServerConfig.Engine.NIO ? new NioServer(0, config) : new Server(0, config);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        }, "load-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new AtomicLong();
+        }
+        measureFrom = Long.MAX_VALUE;
+        CountDownLatch identified = new CountDownLatch(clients);
+        SimulatedClient[] simulated = new SimulatedClient[clients];
+        for (int i = 0; i < clients; i++) {
+            simulated[i] = new SimulatedClient("load" + i, server.getServerPort(), identified);
+        }
+        if (!identified.await(60, TimeUnit.SECONDS)) {
+            System.err.println("clients could not identify within 60 seconds");
+            return false;
+        }
+
+        sending = true;
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Thread[] senderThreads = new Thread[senders];
+        for (int s = 0; s < senders; s++) {
+            senderThreads[s] = new Thread(new Sender(s, simulated, start, end), "load-sender-" + s);
+            senderThreads[s].start();
+        }
+        for (Thread t : senderThreads) {
+            t.join();
+        }
+        sending = false;
+        // Give messages still on their way time to arrive
+        Thread.sleep(2000);
+        for (SimulatedClient c : simulated) {
+            c.close();
+        }
+        server.stopListening();
+        return report(simulated);
+    }
+
+    private boolean report(SimulatedClient[] simulated) {
+        LatencyHistogram delivery = new LatencyHistogram();
+        LatencyHistogram replies = new LatencyHistogram();
+        long errors = 0;
+        for (SimulatedClient c : simulated) {
+            synchronized (c.stats) {
+                delivery.add(c.delivery);
+                replies.add(c.replies);
+                errors += c.errors;
+            }
+        }
+        long hails = sent[Command.HAIL.ordinal()].get();
+        long mesgs = sent[Command.MESG.ordinal()].get();
+        long total = 0;
+        for (AtomicLong count : sent) {
+            total += count.get();
+        }
+        long expected = hails * clients + mesgs;
+
+        System.out.printf(Locale.ROOT, "clients=%d rate=%d/s duration=%ds warmup=%ds senders=%d server=%s%n",
+                clients, rate, durationSeconds, warmupSeconds, senders, serverArgs);
+        System.out.printf(Locale.ROOT, "sent       HAIL=%d MESG=%d LIST=%d STAT=%d (%.1f/s)%n",
+                hails, mesgs, sent[Command.LIST.ordinal()].get(), sent[Command.STAT.ordinal()].get(),
+                total / (double) durationSeconds);
+        System.out.printf(Locale.ROOT, "delivered  %d of %d expected (%.1f/s)%n",
+                delivery.getCount(), expected, delivery.getCount() / (double) durationSeconds);
+        printLatency("delivery", delivery);
+        printLatency("reply", replies);
+        System.out.printf(Locale.ROOT, "errors     %d%n", errors);
+
+        if (maxP99Millis < 0) {
+            return true;
+        }
+        boolean passed = delivery.percentileMicros(0.99) <= maxP99Millis * 1000 && delivery.getCount() >= expected;
+        System.out.println(passed ? "PASSED" : "FAILED, delivery p99 above " + maxP99Millis + "ms or messages lost");
+        return passed;
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf(Locale.ROOT, "%-10s p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms%n", name,
+                histogram.percentileMicros(0.5) / 1000.0, histogram.percentileMicros(0.99) / 1000.0,
+                histogram.percentileMicros(0.999) / 1000.0, histogram.getMaxMicros() / 1000.0);
+    }
+
+    /**
+     * Sends commands for every senders-th client at its share of the rate.
+     */
+    private class Sender implements Runnable {
+        private final int id;
+        private final SimulatedClient[] simulated;
+        private final long start;
+        private final long end;
+        private final Random random;
+
+        Sender(int id, SimulatedClient[] simulated, long start, long end) {
+            this.id = id;
+            this.simulated = simulated;
+            this.start = start;
+            this.end = end;
+            this.random = new Random(seed + id);
+        }
+
+        @Override
+        public void run() {
+            long interval = TimeUnit.SECONDS.toNanos(1) * senders / rate;
+            int totalWeight = 0;
+            for (int weight : weights) {
+                totalWeight += weight;
+            }
+            int next = id;
+            for (long scheduled = start + interval * id / senders; scheduled < end; scheduled += interval) {
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                SimulatedClient from = simulated[next];
+                next += senders;
+                if (next >= simulated.length) {
+                    next = id;
+                }
+                Command command = pick(totalWeight);
+                if (scheduled >= measureFrom) {
+                    sent[command.ordinal()].incrementAndGet();
+                }
+                switch (command) {
+                    case HAIL:
+                        from.send("HAIL " + TIMESTAMP_PREFIX + scheduled, -1);
+                        break;
+
+                    case MESG:
+                        String to = simulated[random.nextInt(simulated.length)].name;
+                        from.send("MESG " + to + " " + TIMESTAMP_PREFIX + scheduled, scheduled);
+                        break;
+
+                    default:
+                        from.send(command.name(), scheduled);
+                        break;
+                }
+            }
+        }
+
+        private Command pick(int totalWeight) {
+            int roll = random.nextInt(totalWeight);
+            for (Command command : Command.values()) {
+                roll -= weights[command.ordinal()];
+                if (roll < 0) {
+                    return command;
+                }
+            }
+            return Command.STAT;
+        }
+    }
+
+    /**
+     * One client connection with a thread reading everything the server sends it.
+     */
+    private class SimulatedClient implements Runnable {
+        private final String name;
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private final CountDownLatch identified;
+        private final ConcurrentLinkedQueue<Long> pendingReplies;
+        private final LatencyHistogram delivery;
+        private final LatencyHistogram replies;
+        // Guards the statistics, separate from the writer lock so a blocked write never stops the reader
+        private final Object stats = new Object();
+        private long errors;
+
+        SimulatedClient(String name, int port, CountDownLatch identified) throws IOException {
+            this.name = name;
+            this.socket = new Socket("localhost", port);
+            this.socket.setTcpNoDelay(true);
+            OutputStream stream = socket.getOutputStream();
+            this.out = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.identified = identified;
+            this.pendingReplies = new ConcurrentLinkedQueue<Long>();
+            this.delivery = new LatencyHistogram();
+            this.replies = new LatencyHistogram();
+            Thread reader = new Thread(this, "load-client-" + name);
+            reader.setDaemon(true);
+            reader.start();
+            send("IDEN " + name, -1);
+        }
+
+        /**
+         * @param line      the command to send
+         * @param scheduled when the command was meant to be sent if a reply is expected, otherwise -1
+         */
+        synchronized void send(String line, long scheduled) {
+            if (scheduled >= 0) {
+                pendingReplies.add(scheduled);
+            }
+            out.print(line);
+            out.print("\r\n");
+            out.flush();
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    handle(line, System.nanoTime());
+                }
+            } catch (IOException e) {
+                // Closed at the end of the run
+            }
+        }
+
+        private void handle(String line, long now) {
+            if (line.startsWith("OK IDEN")) {
+                identified.countDown();
+            } else if (line.startsWith("OK CONNECT")) {
+                return;
+            } else if (line.startsWith("OK ") || line.startsWith("BAD ")) {
+                Long scheduled = pendingReplies.poll();
+                synchronized (stats) {
+                    if (line.startsWith("BAD ") && sending) {
+                        errors++;
+                    }
+                    if (scheduled != null && scheduled >= measureFrom) {
+                        replies.record(now - scheduled);
+                    }
+                }
+            } else {
+                int stamp = line.lastIndexOf(TIMESTAMP_PREFIX);
+                if (stamp >= 0) {
+                    long scheduled = Long.parseLong(line.substring(stamp + TIMESTAMP_PREFIX.length()));
+                    if (scheduled >= measureFrom) {
+                        synchronized (stats) {
+                            delivery.record(now - scheduled);
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What storing messages costs. broadcastMessage is timed with and without the message log, the
+ * difference is all a sender pays. sustainedAppends stores a burst of broadcasts and waits until
+ * the appender has committed them, which gives the rate the log keeps up with.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+
+    private static final int BURST = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Broadcasting {
+        @Param({"false", "true"})
+        public boolean stored;
+
+        private File directory;
+        private Server server;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("message-log").toFile();
+            ServerConfig config = new ServerConfig().setLogLevel(ServerLog.Level.OFF)
+                    // Sized so the appender never drops and every broadcast pays the full cost
+                    .setMessageLogQueue(1 << 20);
+            if (stored) {
+                config.setMessageLogDir(directory.getPath());
+            }
+            server = new Server(0, config);
+            for (int i = 0; i < 1000; i++) {
+                Connection c = new Connection(new InMemorySocket(), server);
+                server.addConnection(c);
+                c.handleLine("IDEN user" + i);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            server.shutdown(0);
+            deleteDirectory(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Appending {
+        private File directory;
+        private MessageLog log;
+        private long next;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("message-log").toFile();
+            ServerLog serverLog = new ServerLog(ServerLog.Level.OFF, 16, new PrintStream(new ByteArrayOutputStream()));
+            log = MessageLog.open(directory, 64 * 1024 * 1024, BURST * 4, serverLog);
+        }
+
+        @TearDown
+        public void tearDown() {
+            log.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Benchmark
+    public void broadcastMessage(Broadcasting state) {
+        state.server.broadcastMessage("Broadcast from user0: hello everyone, the build is green again");
+    }
+
+    /**
+     * @return the end offset, one operation is BURST messages
+     */
+    @Benchmark
+    public long sustainedAppends(Appending state) {
+        for (int i = 0; i < BURST; i++) {
+            state.log.append(MessageLog.Kind.BROADCAST, null, "Broadcast from user0: message " + i);
+        }
+        state.next += BURST;
+        while (state.log.getEndOffset() + state.log.getDropped() < state.next) {
+            Thread.yield();
+        }
+        return state.log.getEndOffset();
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,111 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of the server operations whose work grows with the number of connected users.
+ * Every user is a registered Connection over an InMemorySocket, so writes go through the real
+ * outbound queues and writers but never reach a network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerHotPathBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private Server server;
+    private Connection sender;
+    private String[] usernames;
+    private int nextRecipient;
+    private byte[] listLine;
+    private byte[] statLine;
+    private byte[] mesgLine;
+    private byte[] roomHailLine;
+
+    @Setup
+    public void setUp() {
+        server = new Server(0, new ServerConfig().setLogLevel(ServerLog.Level.OFF));
+        usernames = new String[users];
+        for (int i = 0; i < users; i++) {
+            Connection c = new Connection(new InMemorySocket(), server);
+            server.addConnection(c);
+            usernames[i] = "user" + i;
+            c.handleLine("IDEN " + usernames[i]);
+            if (i < 10) {
+                c.handleLine("JOIN #team");
+            }
+            if (i == 0) {
+                sender = c;
+            }
+        }
+        listLine = "LIST".getBytes(StandardCharsets.UTF_8);
+        statLine = "STAT".getBytes(StandardCharsets.UTF_8);
+        roomHailLine = "HAIL #team hello team".getBytes(StandardCharsets.UTF_8);
+        mesgLine = ("MESG user" + (users - 1) + " are you there?").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutdown(0);
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        server.broadcastMessage("Broadcast from user0: hello everyone");
+    }
+
+    @Benchmark
+    public boolean sendPrivateMessage() {
+        String recipient = usernames[nextRecipient];
+        nextRecipient = (nextRecipient + 1) % usernames.length;
+        return server.sendPrivateMessage("PM from user0:hello", recipient);
+    }
+
+    @Benchmark
+    public ArrayList<String> getUserList() {
+        return server.getUserList();
+    }
+
+    @Benchmark
+    public void listCommand() {
+        sender.handleLine(listLine, 0, listLine.length);
+    }
+
+    @Benchmark
+    public void statCommand() {
+        sender.handleLine(statLine, 0, statLine.length);
+    }
+
+    /**
+     * A message to a room of 10, which should cost the same whatever the number of users on the server.
+     */
+    @Benchmark
+    public void roomHailCommand() {
+        sender.handleLine(roomHailLine, 0, roomHailLine.length);
+    }
+
+    @Benchmark
+    public void mesgCommand() {
+        sender.handleLine(mesgLine, 0, mesgLine.length);
+    }
+}
@@ -0,0 +1,58 @@
+package g53sqm.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long Server.shutdown takes to tell every client and drain its connection, with each client
+ * still owed the last few broadcasts. Every invocation shuts down a freshly filled server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ShutdownBenchmark {
+
+    @Param({"10000"})
+    public int users;
+
+    @Param({"0", "16"})
+    public int queuedBroadcasts;
+
+    private Server server;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        server = new Server(0, new ServerConfig().setLogLevel(ServerLog.Level.OFF));
+        for (int i = 0; i < users; i++) {
+            Connection c = new Connection(new InMemorySocket(), server);
+            server.addConnection(c);
+            c.handleLine("IDEN user" + i);
+        }
+        for (int i = 0; i < queuedBroadcasts; i++) {
+            server.broadcastMessage("Broadcast from user0: message " + i + " before the restart");
+        }
+    }
+
+    /**
+     * @return the report, all connections should have drained
+     */
+    @Benchmark
+    public ShutdownReport shutdown() {
+        return server.shutdown(TimeUnit.SECONDS.toMillis(30));
+    }
+}
@@ -10,6 +10,7 @@ import javafx.scene.layout.Region;
 import javafx.stage.Stage;
 
 import java.io.IOException;
+import java.util.List;
 
 public class Client extends Application {
 
@@ -20,6 +21,14 @@ public class Client extends Application {
     public void start(Stage primaryStage) throws Exception {
         try {
             chatService = new ChatService("localhost", 9000);
+            // Plain text unless asked for, compression costs the server memory for every client
+            List<String> args = getParameters().getRaw();
+            if (args.contains("--binary")) {
+                chatService.requestBinaryMode();
+            }
+            if (args.contains("--deflate")) {
+                chatService.requestCompression();
+            }
             sceneManager = new SceneManager(primaryStage, chatService);
             primaryStage.setResizable(false);
             primaryStage.show();
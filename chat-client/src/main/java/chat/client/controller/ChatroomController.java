@@ -37,6 +37,8 @@ public class ChatroomController extends BaseController {
 
     private volatile HashMap<String, VBox> chatRoomContent;
     private boolean isPolling;
+    private boolean awaitingPresence;
+    private final ArrayList<String> onlineUsers = new ArrayList<>();
     private String currentChatroom;
 
     private Thread pollingThread;
@@ -132,6 +134,46 @@ public class ChatroomController extends BaseController {
         pollingThread.start();
     }
 
+    /**
+     * Apply a presence event from the server, a snapshot of every online user
+     * or a single user joining or leaving.
+     *
+     * @param event the message of the presence response
+     */
+    private void updatePresence(String event) {
+        String[] parsed = event.split(" ", 2);
+        String argument = parsed.length > 1 ? parsed[1] : "";
+        ArrayList<String> users;
+        synchronized (onlineUsers) {
+            switch (parsed[0]) {
+                case "SNAP":
+                    onlineUsers.clear();
+                    for (String user : argument.split(",")) {
+                        user = user.trim();
+                        if (!user.isEmpty() && !user.equals(chatService.getUsername())) {
+                            onlineUsers.add(user);
+                        }
+                    }
+                    break;
+
+                case "JOIN":
+                    if (!onlineUsers.contains(argument) && !argument.equals(chatService.getUsername())) {
+                        onlineUsers.add(argument);
+                    }
+                    break;
+
+                case "LEAVE":
+                    onlineUsers.remove(argument);
+                    break;
+
+                default:
+                    return;
+            }
+            users = new ArrayList<>(onlineUsers);
+        }
+        populateOnlineUsers(users);
+    }
+
     private synchronized void populateOnlineUsers(ArrayList<String> users) {
         if (users.size() + 1 != chatRoomContent.size()) {
             for (String currentUser : chatRoomContent.keySet()) {
@@ -218,8 +260,11 @@ public class ChatroomController extends BaseController {
     public void onServerSuccessResponse(ServerMessage message) {
         if (message.getType().equals(MessageType.IDEN)) {
             addChatMessages(PUBLIC_CHAT_NAME, message.getMsg(), false);
-            this.isPolling = true;
-            pollOnlineUsers();
+            this.awaitingPresence = true;
+            chatService.subscribePresence();
+        } else if (message.getType().equals(MessageType.PRES)) {
+            this.awaitingPresence = false;
+            updatePresence(message.getMsg());
         } else if (message.getType().equals(MessageType.LIST)) {
             String[] users = message.getMsg().split(",");
             for (int i = 0; i < users.length; i++) {
@@ -238,7 +283,12 @@ public class ChatroomController extends BaseController {
 
     @Override
     public void onServerErrorResponse(ServerMessage message) {
-        if (!message.getType().equals(MessageType.IDEN)) {
+        if (awaitingPresence && message.getType().equals(MessageType.VALD)) {
+            // Servers without presence support do not know PRES, fall back to polling LIST
+            this.awaitingPresence = false;
+            this.isPolling = true;
+            pollOnlineUsers();
+        } else if (!message.getType().equals(MessageType.IDEN)) {
             addChatMessages(currentChatroom, message.getMsg(), true);
         }
     }
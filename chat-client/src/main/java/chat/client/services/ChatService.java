@@ -1,19 +1,23 @@
 package chat.client.services;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import chat.client.services.ServerMessage.MessageStatus;
 import chat.client.services.ServerMessage.MessageType;
 
 public class ChatService implements Runnable {
     private Socket socket;
-    private BufferedReader reader;
+    private MessageReader reader;
+    private OutputStream out;
     private PrintWriter writer;
+    private volatile boolean binaryMode;
+    private volatile boolean compressed;
+    private final AtomicInteger awaitingMode;
     private ArrayList<ServerMessageListener> listeners;
     private String username;
     private boolean isAlive;
@@ -21,9 +25,11 @@ public class ChatService implements Runnable {
 
     public ChatService(String hostname, int port) throws IOException {
         socket = new Socket(hostname, port);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new PrintWriter(socket.getOutputStream(), true);
+        reader = new MessageReader(socket.getInputStream());
+        out = socket.getOutputStream();
+        writer = new PrintWriter(out, true);
         listeners = new ArrayList<>();
+        awaitingMode = new AtomicInteger();
         username = "";
         isAlive = true;
         thread = new Thread(this);
@@ -41,28 +47,36 @@ public class ChatService implements Runnable {
     public void registerUser(String username) {
         if (!username.isEmpty()) {
             this.username = username.split(" ")[0];
-            this.writer.println("IDEN " + this.username);
+            this.send("IDEN " + this.username);
         }
     }
 
     public void listAllUser() {
-        this.writer.println("LIST");
+        this.send("LIST");
+    }
+
+    /**
+     * Ask the server to push the online users and every later join and leave,
+     * instead of polling with LIST.
+     */
+    public void subscribePresence() {
+        this.send("PRES");
     }
 
     public void getUserStat() {
-        this.writer.println("STAT");
+        this.send("STAT");
     }
 
     public void broadcastMsg(String msg) {
-        this.writer.println("HAIL " + msg);
+        this.send("HAIL " + msg);
     }
 
     public void privateMsg(String username, String msg) {
-        this.writer.println("MESG " + username + " " + msg);
+        this.send("MESG " + username + " " + msg);
     }
 
     public void quit() {
-        this.writer.println("QUIT");
+        this.send("QUIT");
     }
 
     public void stopService() {
@@ -70,6 +84,73 @@ public class ChatService implements Runnable {
         this.isAlive = false;
     }
 
+    /**
+     * Ask the server to switch to binary frames, which are cheaper to decode and can carry
+     * multi-line messages. Commands are sent as text until the server agrees with OK MODE,
+     * so nothing changes when the server does not support binary mode.
+     * The reply is handled here and not passed on to the listeners.
+     */
+    public void requestBinaryMode() {
+        this.awaitingMode.incrementAndGet();
+        this.send("MODE BINARY");
+    }
+
+    /**
+     * Ask the server to compress everything it sends, worth it on slow links with many broadcasts.
+     * Like requestBinaryMode, the reply is handled here and a server without compression changes nothing.
+     */
+    public void requestCompression() {
+        this.awaitingMode.incrementAndGet();
+        this.send("MODE DEFLATE");
+    }
+
+    public boolean isBinaryMode() {
+        return binaryMode;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Send a command as a text line, or as a frame once the server switched to binary mode.
+     *
+     * @param command the command to send
+     */
+    private synchronized void send(String command) {
+        if (!binaryMode) {
+            this.writer.println(command);
+            return;
+        }
+        try {
+            out.write(MessageReader.encodeFrame(command));
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void switchMode(ServerMessage reply) {
+        if (reply.getStatus() != MessageStatus.OK) {
+            return;
+        }
+        if (reply.getMsg().equals("BINARY")) {
+            binaryMode = true;
+        } else if (reply.getMsg().equals("DEFLATE")) {
+            // Before reading anything else, the next byte is already compressed
+            reader.startInflating();
+            compressed = true;
+        }
+    }
+
+    /**
+     * Servers without MODE answer it with BAD VALD.
+     */
+    private boolean isModeReply(ServerMessage message) {
+        return message.getType() == MessageType.MODE
+                || (message.getType() == MessageType.VALD && message.getStatus() == MessageStatus.BAD);
+    }
+
     public String getUsername() {
         return username;
     }
@@ -90,9 +171,17 @@ public class ChatService implements Runnable {
             // Create a internal error message as placeholder.
             ServerMessage serverMessage = null;
             try {
-                String rawRes = reader.readLine();
-                if (rawRes != null && !rawRes.isEmpty()) {
+                String rawRes = reader.readMessage();
+                if ("PING".equals(rawRes)) {
+                    // Heartbeat from the server, answered here so listeners never see it
+                    send("PONG");
+                } else if (rawRes != null && !rawRes.isEmpty()) {
                     serverMessage = new ServerMessage(rawRes);
+                    if (awaitingMode.get() > 0 && isModeReply(serverMessage)) {
+                        awaitingMode.decrementAndGet();
+                        switchMode(serverMessage);
+                        serverMessage = null;
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -0,0 +1,112 @@
+package chat.client.services;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the messages of the server, which are text lines until the connection switches to binary mode
+ * and frames made of an opcode, a varint length and a UTF-8 payload afterwards.
+ * The two are told apart by their first byte, as a text line never starts with an opcode.
+ * After MODE DEFLATE the whole stream is raw deflate data, started with a dictionary the server shares.
+ */
+public class MessageReader {
+
+    public static final int OP_MESSAGE = 0x01;
+
+    /**
+     * Must match the dictionary the server compresses with.
+     */
+    private static final byte[] DICTIONARY = ("OK STAT There are currently  user(s) on the server You have not logged in yet"
+            + "You are logged in and have sent  message(s)OK PRES LEAVE OK PRES JOIN OK LIST "
+            + "OK MESG your message has been sentPM from Broadcast from ").getBytes(StandardCharsets.UTF_8);
+
+    private InputStream in;
+    private final ByteArrayOutputStream line;
+
+    public MessageReader(InputStream in) {
+        this.in = new BufferedInputStream(in);
+        this.line = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Read the next message, blocking until one is available.
+     *
+     * @return the message without line terminator, or null at the end of the stream
+     * @throws IOException if reading fails or the stream ends inside a frame
+     */
+    public String readMessage() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        if (first == OP_MESSAGE) {
+            return readFrame();
+        }
+        line.reset();
+        int b = first;
+        while (b >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+            b = in.read();
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Inflate everything after the message just read, which must be the server's OK MODE DEFLATE.
+     */
+    public void startInflating() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        in = new BufferedInputStream(new InflaterInputStream(in, inflater));
+    }
+
+    private String readFrame() throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0 || shift > 21) {
+                throw new EOFException("malformed frame");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        byte[] payload = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(payload, read, length - read);
+            if (n < 0) {
+                throw new EOFException("stream ended inside a frame");
+            }
+            read += n;
+        }
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param message the command to send
+     * @return the command encoded as a frame
+     */
+    public static byte[] encodeFrame(String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 4);
+        frame.write(OP_MESSAGE);
+        int rest = payload.length;
+        while ((rest & ~0x7f) != 0) {
+            frame.write((rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        frame.write(rest);
+        frame.write(payload, 0, payload.length);
+        return frame.toByteArray();
+    }
+}
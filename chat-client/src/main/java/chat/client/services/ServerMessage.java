@@ -12,7 +12,8 @@ public class ServerMessage {
     public enum MessageType {
         // Request response
         CONNECT("CONNECT"), VALD("VALD"), IDEN("IDEN"), HAIL("HAIL"), MESG("MESG"),
-        LIST("LIST"), STAT("STAT"), QUIT("QUIT"),
+        LIST("LIST"), STAT("STAT"), QUIT("QUIT"), PRES("PRES"), MODE("MODE"),
+        HIST("HIST"),
 
         // User message response
         BROADCAST("BROADCAST"), PM("PM");
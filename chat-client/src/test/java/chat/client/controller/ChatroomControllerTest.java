@@ -122,6 +122,27 @@ public class ChatroomControllerTest extends ApplicationTest {
         assertEquals("Public Chatroom", publicRoomName.getText());
     }
 
+    @Test
+    public void inPublicChatroom_WhenReceivePresenceEvents_OnlineUserlistIsUpdated() {
+        assertEquals("PRES", mockServer.getReceivedMessage());
+        mockServer.sendMessage("OK PRES SNAP " + username + ", user2, ");
+        WaitForAsyncUtils.waitForFxEvents();
+        mockServer.sendMessage("OK PRES JOIN user3");
+        WaitForAsyncUtils.waitForFxEvents();
+
+        VBox contactBox = lookup("#chatContacts").query();
+        ObservableList<Node> list = contactBox.getChildren();
+        assertEquals(3, list.size());
+        assertEquals("user2", ((Hyperlink) list.get(1)).getText());
+        assertEquals("user3", ((Hyperlink) list.get(2)).getText());
+
+        mockServer.sendMessage("OK PRES LEAVE user2");
+        WaitForAsyncUtils.waitForFxEvents();
+        list = contactBox.getChildren();
+        assertEquals(2, list.size());
+        assertEquals("user3", ((Hyperlink) list.get(1)).getText());
+    }
+
     @Test
     public void sendBtnClicked_InPublicChatroomWithNonEmptyMessage_CanSendMessage() {
         // Check UI for changes
@@ -157,6 +157,57 @@ public class ChatServiceTest {
         assertFalse(chatService.isAlive());
     }
 
+    @Test
+    public void requestBinaryMode_ServerAgrees_BinaryModeAndReplyNotPassedOn() {
+        chatService.requestBinaryMode();
+        sleep(500);
+        assertEquals("MODE BINARY", mockServer.getReceivedMessage());
+        assertFalse(chatService.isBinaryMode());
+
+        mockServer.sendMessage("OK MODE BINARY");
+        sleep(500);
+        assertTrue(chatService.isBinaryMode());
+        assertEquals("", mockMessageListener.getLastInvokedMethodName());
+    }
+
+    @Test
+    public void requestBinaryMode_ServerWithoutBinaryMode_StaysInTextMode() {
+        chatService.requestBinaryMode();
+        sleep(500);
+        mockServer.sendMessage("BAD VALD command not recognised");
+        sleep(500);
+        assertFalse(chatService.isBinaryMode());
+        assertEquals("", mockMessageListener.getLastInvokedMethodName());
+
+        chatService.listAllUser();
+        sleep(500);
+        assertEquals("LIST", mockServer.getReceivedMessage());
+    }
+
+    @Test
+    public void requestCompression_ServerRefuses_StaysUncompressed() {
+        chatService.requestCompression();
+        sleep(500);
+        assertEquals("MODE DEFLATE", mockServer.getReceivedMessage());
+
+        mockServer.sendMessage("BAD MODE compression is disabled on this server");
+        sleep(500);
+        assertFalse(chatService.isCompressed());
+        assertEquals("", mockMessageListener.getLastInvokedMethodName());
+
+        mockServer.sendMessage("Broadcast from user: still text");
+        sleep(500);
+        assertEquals("still text", mockMessageListener.getLastReceivedMessage().getMsg());
+    }
+
+    @Test
+    public void run_ServerPing_AnswersPongWithoutNotifyingListeners() {
+        mockServer.sendMessage("PING");
+        sleep(500);
+        assertEquals("PONG", mockServer.getReceivedMessage());
+        assertEquals("", mockMessageListener.getLastInvokedMethodName());
+    }
+
     @Test
     public void run_UserBroadcastMessage_InvokeOnIncomingMessage() {
         String mockMessage = "Broadcast from user: mymessage";
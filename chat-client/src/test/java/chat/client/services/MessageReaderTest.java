@@ -0,0 +1,91 @@
+package chat.client.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MessageReaderTest {
+
+    @Test
+    public void readMessage_TextLines_ReturnsLinesWithoutTerminators() throws IOException {
+        MessageReader reader = readerFor("OK CONNECT Welcome\r\nOK MODE BINARY\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("OK CONNECT Welcome", reader.readMessage());
+        assertEquals("OK MODE BINARY", reader.readMessage());
+        assertNull(reader.readMessage());
+    }
+
+    @Test
+    public void readMessage_LinesAndFramesMixed_ReturnsEveryMessage() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("OK MODE BINARY\n".getBytes(StandardCharsets.UTF_8));
+        stream.write(MessageReader.encodeFrame("Broadcast from user1: first\nsecond"));
+        stream.write(MessageReader.encodeFrame("OK IDEN Welcome to the chat server user2"));
+        MessageReader reader = readerFor(stream.toByteArray());
+
+        assertEquals("OK MODE BINARY", reader.readMessage());
+        assertEquals("Broadcast from user1: first\nsecond", reader.readMessage());
+        assertEquals("OK IDEN Welcome to the chat server user2", reader.readMessage());
+        assertNull(reader.readMessage());
+    }
+
+    @Test
+    public void startInflating_AfterModeReply_InflatesWithServerDictionary() throws IOException {
+        byte[] dictionary = ("OK STAT There are currently  user(s) on the server You have not logged in yet"
+                + "You are logged in and have sent  message(s)OK PRES LEAVE OK PRES JOIN OK LIST "
+                + "OK MESG your message has been sentPM from Broadcast from ").getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(6, true);
+        deflater.setDictionary(dictionary);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("OK MODE DEFLATE\n".getBytes(StandardCharsets.UTF_8));
+        stream.write(deflate(deflater, "Broadcast from user1: hi\n".getBytes(StandardCharsets.UTF_8)));
+        stream.write(deflate(deflater, MessageReader.encodeFrame("PM from user2:two\nlines")));
+        deflater.end();
+
+        MessageReader reader = readerFor(stream.toByteArray());
+        assertEquals("OK MODE DEFLATE", reader.readMessage());
+        reader.startInflating();
+        assertEquals("Broadcast from user1: hi", reader.readMessage());
+        assertEquals("PM from user2:two\nlines", reader.readMessage());
+    }
+
+    @Test
+    public void encodeFrame_LongMessage_VarintLength() throws IOException {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            msg.append('x');
+        }
+        byte[] frame = MessageReader.encodeFrame(msg.toString());
+        assertEquals(MessageReader.OP_MESSAGE, frame[0]);
+        assertEquals(203, frame.length);
+        assertEquals(msg.toString(), readerFor(frame).readMessage());
+    }
+
+    @Test(expected = EOFException.class)
+    public void readMessage_StreamEndsInsideFrame_Throws() throws IOException {
+        byte[] frame = MessageReader.encodeFrame("OK LIST user1, ");
+        byte[] truncated = new byte[frame.length - 3];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        readerFor(truncated).readMessage();
+    }
+
+    private MessageReader readerFor(byte[] bytes) {
+        return new MessageReader(new ByteArrayInputStream(bytes));
+    }
+
+    private byte[] deflate(Deflater deflater, byte[] input) {
+        deflater.setInput(input);
+        byte[] output = new byte[1024];
+        int n = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+        byte[] flushed = new byte[n];
+        System.arraycopy(output, 0, flushed, 0, n);
+        return flushed;
+    }
+}
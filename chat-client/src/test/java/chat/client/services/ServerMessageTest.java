@@ -67,4 +67,23 @@ public class ServerMessageTest {
         assertEquals(serverMessage.getMsg(), "Hello");
     }
 
+    @Test
+    public void ServerMessage_PresenceEvent_IsCorrectlyParsed() {
+        String rawMsg = "OK PRES JOIN someuser";
+        ServerMessage serverMessage = new ServerMessage(rawMsg);
+        assertEquals(ServerMessage.MessageStatus.OK, serverMessage.getStatus());
+        assertEquals(ServerMessage.MessageType.PRES, serverMessage.getType());
+        assertNull(serverMessage.getSourceUsername());
+        assertEquals("JOIN someuser", serverMessage.getMsg());
+    }
+
+    @Test
+    public void ServerMessage_HistoryReplayHeader_IsCorrectlyParsed() {
+        String rawMsg = "OK HIST 20 message(s)";
+        ServerMessage serverMessage = new ServerMessage(rawMsg);
+        assertEquals(ServerMessage.MessageStatus.OK, serverMessage.getStatus());
+        assertEquals(ServerMessage.MessageType.HIST, serverMessage.getType());
+        assertEquals("20 message(s)", serverMessage.getMsg());
+    }
+
 }
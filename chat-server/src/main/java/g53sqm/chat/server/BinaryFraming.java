@@ -0,0 +1,124 @@
+package g53sqm.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol a client can switch to with MODE BINARY. Every message is a frame made of
+ * an opcode byte, the payload length as an unsigned LEB128 varint and the UTF-8 payload, which
+ * holds exactly what a text line would and may contain line breaks.
+ * Opcodes are below the first character a text line can start with, so frames and lines can be
+ * told apart by their first byte and both can be read from the same stream.
+ */
+final class BinaryFraming {
+
+    /**
+     * A command from the client or a reply or message from the server.
+     */
+    static final byte OP_MESSAGE = 0x01;
+
+    static final int MAX_HEADER_LENGTH = 1 + 3;
+    /**
+     * Frames are held in the same buffers as lines, so they share the line length limit.
+     */
+    static final int MAX_PAYLOAD_LENGTH = (1 << 20) - MAX_HEADER_LENGTH;
+
+    private BinaryFraming() {
+    }
+
+    /**
+     * @param b the first byte of a message
+     * @return true if the message is a frame rather than a text line
+     */
+    static boolean isOpcode(byte b) {
+        return b == OP_MESSAGE;
+    }
+
+    /**
+     * @param payload the message
+     * @return a heap buffer holding the whole frame
+     */
+    static ByteBuffer encode(String payload) {
+        return encode(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ByteBuffer encode(byte[] payload) {
+        byte[] frame = new byte[headerLength(payload.length) + payload.length];
+        int header = writeHeader(frame, payload.length);
+        System.arraycopy(payload, 0, frame, header, payload.length);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * @param payloadLength the number of payload bytes
+     * @return the number of bytes of the opcode and the length
+     */
+    static int headerLength(int payloadLength) {
+        int length = 2;
+        for (int rest = payloadLength >>> 7; rest != 0; rest >>>= 7) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int writeHeader(byte[] frame, int payloadLength) {
+        int i = 0;
+        frame[i++] = OP_MESSAGE;
+        int rest = payloadLength;
+        while ((rest & ~0x7f) != 0) {
+            frame[i++] = (byte) ((rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        frame[i++] = (byte) rest;
+        return i;
+    }
+
+    /**
+     * Check how much of a frame has been received.
+     *
+     * @param buffer bytes received, starting with an opcode
+     * @param from   index of the opcode
+     * @param to     index after the last byte received
+     * @return the length of the header if the whole frame has been received, 0 if more bytes are needed
+     * @throws IOException if the length is malformed or larger than allowed
+     */
+    static int completeHeader(byte[] buffer, int from, int to) throws IOException {
+        int length = 0;
+        int shift = 0;
+        for (int i = from + 1; i < to; i++) {
+            int b = buffer[i] & 0xff;
+            length |= (b & 0x7f) << shift;
+            if (length > MAX_PAYLOAD_LENGTH) {
+                throw new IOException("frame too long");
+            }
+            if ((b & 0x80) == 0) {
+                int header = i + 1 - from;
+                return to - from - header >= length ? header : 0;
+            }
+            shift += 7;
+            if (i + 1 - from >= MAX_HEADER_LENGTH) {
+                throw new IOException("malformed frame length");
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param buffer bytes holding a complete header
+     * @param from   index of the opcode
+     * @return the payload length stored in the header
+     */
+    static int payloadLength(byte[] buffer, int from) {
+        int length = 0;
+        int shift = 0;
+        for (int i = from + 1; ; i++) {
+            int b = buffer[i] & 0xff;
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package g53sqm.chat.server;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Queues a broadcast frame for every recipient. Small recipient sets are handled on the calling
+ * thread, larger ones are split into shards that worker threads queue in parallel.
+ * The caller always waits for the whole fan-out, so broadcasts of one sender keep their order.
+ */
+class BroadcastFanOut {
+
+    private final int threshold;
+    private final int shardSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threshold the number of recipients from which the fan-out is sharded, 0 to never shard
+     * @param threads   the number of worker threads, sharding is off with fewer than 2
+     */
+    BroadcastFanOut(int threshold, int threads) {
+        this.threshold = threads > 1 ? threshold : 0;
+        this.shardSize = Math.max(64, threshold / threads);
+        this.pool = this.threshold > 0 ? new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+                };
+                t.setName("broadcast-fanout-" + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
+            }
+        }, null, false) : null;
+    }
+
+    BroadcastFanOut(ServerConfig config) {
+        this(config.getFanOutThreshold(), config.getFanOutThreads());
+    }
+
+    /**
+     * @param recipients the connections to send to
+     * @param frame      the encoded message
+     */
+    void send(Connection[] recipients, Frame frame) {
+        if (pool == null || recipients.length < threshold) {
+            sendRange(recipients, 0, recipients.length, frame);
+        } else {
+            pool.invoke(new Shard(recipients, 0, recipients.length, frame));
+        }
+    }
+
+    boolean isSharded(int recipients) {
+        return pool != null && recipients >= threshold;
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static void sendRange(Connection[] recipients, int from, int to, Frame frame) {
+        for (int i = from; i < to; i++) {
+            recipients[i].sendFrame(frame);
+        }
+    }
+
+    private final class Shard extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Connection[] recipients;
+        private final int from;
+        private final int to;
+        private final Frame frame;
+
+        private Shard(Connection[] recipients, int from, int to, Frame frame) {
+            this.recipients = recipients;
+            this.from = from;
+            this.to = to;
+            this.frame = frame;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= shardSize) {
+                sendRange(recipients, from, to, frame);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Shard(recipients, from, middle, frame), new Shard(recipients, middle, to, frame));
+        }
+    }
+}
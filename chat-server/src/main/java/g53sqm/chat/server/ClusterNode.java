@@ -0,0 +1,520 @@
+package g53sqm.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One Server of a cluster. Nodes find each other through a membership directory every node can
+ * reach, on a shared disk for nodes on more than one host, where each node keeps a file named
+ * after the address of its inter-node link while it runs.
+ * <p>
+ * Every node keeps a link to every other node, a TCP connection carrying BinaryFraming frames
+ * that each hold one event: the users logging in and out on the sending node, its broadcasts and
+ * the private messages for users it does not hold. A link's frames are queued and a writer
+ * thread sends everything queued in one write, so a burst of broadcasts costs few system calls.
+ * Each node learns from the events which users the others hold, and when a link connects it
+ * starts with the full list, so a node that was unreachable for a while catches up. Two nodes
+ * can take the same name before either hears of the other, then the node with the lowest id keeps
+ * it and the other disconnects its user with BAD IDEN.
+ * Rooms, mailboxes and the message log stay local to each node.
+ * <p>
+ * Links are not authenticated, whoever reaches the cluster port can speak for any user, so the
+ * link listens on the cluster host only and the port must never be exposed beyond the nodes.
+ */
+final class ClusterNode {
+
+    private static final String SUFFIX = ".node";
+    private static final long SCAN_MILLIS = 500;
+    private static final long RECONNECT_MILLIS = 250;
+    private static final int LINK_QUEUE_CAPACITY = 65536;
+    private static final int MAX_WRITE_BATCH = 1024;
+
+    private final Server server;
+    private final ServerLog log;
+    private final File directory;
+    private final ServerSocket listener;
+    private final String nodeId;
+    private final File membership;
+    /** The node holding each user of the other nodes. */
+    private final ConcurrentHashMap<String, String> remoteUsers;
+    private final ConcurrentHashMap<String, Peer> peers;
+    private final Set<Socket> inbound;
+    /** The inbound link each other node is currently sending on. */
+    private final ConcurrentHashMap<String, Socket> currentLinks;
+    private final AtomicLong framesSent;
+    private final AtomicLong batchesSent;
+    private final AtomicLong framesDropped;
+    private volatile boolean closed;
+
+    private ClusterNode(Server server, File directory, ServerSocket listener, String host) {
+        this.server = server;
+        this.log = server.getLog();
+        this.directory = directory;
+        this.listener = listener;
+        this.nodeId = host + ":" + listener.getLocalPort();
+        this.membership = new File(directory, host + "_" + listener.getLocalPort() + SUFFIX);
+        this.remoteUsers = new ConcurrentHashMap<String, String>();
+        this.peers = new ConcurrentHashMap<String, Peer>();
+        this.inbound = ConcurrentHashMap.newKeySet();
+        this.currentLinks = new ConcurrentHashMap<String, Socket>();
+        this.framesSent = new AtomicLong();
+        this.batchesSent = new AtomicLong();
+        this.framesDropped = new AtomicLong();
+    }
+
+    /**
+     * Bind the inter-node link, join the membership directory and start linking to the other nodes.
+     *
+     * @throws IOException if the port cannot be bound or the directory cannot be written
+     */
+    static ClusterNode start(Server server, ServerConfig config) throws IOException {
+        File directory = new File(config.getClusterDir());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create cluster directory " + directory);
+        }
+        ServerSocket listener = new ServerSocket();
+        // Only on the cluster host, the link has no authentication
+        listener.bind(new InetSocketAddress(config.getClusterHost(), config.getClusterPort()));
+        final ClusterNode node = new ClusterNode(server, directory, listener, config.getClusterHost());
+        try {
+            if (!node.membership.createNewFile() && !node.membership.isFile()) {
+                throw new IOException("cannot create " + node.membership);
+            }
+        } catch (IOException e) {
+            listener.close();
+            throw e;
+        }
+        node.startThread("cluster-accept", new Runnable() {
+            @Override
+            public void run() {
+                node.acceptLinks();
+            }
+        });
+        node.startThread("cluster-membership", new Runnable() {
+            @Override
+            public void run() {
+                node.watchMembership();
+            }
+        });
+        return node;
+    }
+
+    /**
+     * @return host:port of this node's inter-node link
+     */
+    String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return true if another node holds a user by that name
+     */
+    boolean hasUser(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    void userJoined(String username) {
+        sendToAll("JOIN " + username);
+    }
+
+    void userLeft(String username) {
+        sendToAll("LEAVE " + username);
+    }
+
+    void forwardBroadcast(String message) {
+        sendToAll("HAIL " + message);
+    }
+
+    /**
+     * Send a private message to the node holding the recipient.
+     *
+     * @return false if no other node holds the user or its link is down
+     */
+    boolean forwardPrivateMessage(String username, String message) {
+        String holder = remoteUsers.get(username);
+        if (holder == null) {
+            return false;
+        }
+        Peer peer = peers.get(holder);
+        return peer != null && peer.send(BinaryFraming.encode("MESG " + username + " " + message));
+    }
+
+    /**
+     * @return the number of nodes this node has a link to
+     */
+    int getConnectedPeerCount() {
+        int connected = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.connected) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    long getFramesSent() {
+        return framesSent.get();
+    }
+
+    /**
+     * @return the number of writes the frames were sent with
+     */
+    long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * Leave the membership directory and close every link.
+     */
+    void close() {
+        closed = true;
+        membership.delete();
+        closeQuietly(listener);
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        for (Socket socket : inbound) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void sendToAll(String event) {
+        ByteBuffer frame = null;
+        for (Peer peer : peers.values()) {
+            if (frame == null) {
+                frame = BinaryFraming.encode(event);
+            }
+            peer.send(frame);
+        }
+    }
+
+    private void watchMembership() {
+        while (!closed) {
+            String[] names = directory.list();
+            Set<String> members = new HashSet<String>();
+            if (names != null) {
+                for (String name : names) {
+                    int separator = name.lastIndexOf('_');
+                    if (name.endsWith(SUFFIX) && separator > 0) {
+                        String host = name.substring(0, separator);
+                        String port = name.substring(separator + 1, name.length() - SUFFIX.length());
+                        String member = host + ":" + port;
+                        members.add(member);
+                        if (!member.equals(nodeId) && !peers.containsKey(member)) {
+                            try {
+                                addPeer(member, host, Integer.parseInt(port));
+                            } catch (NumberFormatException e) {
+                                // Not a membership file
+                            }
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<String, Peer> peer : peers.entrySet()) {
+                if (!members.contains(peer.getKey()) && peers.remove(peer.getKey(), peer.getValue())) {
+                    log.info("cluster node left ", peer.getKey());
+                    peer.getValue().close();
+                }
+            }
+            try {
+                Thread.sleep(SCAN_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void addPeer(String member, String host, int port) {
+        final Peer peer = new Peer(member, host, port);
+        peers.put(member, peer);
+        log.info("cluster node found ", member);
+        startThread("cluster-link-to-" + member, new Runnable() {
+            @Override
+            public void run() {
+                peer.run();
+            }
+        });
+    }
+
+    private void acceptLinks() {
+        while (!closed) {
+            try {
+                final Socket socket = listener.accept();
+                inbound.add(socket);
+                startThread("cluster-link-from-" + socket.getRemoteSocketAddress(), new Runnable() {
+                    @Override
+                    public void run() {
+                        readLink(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!closed) {
+                    log.error("error accepting a cluster link", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the events another node sends, until its link closes and its users are forgotten.
+     * A node that reconnects replaces its link, the link it replaced stops applying events and
+     * leaves the users alone, they belong to the new link.
+     */
+    private void readLink(Socket socket) {
+        String from = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            String hello = readFrame(in);
+            if (!hello.startsWith("HELLO ")) {
+                throw new IOException("cluster link did not start with HELLO");
+            }
+            from = hello.substring(6);
+            currentLinks.put(from, socket);
+            // The users sent next replace whatever an earlier link said
+            forgetUsersOf(from);
+            while (!closed) {
+                String event = readFrame(in);
+                if (currentLinks.get(from) != socket) {
+                    break;
+                }
+                handleEvent(from, event);
+            }
+        } catch (EOFException e) {
+            // The other node closed the link
+        } catch (IOException e) {
+            if (!closed) {
+                log.error("error reading a cluster link", e);
+            }
+        } finally {
+            inbound.remove(socket);
+            closeQuietly(socket);
+            if (from != null && currentLinks.remove(from, socket)) {
+                forgetUsersOf(from);
+            }
+        }
+    }
+
+    private void handleEvent(String from, String event) {
+        int space = event.indexOf(' ');
+        String type = space < 0 ? event : event.substring(0, space);
+        String rest = space < 0 ? "" : event.substring(space + 1);
+        switch (type) {
+            case "JOIN":
+                if (server.hasLocalUser(rest)) {
+                    if (nodeId.compareTo(from) < 0) {
+                        // This node keeps the name, the other drops its user on our JOIN
+                        break;
+                    }
+                    server.dropUserTakenElsewhere(rest);
+                }
+                joined(rest, from);
+                break;
+
+            case "LEAVE":
+                remoteUsers.remove(rest, from);
+                break;
+
+            case "HAIL":
+                server.deliverBroadcast(rest);
+                break;
+
+            case "MESG":
+                int end = rest.indexOf(' ');
+                if (end > 0) {
+                    server.deliverLocalPrivateMessage(rest.substring(end + 1), rest.substring(0, end));
+                }
+                break;
+
+            default:
+                log.error("unknown cluster event from " + from + ": " + type);
+                break;
+        }
+    }
+
+    /**
+     * Record the node holding a user. Should two nodes hold the name the lowest node id wins,
+     * so every node ends up agreeing whichever JOIN arrived first.
+     */
+    private void joined(String username, String node) {
+        while (true) {
+            String holder = remoteUsers.putIfAbsent(username, node);
+            if (holder == null || holder.compareTo(node) <= 0 || remoteUsers.replace(username, holder, node)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if a node with a lower id holds the user, so this node must not keep the name
+     */
+    boolean losesClaim(String username) {
+        String holder = remoteUsers.get(username);
+        return holder != null && holder.compareTo(nodeId) < 0;
+    }
+
+    private void forgetUsersOf(String node) {
+        for (Map.Entry<String, String> user : remoteUsers.entrySet()) {
+            if (user.getValue().equals(node)) {
+                remoteUsers.remove(user.getKey(), node);
+            }
+        }
+    }
+
+    private static String readFrame(DataInputStream in) throws IOException {
+        if (in.readByte() != BinaryFraming.OP_MESSAGE) {
+            throw new IOException("not a cluster frame");
+        }
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift > 21) {
+                throw new IOException("cluster frame too long");
+            }
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * The link to another node, connected and reconnected by its own writer thread.
+     * Frames are only queued while the link is up, the list of users sent on connecting
+     * covers the JOIN and LEAVE events missed while it was down.
+     */
+    private final class Peer {
+        private final String member;
+        private final String host;
+        private final int port;
+        private final ArrayBlockingQueue<ByteBuffer> queue;
+        private volatile boolean connected;
+        private volatile boolean stopped;
+        private volatile Socket socket;
+
+        Peer(String member, String host, int port) {
+            this.member = member;
+            this.host = host;
+            this.port = port;
+            this.queue = new ArrayBlockingQueue<ByteBuffer>(LINK_QUEUE_CAPACITY);
+        }
+
+        /**
+         * @return false if the link is down or too far behind
+         */
+        boolean send(ByteBuffer frame) {
+            if (connected && queue.offer(frame)) {
+                return true;
+            }
+            framesDropped.incrementAndGet();
+            return false;
+        }
+
+        void run() {
+            List<ByteBuffer> batch = new ArrayList<ByteBuffer>(MAX_WRITE_BATCH);
+            while (!stopped && !closed) {
+                try {
+                    Socket s = new Socket(host, port);
+                    socket = s;
+                    s.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+                    queue.clear();
+                    connected = true;
+                    log.info("cluster link up to ", member);
+                    writeFrame(out, BinaryFraming.encode("HELLO " + nodeId));
+                    for (String user : server.getRegisteredUsernames()) {
+                        writeFrame(out, BinaryFraming.encode("JOIN " + user));
+                    }
+                    out.flush();
+                    while (!stopped && !closed) {
+                        ByteBuffer first = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (first != null) {
+                            batch.add(first);
+                            queue.drainTo(batch, MAX_WRITE_BATCH - 1);
+                            for (ByteBuffer frame : batch) {
+                                writeFrame(out, frame);
+                            }
+                            out.flush();
+                            framesSent.addAndGet(batch.size());
+                            batchesSent.incrementAndGet();
+                            batch.clear();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (connected) {
+                        log.info("cluster link down to ", member);
+                    }
+                } finally {
+                    connected = false;
+                    batch.clear();
+                    if (socket != null) {
+                        closeQuietly(socket);
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            stopped = true;
+            Socket s = socket;
+            if (s != null) {
+                closeQuietly(s);
+            }
+        }
+
+        private void writeFrame(OutputStream out, ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.arrayOffset(), frame.limit());
+        }
+    }
+}
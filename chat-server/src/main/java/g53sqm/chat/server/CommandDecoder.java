@@ -0,0 +1,191 @@
+package g53sqm.chat.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a command line straight from the bytes it was read into.
+ * The verb and the position of the argument are found without creating any objects,
+ * the argument is only turned into a String when a command actually needs it.
+ * The results match those of parsing the decoded line with String.substring and String.trim.
+ * An instance is reused for every line of one connection and must only be used by its reading thread.
+ */
+final class CommandDecoder {
+
+    enum Verb {
+        LIST, STAT, QUIT, IDEN, HAIL, MESG, PRES, JOIN, PART, MODE, HIST, PONG,
+        /**
+         * The line is shorter than a verb.
+         */
+        INVALID,
+        /**
+         * The verb is unknown or a verb that needs an argument has none.
+         */
+        UNRECOGNISED
+    }
+
+    private static final int VERB_LENGTH = 4;
+
+    private static final int LIST = verb("LIST");
+    private static final int STAT = verb("STAT");
+    private static final int QUIT = verb("QUIT");
+    private static final int IDEN = verb("IDEN");
+    private static final int HAIL = verb("HAIL");
+    private static final int MESG = verb("MESG");
+    private static final int PRES = verb("PRES");
+    private static final int JOIN = verb("JOIN");
+    private static final int PART = verb("PART");
+    private static final int MODE = verb("MODE");
+    private static final int HIST = verb("HIST");
+    private static final int PONG = verb("PONG");
+
+    private byte[] line;
+    private int argumentStart;
+    private int argumentEnd;
+
+    /**
+     * Decode one line, the bytes must not change until the caller is done with the argument.
+     *
+     * @param line   buffer holding the line
+     * @param offset index of the first byte of the line
+     * @param length number of bytes in the line, without its terminator
+     * @return the verb of the line
+     */
+    Verb decode(byte[] line, int offset, int length) {
+        this.line = line;
+        this.argumentStart = offset;
+        this.argumentEnd = offset;
+        if (length < VERB_LENGTH) {
+            return Verb.INVALID;
+        }
+        int verb = (line[offset] & 0xff) << 24 | (line[offset + 1] & 0xff) << 16
+                | (line[offset + 2] & 0xff) << 8 | (line[offset + 3] & 0xff);
+        if (verb == LIST) {
+            return Verb.LIST;
+        } else if (verb == STAT || verb == HIST) {
+            // STAT and HIST work with or without an argument
+            findArgument(line, offset, length);
+            return verb == STAT ? Verb.STAT : Verb.HIST;
+        } else if (verb == QUIT) {
+            return Verb.QUIT;
+        } else if (verb == PRES) {
+            return Verb.PRES;
+        } else if (verb == PONG) {
+            return Verb.PONG;
+        } else if (verb == IDEN || verb == HAIL || verb == MESG) {
+            if (!findArgument(line, offset, length)) {
+                return Verb.UNRECOGNISED;
+            }
+            return verb == IDEN ? Verb.IDEN : verb == HAIL ? Verb.HAIL : Verb.MESG;
+        } else if (verb == JOIN || verb == PART || verb == MODE) {
+            if (!findArgument(line, offset, length)) {
+                return Verb.UNRECOGNISED;
+            }
+            return verb == JOIN ? Verb.JOIN : verb == PART ? Verb.PART : Verb.MODE;
+        } else if (utf16Length(line, offset, length) < VERB_LENGTH) {
+            return Verb.INVALID;
+        }
+        return Verb.UNRECOGNISED;
+    }
+
+    /**
+     * Locate the argument of a line starting with a verb.
+     *
+     * @return false if the trimmed line has nothing after the verb
+     */
+    private boolean findArgument(byte[] line, int offset, int length) {
+        // The verb starts with a letter so only the end of the line can need trimming
+        int end = offset + length;
+        while (end > offset && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (end - offset <= VERB_LENGTH) {
+            return false;
+        }
+        // The character after the verb is skipped whatever it is, like substring(5) does
+        int separator = offset + VERB_LENGTH;
+        argumentStart = Math.min(end, separator + sequenceLength(line[separator]));
+        argumentEnd = end;
+        return true;
+    }
+
+    boolean hasArgument() {
+        return argumentEnd > argumentStart;
+    }
+
+    /**
+     * @return everything after the verb and the character following it
+     */
+    String argument() {
+        return text(argumentStart, argumentEnd);
+    }
+
+    /**
+     * @return the argument up to its first space
+     */
+    String firstWord() {
+        int space = firstSpace();
+        return text(argumentStart, space < 0 ? argumentEnd : space);
+    }
+
+    /**
+     * @return the argument after its first space, or null if it has no space
+     */
+    String afterFirstWord() {
+        int space = firstSpace();
+        return space < 0 ? null : text(space + 1, argumentEnd);
+    }
+
+    boolean argumentHasSpace() {
+        return firstSpace() >= 0;
+    }
+
+    private int firstSpace() {
+        for (int i = argumentStart; i < argumentEnd; i++) {
+            if (line[i] == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String text(int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static int verb(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    /**
+     * @param lead the first byte of a UTF-8 sequence
+     * @return the number of bytes in the sequence
+     */
+    private static int sequenceLength(byte lead) {
+        if ((lead & 0x80) == 0) {
+            return 1;
+        } else if ((lead & 0xe0) == 0xc0) {
+            return 2;
+        } else if ((lead & 0xf0) == 0xe0) {
+            return 3;
+        } else if ((lead & 0xf8) == 0xf0) {
+            return 4;
+        }
+        return 1;
+    }
+
+    /**
+     * Length of the decoded line in chars, only needed to tell short lines of multi byte characters
+     * from unknown verbs.
+     */
+    private static int utf16Length(byte[] line, int offset, int length) {
+        int chars = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = line[i] & 0xff;
+            if ((b & 0xc0) != 0x80) {
+                chars += (b & 0xf8) == 0xf0 ? 2 : 1;
+            }
+        }
+        return chars;
+    }
+}
@@ -1,114 +1,241 @@
 package g53sqm.chat.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Connection implements Runnable {
 
     final static int STATE_UNREGISTERED = 0;
     final static int STATE_REGISTERED = 1;
 
+    private final static int MAX_WRITE_BATCH = 64;
+    private final static int MAX_WRITE_SIZE = 64 * 1024;
+    private final static int MAX_KEPT_WRITE_SIZE = 8 * 1024;
+    private final static int REPLAY_CHUNK = 32;
+    private final static int DEFAULT_HIST_COUNT = 20;
+
     private volatile boolean running;
     private int messageCount;
-    private int state;
+    private volatile int state;
     private Socket client;
     private Server serverReference;
-    private BufferedReader in;
-    private PrintWriter out;
-    private String username;
+    private LineReader in;
+    private OutputStream out;
+    private final CommandDecoder decoder;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean flushScheduled;
+    private final Runnable flushTask;
+    private volatile boolean closeRequested;
+    private volatile String username;
+    private volatile boolean binary;
+    private volatile OutputCompressor compressor;
+    private volatile ByteBuffer compressAfter;
+    private boolean compressing;
+    // Reused by every flush, allocated by the first so idle connections do not pay for them
+    private ByteBuffer[] writeBatch;
+    private byte[] writeBuffer;
+    private final Set<String> rooms;
+    private final Object replayLock;
+    private volatile HistoryReplay replay;
+    private volatile long lastActivity;
+    private final TokenBucket hailLimit;
+    private final TokenBucket mesgLimit;
+    private final TokenBucket listLimit;
 
     Connection(Socket client, Server serverReference) {
         this.serverReference = serverReference;
         this.client = client;
         this.state = STATE_UNREGISTERED;
+        this.decoder = new CommandDecoder();
+        this.outbound = createOutboundQueue(serverReference.getConfig());
+        this.flushScheduled = new AtomicBoolean();
+        this.rooms = ConcurrentHashMap.newKeySet();
+        this.replayLock = new Object();
+        ServerConfig config = serverReference.getConfig();
+        this.hailLimit = TokenBucket.of(config.getHailRate(), config.getHailBurst());
+        this.mesgLimit = TokenBucket.of(config.getMesgRate(), config.getMesgBurst());
+        this.listLimit = TokenBucket.of(config.getListRate(), config.getListBurst());
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        // Running from the start, so that removeDeadUsers never drops a connection that is yet to be served
+        this.running = true;
+        this.lastActivity = System.nanoTime();
         messageCount = 0;
+        if (client != null) {
+            // Opened here rather than in run() as other connections may message this one before it is served
+            try {
+                in = new LineReader(client.getInputStream(), serverReference.getMetrics().getBytesInCounter());
+                out = client.getOutputStream();
+            } catch (IOException e) {
+                serverReference.getLog().error("in or out failed", e);
+            }
+        }
+    }
+
+    /**
+     * Constructor for connections whose transport is not a blocking socket,
+     * subclasses are then responsible for reading lines and writing messages.
+     *
+     * @param serverReference the server this connection belongs to
+     */
+    protected Connection(Server serverReference) {
+        this(null, serverReference);
     }
 
     public void run() {
-        String line;
-        try {
-            in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            out = new PrintWriter(client.getOutputStream(), true);
-        } catch (IOException e) {
-            System.out.println("in or out failed");
-            System.exit(-1);
+        if (in == null || out == null) {
+            running = false;
+            serverReference.removeConnection(this);
+            return;
         }
-        running = true;
-        this.sendOverConnection("OK CONNECT Welcome to the chat server, there are currently " + serverReference.getNumberOfUsers() + " user(s) online");
+        open();
         while (running) {
             try {
-                line = in.readLine();
-                if (line != null) {
-                    validateMessage(line);
+                if (in.nextLine()) {
+                    handleLine(in.lineBuffer(), in.lineOffset(), in.lineLength());
                 } else {
                     running = false;
                 }
 
             } catch (IOException e) {
                 running = false;
-                System.out.println("Read failed");
+                serverReference.getLog().warn("Read failed for " + describe());
             }
         }
         if (!running) {
-            serverReference.removeDeadUsers();
+            serverReference.getLog().info("disconnect ", describe());
+            closeConnection();
+            serverReference.removeConnection(this);
         }
     }
 
-    private void validateMessage(String message) {
-        if (message.length() < 4) {
-            sendOverConnection("BAD VALD invalid command to server");
-        } else {
-            String trimmed = message.trim();
-            switch (message.substring(0, 4)) {
-                case "LIST":
+    /**
+     * Marks the connection as running and greets the client.
+     */
+    void open() {
+        running = true;
+        this.sendOverConnection("OK CONNECT Welcome to the chat server, there are currently " + serverReference.getNumberOfUsers() + " user(s) online");
+    }
+
+    /**
+     * Handles a single line received from the client.
+     *
+     * @param line the line without its line terminator
+     */
+    void handleLine(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        handleLine(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Handles a single line received from the client, straight from the buffer it was read into.
+     *
+     * @param buffer the bytes read from the client
+     * @param offset index of the first byte of the line
+     * @param length length of the line without its line terminator
+     */
+    void handleLine(byte[] buffer, int offset, int length) {
+        long start = System.nanoTime();
+        lastActivity = start;
+        CommandDecoder.Verb verb = decoder.decode(buffer, offset, length);
+        switch (verb) {
+            case INVALID:
+                sendOverConnection("BAD VALD invalid command to server");
+                break;
+
+            case LIST:
+                if (withinLimit(listLimit, verb)) {
                     list();
-                    break;
+                }
+                break;
 
-                case "STAT":
-                    stat();
-                    break;
+            case STAT:
+                stat();
+                break;
 
-                case "QUIT":
-                    quit();
-                    break;
+            case QUIT:
+                quit();
+                break;
 
-                case "IDEN":
-                    if (trimmed.length() >= 5) {
-                        iden(trimmed.substring(5));
-                    } else {
-                        sendOverConnection("BAD VALD command not recognised");
-                    }
-                    break;
+            case IDEN:
+                iden();
+                break;
 
-                case "HAIL":
-                    if (trimmed.length() >= 5) {
-                        hail(trimmed.substring(5));
-                    } else {
-                        sendOverConnection("BAD VALD command not recognised");
-                    }
-                    break;
+            case HAIL:
+                if (withinLimit(hailLimit, verb)) {
+                    hail();
+                }
+                break;
 
-                case "MESG":
-                    if (trimmed.length() >= 5) {
-                        mesg(trimmed.substring(5));
-                    } else {
-                        sendOverConnection("BAD VALD command not recognised");
-                    }
-                    break;
+            case MESG:
+                if (withinLimit(mesgLimit, verb)) {
+                    mesg();
+                }
+                break;
 
-                default:
-                    sendOverConnection("BAD VALD command not recognised");
-                    break;
-            }
+            case PRES:
+                pres();
+                break;
+
+            case JOIN:
+                join();
+                break;
+
+            case PART:
+                part();
+                break;
+
+            case MODE:
+                mode();
+                break;
+
+            case HIST:
+                hist();
+                break;
+
+            case PONG:
+                // Answer to a heartbeat, receiving it is all that matters
+                break;
+
+            default:
+                sendOverConnection("BAD VALD command not recognised");
+                break;
         }
+        serverReference.getMetrics().commandHandled(verb, System.nanoTime() - start);
+    }
 
+    /**
+     * Take a token for a command, the client is told off if it has none left.
+     *
+     * @param limit the bucket of the command, null if it is not limited
+     * @return true if the command may go ahead
+     */
+    private boolean withinLimit(TokenBucket limit, CommandDecoder.Verb verb) {
+        if (limit == null || limit.tryAcquire()) {
+            return true;
+        }
+        serverReference.getMetrics().rateLimited(verb);
+        sendOverConnection("BAD " + verb + " you are sending too fast, slow down");
+        return false;
     }
 
     private void stat() {
+        if (decoder.hasArgument() && "ADMIN".equals(decoder.firstWord())) {
+            adminStat(decoder.afterFirstWord());
+            return;
+        }
         String status = "There are currently " + serverReference.getNumberOfUsers() + " user(s) on the server ";
         switch (state) {
             case STATE_REGISTERED:
@@ -122,15 +249,28 @@ public class Connection implements Runnable {
         sendOverConnection("OK STAT " + status);
     }
 
+    /**
+     * STAT ADMIN &lt;token&gt; replies with every server metric on one line.
+     *
+     * @param token the token given by the client, null if none
+     */
+    private void adminStat(String token) {
+        String expected = serverReference.getConfig().getAdminToken();
+        if (expected == null) {
+            sendOverConnection("BAD STAT admin statistics are disabled");
+        } else if (token == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8))) {
+            serverReference.getLog().warn("STAT ADMIN with a wrong token from " + describe());
+            sendOverConnection("BAD STAT invalid admin token");
+        } else {
+            sendOverConnection("OK STAT " + serverReference.getMetrics().render(" "));
+        }
+    }
+
     private void list() {
         switch (state) {
             case STATE_REGISTERED:
-                ArrayList<String> userList = serverReference.getUserList();
-                String userListString = new String();
-                for (String s : userList) {
-                    userListString += s + ", ";
-                }
-                sendOverConnection("OK LIST " + userListString);
+                sendFrame(serverReference.getUserListFrame());
                 break;
 
             case STATE_UNREGISTERED:
@@ -140,29 +280,264 @@ public class Connection implements Runnable {
 
     }
 
-    private void iden(String message) {
+    /**
+     * Subscribe to presence events, the client gets the users online now followed by
+     * a JOIN or LEAVE line whenever someone registers or leaves.
+     */
+    private void pres() {
+        switch (state) {
+            case STATE_REGISTERED:
+                serverReference.subscribePresence(this);
+                break;
+
+            case STATE_UNREGISTERED:
+                sendOverConnection("BAD PRES You have not logged in yet");
+                break;
+        }
+    }
+
+    private void iden() {
         switch (state) {
             case STATE_REGISTERED:
                 sendOverConnection("BAD IDEN you are already registered with username " + username);
                 break;
 
             case STATE_UNREGISTERED:
-                String username = message.split(" ")[0];
-                if (serverReference.doesUserExist(username)) {
+                String username = decoder.firstWord();
+                if (Frame.hasLineBreak(username)) {
+                    sendOverConnection("BAD IDEN username must not contain line breaks");
+                    break;
+                }
+                // Set first, so that a removeConnection racing with the registration frees the name
+                this.username = username;
+                if (!serverReference.registerUser(username, this)) {
+                    this.username = null;
                     sendOverConnection("BAD IDEN username is already taken");
+                } else if (!running) {
+                    // Stopped meanwhile, removeConnection may have looked before the name was taken
+                    serverReference.unregisterUser(this);
                 } else {
-                    this.username = username;
                     state = STATE_REGISTERED;
+                    serverReference.getLog().info("IDEN ", username);
                     sendOverConnection("OK IDEN Welcome to the chat server " + username);
+                    for (String pm : serverReference.checkInMailbox(username)) {
+                        sendOverConnection(pm);
+                    }
+                    int replayed = serverReference.getConfig().getHistoryReplay();
+                    if (replayed > 0) {
+                        startReplay(serverReference.getHistory().replay(replayed, false));
+                    }
                 }
                 break;
         }
     }
 
-    private void hail(String message) {
+    /**
+     * MODE BINARY switches the connection to BinaryFraming. The reply is the last text line the
+     * connection queues itself, the client may send frames straight after its request.
+     * Messages other threads queue around the switch can still be text lines, which clients tell
+     * apart from frames by their first byte.
+     * MODE DEFLATE compresses everything the server sends after the reply, see OutputCompressor.
+     */
+    private void mode() {
+        String mode = decoder.firstWord();
+        if ("BINARY".equals(mode)) {
+            if (binary) {
+                sendOverConnection("BAD MODE already in binary mode");
+            } else {
+                acceptFrames();
+                sendOverConnection("OK MODE BINARY");
+                binary = true;
+            }
+        } else if ("DEFLATE".equals(mode)) {
+            int level = serverReference.getConfig().getCompressionLevel();
+            if (level == 0) {
+                sendOverConnection("BAD MODE compression is disabled on this server");
+            } else if (compressor != null) {
+                sendOverConnection("BAD MODE already compressed");
+            } else {
+                compressor = new OutputCompressor(level);
+                ByteBuffer reply = binary ? BinaryFraming.encode("OK MODE DEFLATE") : Frame.encodeLine("OK MODE DEFLATE");
+                // The writer starts compressing right after the reply, if the reply is dropped neither side switches
+                compressAfter = reply;
+                enqueue(reply);
+            }
+        } else {
+            sendOverConnection("BAD MODE unknown mode, use BINARY or DEFLATE");
+        }
+    }
+
+    /**
+     * HIST replays the last public broadcasts, HIST n the last n of them.
+     */
+    private void hist() {
+        switch (state) {
+            case STATE_REGISTERED:
+                int max = serverReference.getConfig().getHistoryMax();
+                int count = DEFAULT_HIST_COUNT;
+                if (decoder.hasArgument()) {
+                    try {
+                        count = Integer.parseInt(decoder.firstWord());
+                    } catch (NumberFormatException e) {
+                        count = -1;
+                    }
+                }
+                if (count < 1 || count > max) {
+                    sendOverConnection("BAD HIST the number of messages must be between 1 and " + max);
+                } else if (!startReplay(serverReference.getHistory().replay(count, true))) {
+                    sendOverConnection("BAD HIST a replay is already in progress");
+                }
+                break;
+
+            case STATE_UNREGISTERED:
+                sendOverConnection("BAD HIST You have not logged in yet");
+                break;
+        }
+    }
+
+    /**
+     * Replay history once the writer has written what is queued now.
+     *
+     * @return false if a replay is in progress already
+     */
+    private boolean startReplay(HistoryReplay next) {
+        synchronized (replayLock) {
+            if (replay != null) {
+                return false;
+            }
+            replay = next;
+        }
+        // Even with nothing queued the writer runs, and continues the replay when it is done
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Queue the next chunk of the history replay, if there is one. Called by the writer whenever it
+     * has written everything queued, so a replay never fills the queue and live messages are never
+     * stuck behind a long replay. Broadcasts older than the ring are read from the message log by a
+     * task on the writer executor, never by an event loop, and the replay carries on once they are in.
+     */
+    void continueReplay() {
+        if (replay == null) {
+            return;
+        }
+        synchronized (replayLock) {
+            final HistoryReplay current = replay;
+            if (current == null || current.isLoading()) {
+                return;
+            }
+            if (current.needsOlder()) {
+                current.setLoading(true);
+                serverReference.getWriterExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Frame> older = current.loadOlder();
+                        synchronized (replayLock) {
+                            current.setOlder(older);
+                            current.setLoading(false);
+                        }
+                        continueReplay();
+                    }
+                });
+                return;
+            }
+            List<Frame> chunk = current.nextChunk(Math.max(1, Math.min(REPLAY_CHUNK, outbound.capacity() / 2)));
+            if (current.isComplete()) {
+                replay = null;
+            }
+            for (Frame frame : chunk) {
+                sendFrame(frame);
+            }
+        }
+    }
+
+    /**
+     * @return true if a replay can queue its next chunk now
+     */
+    private boolean replayReady() {
+        HistoryReplay current = replay;
+        return current != null && !current.isLoading();
+    }
+
+    /**
+     * Read frames from now on, called on the reading thread before it reads the next message.
+     */
+    protected void acceptFrames() {
+        if (in != null) {
+            in.acceptFrames();
+        }
+    }
+
+    /**
+     * JOIN #room makes the client a member of the room, creating it if needed.
+     */
+    private void join() {
         switch (state) {
             case STATE_REGISTERED:
-                serverReference.broadcastMessage("Broadcast from " + username + ": " + message);
+                String room = decoder.firstWord();
+                if (!Room.isValidName(room)) {
+                    sendOverConnection("BAD JOIN room names start with " + Room.PREFIX + " and have at most "
+                            + Room.MAX_NAME_LENGTH + " characters");
+                } else if (serverReference.joinRoom(room, this)) {
+                    serverReference.getLog().info("JOIN " + room + " ", username);
+                    sendOverConnection("OK JOIN you have joined " + room + ", there are " + serverReference.getRoomSize(room) + " member(s)");
+                } else {
+                    sendOverConnection("BAD JOIN you are already in " + room);
+                }
+                break;
+
+            case STATE_UNREGISTERED:
+                sendOverConnection("BAD JOIN You have not logged in yet");
+                break;
+        }
+    }
+
+    private void part() {
+        switch (state) {
+            case STATE_REGISTERED:
+                String room = decoder.firstWord();
+                if (serverReference.partRoom(room, this)) {
+                    serverReference.getLog().info("PART " + room + " ", username);
+                    sendOverConnection("OK PART you have left " + room);
+                } else {
+                    sendOverConnection("BAD PART you are not in " + room);
+                }
+                break;
+
+            case STATE_UNREGISTERED:
+                sendOverConnection("BAD PART You have not logged in yet");
+                break;
+        }
+    }
+
+    /**
+     * HAIL message goes to everyone, HAIL #room message only to the members of the room.
+     */
+    private void hail() {
+        switch (state) {
+            case STATE_REGISTERED:
+                String first = decoder.firstWord();
+                boolean toRoom = Room.isValidName(first) && decoder.argumentHasSpace();
+                // Only a broadcast that is sent takes from the budget
+                if (toRoom && !rooms.contains(first)) {
+                    sendOverConnection("BAD HAIL you are not in " + first);
+                    break;
+                }
+                if (!serverReference.tryBroadcast()) {
+                    serverReference.getMetrics().broadcastLimited();
+                    sendOverConnection("BAD HAIL the server is too busy to broadcast, try again later");
+                    break;
+                }
+                if (toRoom) {
+                    if (!serverReference.broadcastToRoom(first, this,
+                            "Broadcast from " + username + " to " + first + ": " + decoder.afterFirstWord())) {
+                        sendOverConnection("BAD HAIL you are not in " + first);
+                        break;
+                    }
+                } else {
+                    serverReference.broadcastMessage("Broadcast from " + username + ": " + decoder.argument());
+                }
                 messageCount++;
                 break;
 
@@ -176,17 +551,24 @@ public class Connection implements Runnable {
         return running;
     }
 
-    private void mesg(String message) {
+    private void mesg() {
 
         switch (state) {
             case STATE_REGISTERED:
 
-                if (message.contains(" ")) {
-                    int messageStart = message.indexOf(" ");
-                    String user = message.substring(0, messageStart);
-                    String pm = message.substring(messageStart + 1);
-                    if (serverReference.sendPrivateMessage("PM from " + username + ":" + pm, user)) {
-                        sendOverConnection("OK MESG your message has been sent");
+                if (decoder.argumentHasSpace()) {
+                    String user = decoder.firstWord();
+                    String pm = decoder.afterFirstWord();
+                    Mailboxes.Deposit outcome = serverReference.deliverPrivateMessage("PM from " + username + ":" + pm, user);
+                    if (outcome == null || outcome == Mailboxes.Deposit.STORED) {
+                        ServerLog log = serverReference.getLog();
+                        if (log.isEnabled(ServerLog.Level.INFO)) {
+                            log.info("MESG from " + username + " to " + user);
+                        }
+                        sendOverConnection(outcome == null ? "OK MESG your message has been sent"
+                                : "OK MESG " + user + " is offline, your message will be delivered when they log in");
+                    } else if (outcome == Mailboxes.Deposit.FULL) {
+                        sendOverConnection("BAD MESG the mailbox of " + user + " is full");
                     } else {
                         sendOverConnection("BAD MESG the user does not exist");
                     }
@@ -210,23 +592,319 @@ public class Connection implements Runnable {
                 sendOverConnection("OK QUIT goodbye");
                 break;
         }
+        serverReference.getLog().info("QUIT ", describe());
         running = false;
+        closeConnection();
+        serverReference.removeConnection(this);
+    }
+
+    /**
+     * Marks the connection as no longer running, used by transports that detect
+     * the end of the stream themselves.
+     */
+    void stopRunning() {
+        running = false;
+    }
+
+    /**
+     * @return the System.nanoTime at which the client last sent a line
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Ask the client to show it is still there, it answers with PONG.
+     */
+    void ping() {
+        // A client whose queue is full is not reading, waiting for room would only stall the reaper
+        if (outbound.size() < outbound.capacity()) {
+            sendOverConnection("PING");
+        }
+    }
+
+    /**
+     * Close a connection whose username another node of the cluster won at the same moment.
+     */
+    void nameTakenElsewhere() {
+        serverReference.getLog().info("name taken on another node by ", describe());
+        sendOverConnection("BAD IDEN username is already taken");
+        running = false;
+        closeConnection();
+        serverReference.removeConnection(this);
+    }
+
+    /**
+     * Close a connection whose client stopped answering, whatever is still queued is discarded.
+     */
+    void reap() {
+        serverReference.getLog().info("reaping idle ", describe());
+        running = false;
+        abort();
+        serverReference.removeConnection(this);
+    }
+
+    /**
+     * Close the connection once everything queued so far has been written.
+     */
+    protected void closeConnection() {
+        closeRequested = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Close the connection straight away, discarding whatever is still queued.
+     */
+    protected void abort() {
+        closeRequested = true;
+        outbound.clear();
+        closeSocket();
+    }
+
+    private void closeSocket() {
         try {
             client.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            serverReference.getLog().error("error closing connection of " + describe(), e);
         }
-        serverReference.removeDeadUsers();
     }
 
-    private synchronized void sendOverConnection(String message) {
-        out.println(message);
+    /**
+     * Called from the constructor, so implementations must not rely on subclass fields.
+     *
+     * @param config the server options
+     * @return the queue holding this connection's pending output
+     */
+    protected OutboundQueue createOutboundQueue(ServerConfig config) {
+        return new OutboundQueue(config);
+    }
+
+    boolean isCloseRequested() {
+        return closeRequested;
+    }
+
+    /**
+     * @return true once the socket is closed
+     */
+    boolean isClosed() {
+        return client == null || client.isClosed();
+    }
+
+    /**
+     * @return the number of messages queued but not written yet
+     */
+    int getPendingCount() {
+        return outbound.size();
+    }
+
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Queue a line for the client, the line is written later by the connection's writer.
+     *
+     * @param message the line to send, without line terminator
+     */
+    protected void sendOverConnection(String message) {
+        enqueue(binary ? BinaryFraming.encode(message) : Frame.encodeLine(message));
+    }
+
+    /**
+     * Queue a frame that is shared with other recipients, no bytes are copied or encoded.
+     *
+     * @param frame the encoded line
+     */
+    void sendFrame(Frame frame) {
+        enqueue(binary ? frame.binaryView() : frame.view());
+    }
+
+    /**
+     * Queue encoded bytes for the client, applying the slow consumer policy if the queue is full.
+     *
+     * @param message the bytes to send
+     */
+    void enqueue(ByteBuffer message) {
+        if (closeRequested) {
+            return;
+        }
+        if (outbound.offer(message)) {
+            scheduleFlush();
+        } else {
+            serverReference.getLog().warn("Disconnecting slow consumer " + describe());
+            serverReference.getMetrics().slowConsumerDisconnected();
+            abort();
+        }
+    }
+
+    /**
+     * Make sure a writer will drain the outbound queue, at most one is ever scheduled per connection
+     * so the order of messages is kept.
+     */
+    protected void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            serverReference.getWriterExecutor().execute(flushTask);
+        }
+    }
+
+    /**
+     * Write everything that is queued, coalescing the pending lines into as few socket writes as possible.
+     * Writes happen on the writer executor so a slow client only ever stalls its own writer.
+     */
+    private void flush() {
+        if (writeBatch == null) {
+            writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+        }
+        ByteBuffer[] batch = writeBatch;
+        while (true) {
+            try {
+                int count;
+                while ((count = outbound.drainTo(batch)) > 0) {
+                    writeBatch(batch, compressBatch(batch, count));
+                }
+                out.flush();
+            } catch (IOException e) {
+                // The reading side notices the broken connection and cleans up
+                closeRequested = true;
+                outbound.clear();
+            }
+            if (closeRequested && outbound.isEmpty()) {
+                // Still owning the flush, so no other writer can compress or write meanwhile.
+                // The flag is never cleared, nothing is written after this
+                closeSocket();
+                releaseCompressor();
+                return;
+            }
+            if (replayReady() && outbound.isEmpty()) {
+                continueReplay();
+                if (!outbound.isEmpty()) {
+                    // The chunk is written by a flush task of its own, behind the writes of other connections
+                    flushScheduled.set(false);
+                    scheduleFlush();
+                    return;
+                }
+            }
+            flushScheduled.set(false);
+            // Go again if work arrived while this thread still owned the flush and nobody else took it
+            boolean pending = !outbound.isEmpty() || closeRequested || replayReady();
+            if (!pending || !flushScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compress, in place, the messages of a drained batch that follow the reply to MODE DEFLATE.
+     * Must only be called by the thread writing for this connection.
+     *
+     * @param batch the drained messages
+     * @param count the number of messages in the batch
+     * @return the number of buffers to write
+     */
+    int compressBatch(ByteBuffer[] batch, int count) {
+        int from = 0;
+        if (!compressing) {
+            ByteBuffer switchAfter = compressAfter;
+            if (switchAfter == null) {
+                return count;
+            }
+            from = -1;
+            for (int i = 0; i < count && from < 0; i++) {
+                if (batch[i] == switchAfter) {
+                    from = i + 1;
+                }
+            }
+            if (from < 0) {
+                return count;
+            }
+            compressing = true;
+            compressAfter = null;
+            if (from == count) {
+                return count;
+            }
+        }
+        int total = 0;
+        for (int i = from; i < count; i++) {
+            total += batch[i].remaining();
+        }
+        ByteBuffer compressed = compressor.compress(batch, from, count);
+        serverReference.getMetrics().compressed(total, compressed.remaining());
+        for (int i = from + 1; i < count; i++) {
+            batch[i] = null;
+        }
+        batch[from] = compressed;
+        return from + 1;
+    }
+
+    /**
+     * Free the compressor once nothing more will be written, must only be called by the writing thread.
+     */
+    void releaseCompressor() {
+        OutputCompressor current = compressor;
+        if (current != null) {
+            compressor = null;
+            compressing = false;
+            current.release();
+        }
+    }
+
+    private void writeBatch(ByteBuffer[] batch, int count) throws IOException {
+        if (count == 1 && batch[0].hasArray()) {
+            ByteBuffer message = batch[0];
+            out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+            serverReference.getMetrics().bytesWritten(message.remaining());
+            batch[0] = null;
+            return;
+        }
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            total += batch[i].remaining();
+        }
+        int wanted = Math.min(total, MAX_WRITE_SIZE);
+        byte[] buffer = writeBuffer;
+        if (buffer == null || buffer.length < wanted) {
+            buffer = new byte[wanted];
+            if (wanted <= MAX_KEPT_WRITE_SIZE) {
+                writeBuffer = buffer;
+            }
+        }
+        int used = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer message = batch[i];
+            while (message.hasRemaining()) {
+                if (used == buffer.length) {
+                    out.write(buffer, 0, used);
+                    used = 0;
+                }
+                int n = Math.min(message.remaining(), buffer.length - used);
+                message.get(buffer, used, n);
+                used += n;
+            }
+            batch[i] = null;
+        }
+        out.write(buffer, 0, used);
+        serverReference.getMetrics().bytesWritten(total);
     }
 
     public void messageForConnection(String message) {
         sendOverConnection(message);
     }
 
+    /**
+     * @return the names of the rooms this connection is a member of, kept up to date by the server
+     */
+    Set<String> getRooms() {
+        return rooms;
+    }
+
+    boolean isCompressed() {
+        return compressing;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
     public int getState() {
         return state;
     }
@@ -234,6 +912,17 @@ public class Connection implements Runnable {
     public String getUserName() {
         return username;
     }
+
+    /**
+     * @return the username, or a placeholder for clients that have not identified yet
+     */
+    String describe() {
+        return username == null ? "unregistered client" : username;
+    }
+
+    Server getServer() {
+        return serverReference;
+    }
 }
 
 	
\ No newline at end of file
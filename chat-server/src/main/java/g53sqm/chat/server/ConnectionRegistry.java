@@ -0,0 +1,101 @@
+package g53sqm.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The set of open connections of a server.
+ * Adding and removing never lock, readers work on an immutable snapshot array that is only
+ * rebuilt after the membership changed, so broadcasting never sees a half updated registry.
+ */
+class ConnectionRegistry {
+
+    private static final Connection[] EMPTY = new Connection[0];
+
+    private final ConcurrentHashMap<Connection, Long> connections;
+    private final AtomicLong sequence;
+    private final AtomicLong version;
+    private volatile Snapshot snapshot;
+
+    ConnectionRegistry() {
+        connections = new ConcurrentHashMap<Connection, Long>();
+        sequence = new AtomicLong();
+        version = new AtomicLong();
+        snapshot = new Snapshot(0, EMPTY);
+    }
+
+    void add(Connection c) {
+        connections.put(c, sequence.incrementAndGet());
+        version.incrementAndGet();
+    }
+
+    /**
+     * @param c the connection to remove
+     * @return true if the connection was still registered
+     */
+    boolean remove(Connection c) {
+        if (connections.remove(c) != null) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param c a connection
+     * @return the position of the connection in accept order, or -1 if it is not registered
+     */
+    long sequenceOf(Connection c) {
+        Long sequence = connections.get(c);
+        return sequence == null ? -1 : sequence;
+    }
+
+    int size() {
+        return connections.size();
+    }
+
+    /**
+     * @return every connection registered at some point during the call, must not be modified
+     */
+    Connection[] snapshot() {
+        Snapshot current = snapshot;
+        long now = version.get();
+        if (current.version != now) {
+            current = new Snapshot(now, connections.keySet().toArray(EMPTY));
+            snapshot = current;
+        }
+        return current.connections;
+    }
+
+    /**
+     * @return the registered connections in the order they were accepted
+     */
+    ArrayList<Connection> inAcceptOrder() {
+        ArrayList<Map.Entry<Connection, Long>> entries = new ArrayList<Map.Entry<Connection, Long>>(connections.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Connection, Long>>() {
+            @Override
+            public int compare(Map.Entry<Connection, Long> a, Map.Entry<Connection, Long> b) {
+                return Long.compare(a.getValue(), b.getValue());
+            }
+        });
+        ArrayList<Connection> ordered = new ArrayList<Connection>(entries.size());
+        for (Map.Entry<Connection, Long> entry : entries) {
+            ordered.add(entry.getKey());
+        }
+        return ordered;
+    }
+
+    private static final class Snapshot {
+        private final long version;
+        private final Connection[] connections;
+
+        private Snapshot(long version, Connection[] connections) {
+            this.version = version;
+            this.connections = connections;
+        }
+    }
+}
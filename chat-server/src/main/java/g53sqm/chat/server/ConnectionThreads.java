@@ -0,0 +1,73 @@
+package g53sqm.chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that connection handlers and their writers run on.
+ */
+final class ConnectionThreads {
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * @param mode the kind of thread wanted
+     * @return an executor starting a new thread of that kind for every task
+     */
+    static Executor forMode(ServerConfig.ThreadMode mode) {
+        if (mode == ServerConfig.ThreadMode.VIRTUAL) {
+            Executor virtual = virtualThreadPerTask();
+            if (virtual != null) {
+                return virtual;
+            }
+            System.err.println("virtual threads are not available on this JVM, using platform threads");
+        }
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        };
+    }
+
+    /**
+     * @param mode the kind of thread wanted
+     * @return an executor for short lived writer tasks, platform threads are pooled and reused
+     */
+    static Executor writers(ServerConfig.ThreadMode mode) {
+        if (mode == ServerConfig.ThreadMode.VIRTUAL) {
+            Executor virtual = virtualThreadPerTask();
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread t = new Thread(task, "connection-writer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Looked up reflectively so the server still builds and runs on JVMs without virtual threads.
+     *
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null when it does not exist
+     */
+    private static Executor virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
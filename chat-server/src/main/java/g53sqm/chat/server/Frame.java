@@ -0,0 +1,96 @@
+package g53sqm.chat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A line of the protocol encoded once and shared between every connection it is sent to.
+ * The bytes live in a heap buffer, each recipient gets its own read-only view with an independent
+ * position so the frame can be written to many sockets at the same time, and no recipient's path
+ * can change the bytes the others are sent.
+ * The binary encoding is only built once a recipient in binary mode asks for it.
+ */
+final class Frame {
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final String text;
+    private final ByteBuffer bytes;
+    private volatile ByteBuffer binary;
+
+    private Frame(String text, ByteBuffer bytes) {
+        this.text = text;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param text the line without terminator, line breaks are only kept in the binary encoding
+     * @return the line encoded as UTF-8 with the line separator appended
+     */
+    static Frame of(String text) {
+        return new Frame(text, encodeLine(text));
+    }
+
+    /**
+     * Encode a line for a single recipient, cheaper than a shared frame when nobody else needs it.
+     *
+     * @param text the line without terminator
+     * @return a heap buffer holding the UTF-8 line and the line separator
+     */
+    static ByteBuffer encodeLine(String text) {
+        byte[] encoded = singleLine(text).getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[encoded.length + LINE_SEPARATOR.length];
+        System.arraycopy(encoded, 0, line, 0, encoded.length);
+        System.arraycopy(LINE_SEPARATOR, 0, line, encoded.length, LINE_SEPARATOR.length);
+        return ByteBuffer.wrap(line);
+    }
+
+    /**
+     * @return a new read-only view of the encoded bytes, positioned at the start
+     */
+    ByteBuffer view() {
+        return bytes.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a new read-only view of the message encoded as a binary frame, positioned at the start
+     */
+    ByteBuffer binaryView() {
+        ByteBuffer encoded = binary;
+        if (encoded == null) {
+            // Encoding twice when two threads race here is harmless, both results are equal
+            encoded = BinaryFraming.encode(text);
+            binary = encoded;
+        }
+        return encoded.asReadOnlyBuffer();
+    }
+
+    /**
+     * Text clients cannot tell a line break inside a message from the end of it, so messages sent
+     * by binary clients reach them on a single line.
+     *
+     * @param text a message
+     * @return the message with every line break replaced by a space
+     */
+    static String singleLine(String text) {
+        if (!hasLineBreak(text)) {
+            return text;
+        }
+        return text.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    static boolean hasLineBreak(String text) {
+        return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @return the number of encoded bytes, line separator included
+     */
+    int size() {
+        return bytes.limit();
+    }
+}
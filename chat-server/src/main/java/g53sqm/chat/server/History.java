@@ -0,0 +1,116 @@
+package g53sqm.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The public broadcasts users can catch up on with HIST and when they log in.
+ * The newest ones are kept as encoded frames in a fixed-size ring, so replaying them copies nothing.
+ * Older ones are read back from the MessageLog when messages are stored, using the log offsets the
+ * ring remembers to know where its own broadcasts start.
+ */
+final class History {
+
+    /**
+     * Bounds the records read from the log for one replay, most of them may be private messages.
+     */
+    private static final int MAX_SCANNED_RECORDS = 1 << 16;
+
+    private final Frame[] frames;
+    private final long[] offsets;
+    private final MessageLog messageLog;
+    private long added;
+
+    /**
+     * @param capacity   the number of broadcasts kept in memory
+     * @param messageLog where older broadcasts are read from, null if only the ring is replayed
+     */
+    History(int capacity, MessageLog messageLog) {
+        this.frames = new Frame[capacity];
+        this.offsets = new long[capacity];
+        this.messageLog = messageLog;
+    }
+
+    /**
+     * @param frame     the broadcast as it was sent
+     * @param logOffset where the message log stores it, -1 if it is not stored
+     */
+    synchronized void add(Frame frame, long logOffset) {
+        if (frames.length == 0) {
+            return;
+        }
+        int slot = (int) (added % frames.length);
+        frames[slot] = frame;
+        offsets[slot] = logOffset;
+        added++;
+    }
+
+    /**
+     * Plan the replay of the newest broadcasts. Only the ring is read here, the log is read
+     * by the replay once it is its turn to write.
+     *
+     * @param count    the number of broadcasts wanted
+     * @param announce whether the replay starts with an OK HIST line giving the count
+     * @return the replay, holding fewer broadcasts if fewer were sent
+     */
+    HistoryReplay replay(int count, boolean announce) {
+        Frame[] recent;
+        long olderBefore;
+        synchronized (this) {
+            int kept = (int) Math.min(added, frames.length);
+            int fromRing = Math.min(count, kept);
+            recent = new Frame[fromRing];
+            olderBefore = Long.MAX_VALUE;
+            for (int i = 0; i < kept; i++) {
+                int slot = (int) ((added - kept + i) % frames.length);
+                if (i >= kept - fromRing) {
+                    recent[i - (kept - fromRing)] = frames[slot];
+                }
+                if (offsets[slot] >= 0) {
+                    olderBefore = Math.min(olderBefore, offsets[slot]);
+                }
+            }
+            if (olderBefore == Long.MAX_VALUE) {
+                // Nothing in the ring says where it starts in the log, so only use the log if it is all older
+                olderBefore = kept == 0 && messageLog != null ? messageLog.getEndOffset() : -1;
+            }
+        }
+        int older = messageLog == null || olderBefore < 0 ? 0 : count - recent.length;
+        return new HistoryReplay(this, recent, olderBefore, older, announce);
+    }
+
+    /**
+     * Read the newest broadcasts before an offset from the message log, going back a window at a time.
+     *
+     * @param before the offset after the last broadcast wanted
+     * @param count  the number of broadcasts wanted
+     * @return at most count broadcasts, oldest first
+     */
+    List<Frame> older(long before, int count) {
+        ArrayList<Frame> found = new ArrayList<Frame>();
+        if (count <= 0 || messageLog == null) {
+            return found;
+        }
+        long start = messageLog.getStartOffset();
+        long end = before;
+        int window = Math.max(64, count * 2);
+        int scanned = 0;
+        while (found.size() < count && end > start && scanned < MAX_SCANNED_RECORDS) {
+            long from = Math.max(start, end - window);
+            ArrayList<Frame> broadcasts = new ArrayList<Frame>();
+            for (MessageLog.Record record : messageLog.read(from, (int) (end - from))) {
+                if (record.getOffset() >= end) {
+                    break;
+                }
+                if (record.getKind() == MessageLog.Kind.BROADCAST) {
+                    broadcasts.add(Frame.of(record.getText()));
+                }
+            }
+            found.addAll(0, broadcasts);
+            scanned += (int) (end - from);
+            end = from;
+            window = Math.min(window * 2, MAX_SCANNED_RECORDS);
+        }
+        return found.size() > count ? new ArrayList<Frame>(found.subList(found.size() - count, found.size())) : found;
+    }
+}
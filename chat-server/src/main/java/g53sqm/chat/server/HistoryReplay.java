@@ -0,0 +1,101 @@
+package g53sqm.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The broadcasts one connection is catching up on, handed out a chunk at a time so the writer
+ * interleaves them with live messages and other connections. An OK HIST line with the number of
+ * broadcasts comes first, the broadcasts follow oldest first exactly as they were sent.
+ * Only used under the replay lock of its connection, apart from loadOlder which reads the
+ * message log and is meant to run off the connection's writer or event loop.
+ */
+final class HistoryReplay {
+
+    private final History history;
+    private final Frame[] recent;
+    private final long olderBefore;
+    private final int olderWanted;
+    private final boolean announceEmpty;
+    private List<Frame> older;
+    private volatile boolean loading;
+    private boolean announced;
+    private int next;
+
+    /**
+     * @param history       where older broadcasts are read from
+     * @param recent        the broadcasts taken from the ring, oldest first
+     * @param olderBefore   the log offset older broadcasts are read before
+     * @param olderWanted   the number of broadcasts wanted from the log
+     * @param announceEmpty whether to send the OK HIST line when there is nothing to replay
+     */
+    HistoryReplay(History history, Frame[] recent, long olderBefore, int olderWanted, boolean announceEmpty) {
+        this.history = history;
+        this.recent = recent;
+        this.olderBefore = olderBefore;
+        this.olderWanted = olderWanted;
+        this.announceEmpty = announceEmpty;
+        if (olderWanted <= 0) {
+            this.older = Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return true until the older broadcasts have been read from the log
+     */
+    boolean needsOlder() {
+        return older == null;
+    }
+
+    /**
+     * @return true while another thread reads the older broadcasts
+     */
+    boolean isLoading() {
+        return loading;
+    }
+
+    void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+
+    /**
+     * Read the older broadcasts from the log, touches no state so it needs no lock.
+     *
+     * @return the broadcasts to hand to setOlder
+     */
+    List<Frame> loadOlder() {
+        return history.older(olderBefore, olderWanted);
+    }
+
+    void setOlder(List<Frame> older) {
+        this.older = older;
+    }
+
+    /**
+     * Only called once setOlder has been.
+     *
+     * @param max the most broadcasts to return
+     * @return the next frames to queue, empty once the replay is complete
+     */
+    List<Frame> nextChunk(int max) {
+        int total = older.size() + recent.length;
+        List<Frame> chunk = new ArrayList<Frame>(max + 1);
+        if (!announced) {
+            announced = true;
+            if (total == 0 && !announceEmpty) {
+                next = total;
+                return chunk;
+            }
+            chunk.add(Frame.of("OK HIST " + total + " message(s)"));
+        }
+        for (int end = Math.min(total, next + max); next < end; next++) {
+            chunk.add(next < older.size() ? older.get(next) : recent[next - older.size()]);
+        }
+        return chunk;
+    }
+
+    boolean isComplete() {
+        return announced && next == older.size() + recent.length;
+    }
+}
@@ -0,0 +1,193 @@
+package g53sqm.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes connections whose client has gone quiet. A connection that has sent nothing for the idle
+ * timeout is sent a PING, if it still sends nothing within the pong timeout it is closed and its
+ * user removed, which gets rid of peers that vanished without closing their socket.
+ * <p>
+ * Every connection is checked by one thread with a hashed timer wheel, a ring of slots that each
+ * hold the connections due in one tick. Scheduling or checking a connection is O(1) whatever the
+ * number of connections, and no connection has a timer or task of its own. Activity is read from
+ * the connection's last activity time, so reading a line costs a single volatile write.
+ */
+final class IdleReaper {
+
+    private static final long MIN_TICK_MILLIS = 10;
+    private static final long MAX_TICK_MILLIS = 1000;
+
+    private static final class Entry {
+        private final Connection connection;
+        private boolean pinged;
+        private long pingedAt;
+
+        Entry(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final long idleNanos;
+    private final long pongNanos;
+    private final long tickNanos;
+    private final ArrayDeque<Entry>[] wheel;
+    private final ConcurrentLinkedQueue<Entry> added;
+    private final ServerLog serverLog;
+    private final AtomicLong pinged;
+    private final AtomicLong reaped;
+    private final Thread ticker;
+    private volatile boolean closed;
+    private int cursor;
+
+    /**
+     * @param idleTimeoutMillis how long a connection may be silent before it is pinged, at least 1
+     * @param pongTimeoutMillis how long a pinged connection has to answer, at least 1
+     * @param serverLog         where closed connections are reported
+     */
+    @SuppressWarnings("unchecked")
+    IdleReaper(long idleTimeoutMillis, long pongTimeoutMillis, ServerLog serverLog) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.pongNanos = TimeUnit.MILLISECONDS.toNanos(pongTimeoutMillis);
+        long tickMillis = Math.max(MIN_TICK_MILLIS,
+                Math.min(MAX_TICK_MILLIS, Math.min(idleTimeoutMillis, pongTimeoutMillis) / 10));
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        // Enough slots for the longest timeout to fit in one turn of the wheel
+        int slots = (int) (Math.max(idleTimeoutMillis, pongTimeoutMillis) / tickMillis) + 2;
+        this.wheel = (ArrayDeque<Entry>[]) new ArrayDeque<?>[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ArrayDeque<Entry>();
+        }
+        this.added = new ConcurrentLinkedQueue<Entry>();
+        this.serverLog = serverLog;
+        this.pinged = new AtomicLong();
+        this.reaped = new AtomicLong();
+        this.ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tickUntilClosed();
+            }
+        }, "idle-reaper");
+        this.ticker.setDaemon(true);
+    }
+
+    /**
+     * @param config    the server options
+     * @param serverLog where closed connections are reported
+     * @return a started reaper, or null if idle connections are kept
+     */
+    static IdleReaper start(ServerConfig config, ServerLog serverLog) {
+        if (config.getIdleTimeoutMillis() == 0) {
+            return null;
+        }
+        IdleReaper reaper = new IdleReaper(config.getIdleTimeoutMillis(), config.getPongTimeoutMillis(), serverLog);
+        reaper.ticker.start();
+        return reaper;
+    }
+
+    /**
+     * Watch a new connection, it is forgotten once it stops running.
+     */
+    void track(Connection connection) {
+        added.add(new Entry(connection));
+    }
+
+    void close() {
+        closed = true;
+        ticker.interrupt();
+        try {
+            ticker.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the PINGs sent to idle connections
+     */
+    long getPinged() {
+        return pinged.get();
+    }
+
+    /**
+     * @return the connections closed for not answering a PING
+     */
+    long getReaped() {
+        return reaped.get();
+    }
+
+    private void tickUntilClosed() {
+        long next = System.nanoTime() + tickNanos;
+        while (!closed) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                serverLog.error("error checking idle connections", e);
+            }
+            next += tickNanos;
+        }
+    }
+
+    /**
+     * Move to the next slot and check the connections due in it, each is either rescheduled or dropped.
+     */
+    void tick() {
+        long now = System.nanoTime();
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            schedule(entry, now, entry.connection.getLastActivity() + idleNanos);
+        }
+        cursor = (cursor + 1) % wheel.length;
+        ArrayDeque<Entry> slot = wheel[cursor];
+        // Rescheduled entries never land in the current slot, so this only sees the ones that were due
+        for (int due = slot.size(); due > 0; due--) {
+            check(slot.poll(), now);
+        }
+    }
+
+    private void check(Entry entry, long now) {
+        Connection c = entry.connection;
+        if (!c.isRunning() || c.isClosed()) {
+            return;
+        }
+        long lastActivity = c.getLastActivity();
+        if (entry.pinged) {
+            if (lastActivity - entry.pingedAt < 0) {
+                if (now - entry.pingedAt < pongNanos) {
+                    schedule(entry, now, entry.pingedAt + pongNanos);
+                    return;
+                }
+                reaped.incrementAndGet();
+                c.reap();
+                return;
+            }
+            entry.pinged = false;
+        }
+        if (now - lastActivity < idleNanos) {
+            schedule(entry, now, lastActivity + idleNanos);
+            return;
+        }
+        entry.pinged = true;
+        entry.pingedAt = now;
+        pinged.incrementAndGet();
+        c.ping();
+        schedule(entry, now, now + pongNanos);
+    }
+
+    private void schedule(Entry entry, long now, long due) {
+        long ticks = (due - now + tickNanos - 1) / tickNanos;
+        int ahead = (int) Math.max(1, Math.min(wheel.length - 1, ticks));
+        wheel[(cursor + ahead) % wheel.length].add(entry);
+    }
+}
@@ -0,0 +1,164 @@
+package g53sqm.chat.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads UTF-8 lines from a stream with a buffer that starts small and only grows for long lines,
+ * so that idle connections hold on to as little memory as possible.
+ * Lines are terminated by a line feed, a carriage return or a carriage return followed by a line feed.
+ * Once frames are accepted, a message starting with an opcode is read as a BinaryFraming frame instead
+ * and its payload is returned like a line.
+ */
+class LineReader {
+
+    private static final int INITIAL_SIZE = 128;
+    private static final int SHRINK_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+
+    private final InputStream in;
+    private final LongAdder bytesRead;
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private boolean skipLineFeed;
+    private boolean framesAccepted;
+    private int lineOffset;
+    private int lineLength;
+
+    LineReader(InputStream in) {
+        this(in, new LongAdder());
+    }
+
+    /**
+     * @param in        the stream to read from
+     * @param bytesRead counter every byte read from the stream is added to
+     */
+    LineReader(InputStream in, LongAdder bytesRead) {
+        this.in = in;
+        this.bytesRead = bytesRead;
+        this.buffer = new byte[INITIAL_SIZE];
+    }
+
+    /**
+     * Read the next line, blocking until one is available.
+     *
+     * @return the line without its terminator, or null at the end of the stream
+     * @throws IOException if reading fails or the line is longer than allowed
+     */
+    String readLine() throws IOException {
+        if (!nextLine()) {
+            return null;
+        }
+        return new String(buffer, lineOffset, lineLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the next line without decoding it, blocking until one is available.
+     * The line is then found in lineBuffer() and stays valid until the next call.
+     *
+     * @return false at the end of the stream
+     * @throws IOException if reading fails or the line is longer than allowed
+     */
+    boolean nextLine() throws IOException {
+        // Done here rather than after returning a line, as the caller may still be reading it then
+        releaseIfEmpty();
+        int scan = start;
+        while (true) {
+            if (skipLineFeed && start < end) {
+                skipLineFeed = false;
+                if (buffer[start] == '\n') {
+                    start++;
+                    scan = start;
+                }
+            }
+            if (framesAccepted && start < end && BinaryFraming.isOpcode(buffer[start])) {
+                int header = BinaryFraming.completeHeader(buffer, start, end);
+                if (header > 0) {
+                    lineOffset = start + header;
+                    lineLength = BinaryFraming.payloadLength(buffer, start);
+                    start = lineOffset + lineLength;
+                    return true;
+                }
+                // Nothing to scan for, wait for the rest of the frame
+                scan = end;
+            }
+            for (; scan < end; scan++) {
+                byte b = buffer[scan];
+                if (b == '\n' || b == '\r') {
+                    lineOffset = start;
+                    lineLength = scan - start;
+                    skipLineFeed = b == '\r';
+                    start = scan + 1;
+                    return true;
+                }
+            }
+            scan -= start;
+            makeRoom();
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                if (start == end) {
+                    return false;
+                }
+                if (framesAccepted && BinaryFraming.isOpcode(buffer[start])) {
+                    throw new IOException("stream ended inside a frame");
+                }
+                lineOffset = start;
+                lineLength = end - start;
+                start = end;
+                return true;
+            }
+            bytesRead.add(n);
+            end += n;
+            scan += start;
+        }
+    }
+
+    /**
+     * From now on read messages starting with an opcode as binary frames, text lines are still read as before.
+     */
+    void acceptFrames() {
+        framesAccepted = true;
+    }
+
+    byte[] lineBuffer() {
+        return buffer;
+    }
+
+    int lineOffset() {
+        return lineOffset;
+    }
+
+    int lineLength() {
+        return lineLength;
+    }
+
+    private void makeRoom() throws IOException {
+        int length = end - start;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, length);
+            start = 0;
+            end = length;
+        }
+        if (end == buffer.length) {
+            if (buffer.length >= MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, end);
+            buffer = larger;
+        }
+    }
+
+    private void releaseIfEmpty() {
+        if (start == end) {
+            start = 0;
+            end = 0;
+            if (buffer.length > SHRINK_SIZE) {
+                buffer = new byte[INITIAL_SIZE];
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package g53sqm.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the MessageLog, holding the records from its base offset on. The file is created at
+ * its full size and memory-mapped, so appending is a copy into the mapping and a commit forces the
+ * dirty pages to disk. The end of the data is only kept in memory, on start up it is found again by
+ * reading records until one is missing or fails its checksum.
+ * A sparse index file maps every record starting at least INDEX_INTERVAL bytes after the previous
+ * indexed one to its position, so a read only scans a few KB from the nearest indexed record.
+ * <p>
+ * A record is its length, a CRC32 of the rest, the offset, the kind, the time in milliseconds,
+ * the recipient as an int length and UTF-8 bytes, and the UTF-8 text.
+ * Offsets increase from record to record but may skip values of messages that were never stored.
+ * Appends and commits happen on the appender thread, reads on any thread see committed records only.
+ */
+final class LogSegment {
+
+    static final int INDEX_INTERVAL = 4096;
+
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int BODY_FIXED_SIZE = 8 + 1 + 8 + 4;
+
+    private final long baseOffset;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private final CRC32 crc;
+    private int position;
+    private int indexEntries;
+    private int lastIndexedPosition;
+    private long nextOffset;
+    private volatile int committedPosition;
+    private volatile long committedOffset;
+    private volatile int committedIndexEntries;
+
+    private LogSegment(File directory, long baseOffset, int capacity) throws IOException {
+        this.baseOffset = baseOffset;
+        this.log = map(new File(directory, fileName(baseOffset, ".log")), capacity);
+        this.index = map(new File(directory, fileName(baseOffset, ".index")),
+                (capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE);
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Create an empty segment.
+     *
+     * @param directory the directory of the log
+     * @param baseOffset the offset of the first record
+     * @param capacity  the size of the file in bytes
+     */
+    static LogSegment create(File directory, long baseOffset, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseOffset, capacity);
+        // The first record is always indexed at position 0, which a new file already holds
+        segment.indexEntries = 1;
+        segment.committedIndexEntries = 1;
+        segment.nextOffset = baseOffset;
+        segment.committedOffset = baseOffset;
+        return segment;
+    }
+
+    /**
+     * Open an existing segment and find the end of its valid records. Scanning starts at the last
+     * indexed record that is intact, records torn by a crash and everything after them are ignored.
+     */
+    static LogSegment recover(File directory, long baseOffset) throws IOException {
+        long length = new File(directory, fileName(baseOffset, ".log")).length();
+        LogSegment segment = new LogSegment(directory, baseOffset, (int) length);
+        segment.recover();
+        return segment;
+    }
+
+    private void recover() {
+        int entries = 1;
+        while (entries < index.capacity() / INDEX_ENTRY_SIZE && index.getInt(entries * INDEX_ENTRY_SIZE + 4) > 0) {
+            entries++;
+        }
+        int start = 0;
+        long offset = baseOffset;
+        while (entries > 1) {
+            int candidate = index.getInt((entries - 1) * INDEX_ENTRY_SIZE + 4);
+            long candidateOffset = baseOffset + index.getInt((entries - 1) * INDEX_ENTRY_SIZE);
+            if (recordLength(candidate, candidateOffset) > 0 && recordOffset(candidate) == candidateOffset) {
+                start = candidate;
+                offset = candidateOffset;
+                break;
+            }
+            entries--;
+        }
+        indexEntries = entries;
+        lastIndexedPosition = start;
+        position = start;
+        nextOffset = offset;
+        int length;
+        while ((length = recordLength(position, nextOffset)) > 0) {
+            nextOffset = recordOffset(position) + 1;
+            position += length;
+        }
+        // Index entries of records lost in a crash would point past the end
+        for (int i = indexEntries * INDEX_ENTRY_SIZE; i < index.capacity(); i++) {
+            index.put(i, (byte) 0);
+        }
+        if (position == 0) {
+            index.putLong(0, 0L);
+        }
+        committedPosition = position;
+        committedOffset = nextOffset;
+        committedIndexEntries = indexEntries;
+    }
+
+    /**
+     * @return the total size of the record at a position, or 0 if there is no intact record with an offset
+     * from the given one on
+     */
+    private int recordLength(int at, long minOffset) {
+        if (at + RECORD_HEADER_SIZE + BODY_FIXED_SIZE > log.capacity()) {
+            return 0;
+        }
+        int bodyLength = log.getInt(at);
+        if (bodyLength < BODY_FIXED_SIZE || bodyLength > log.capacity() - at - RECORD_HEADER_SIZE) {
+            return 0;
+        }
+        if (recordOffset(at) < minOffset) {
+            return 0;
+        }
+        crc.reset();
+        ByteBuffer body = log.duplicate();
+        body.limit(at + RECORD_HEADER_SIZE + bodyLength).position(at + RECORD_HEADER_SIZE);
+        crc.update(body);
+        if ((int) crc.getValue() != log.getInt(at + 4)) {
+            return 0;
+        }
+        return RECORD_HEADER_SIZE + bodyLength;
+    }
+
+    private long recordOffset(int at) {
+        return log.getLong(at + RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * @param record the message to store
+     * @return the number of bytes the record takes
+     */
+    static int sizeOf(MessageLog.Record record) {
+        return RECORD_HEADER_SIZE + BODY_FIXED_SIZE + record.recipientBytes().length + record.textBytes().length;
+    }
+
+    /**
+     * Copy a record into the mapping, it becomes visible to readers with the next commit.
+     *
+     * @return false if the segment has no room for the record
+     */
+    boolean append(MessageLog.Record record) {
+        byte[] recipient = record.recipientBytes();
+        byte[] text = record.textBytes();
+        int size = RECORD_HEADER_SIZE + BODY_FIXED_SIZE + recipient.length + text.length;
+        if (position + size > log.capacity()) {
+            return false;
+        }
+        if (position - lastIndexedPosition >= INDEX_INTERVAL && indexEntries < index.capacity() / INDEX_ENTRY_SIZE) {
+            index.putInt(indexEntries * INDEX_ENTRY_SIZE, (int) (record.getOffset() - baseOffset));
+            index.putInt(indexEntries * INDEX_ENTRY_SIZE + 4, position);
+            indexEntries++;
+            lastIndexedPosition = position;
+        }
+        ByteBuffer out = log.duplicate();
+        out.position(position + RECORD_HEADER_SIZE);
+        out.putLong(record.getOffset());
+        out.put(record.getKind().code);
+        out.putLong(record.getTime());
+        out.putInt(recipient.length);
+        out.put(recipient);
+        out.put(text);
+        ByteBuffer body = log.duplicate();
+        body.limit(position + size).position(position + RECORD_HEADER_SIZE);
+        crc.reset();
+        crc.update(body);
+        log.putInt(position + 4, (int) crc.getValue());
+        log.putInt(position, size - RECORD_HEADER_SIZE);
+        position += size;
+        nextOffset = record.getOffset() + 1;
+        return true;
+    }
+
+    /**
+     * Force everything appended to disk and make it visible to readers.
+     */
+    void commit() {
+        if (committedPosition == position) {
+            return;
+        }
+        log.force();
+        index.force();
+        committedIndexEntries = indexEntries;
+        committedOffset = nextOffset;
+        committedPosition = position;
+    }
+
+    /**
+     * Add the committed records from an offset on to a list.
+     *
+     * @param from   the offset of the first record wanted
+     * @param max    the most records to add
+     * @param result where the records are added
+     * @return the number of records added
+     */
+    int read(long from, int max, List<MessageLog.Record> result) {
+        long end = committedOffset;
+        int limit = committedPosition;
+        if (from >= end || max <= 0) {
+            return 0;
+        }
+        long offset = Math.max(from, baseOffset);
+        ByteBuffer in = log.duplicate();
+        int at = indexedPosition(offset);
+        in.position(at);
+        int added = 0;
+        while (in.position() < limit && added < max) {
+            int start = in.position();
+            int bodyLength = in.getInt();
+            in.getInt();
+            long recordOffset = in.getLong();
+            if (recordOffset >= offset) {
+                MessageLog.Kind kind = MessageLog.Kind.of(in.get());
+                long time = in.getLong();
+                byte[] recipient = new byte[in.getInt()];
+                in.get(recipient);
+                byte[] text = new byte[bodyLength - BODY_FIXED_SIZE - recipient.length];
+                in.get(text);
+                result.add(new MessageLog.Record(recordOffset, kind, time,
+                        recipient.length == 0 ? null : new String(recipient, StandardCharsets.UTF_8),
+                        new String(text, StandardCharsets.UTF_8)));
+                added++;
+            }
+            in.position(start + RECORD_HEADER_SIZE + bodyLength);
+        }
+        return added;
+    }
+
+    /**
+     * @return the position of the last indexed record at or before an offset
+     */
+    private int indexedPosition(long offset) {
+        int relative = (int) (offset - baseOffset);
+        int low = 0;
+        int high = committedIndexEntries - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (index.getInt(middle * INDEX_ENTRY_SIZE) <= relative) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return index.getInt(low * INDEX_ENTRY_SIZE + 4);
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * @return the offset after the last committed record
+     */
+    long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
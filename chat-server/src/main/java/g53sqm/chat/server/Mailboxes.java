@@ -0,0 +1,429 @@
+package g53sqm.chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private messages for known users who are offline, kept until they next log in.
+ * A user who logs in gets a mailbox, found with one hash lookup. Each mailbox has a lock of its
+ * own, so storing a message only ever waits for messages to the same user. At most max users
+ * have a mailbox, when a new user needs one the empty mailbox of the user who left longest ago
+ * is forgotten, and a user who finds every mailbox holding messages gets none.
+ * <p>
+ * With a directory a mailbox that holds messages is also a file named after the SHA-256 of the
+ * username, so names of any length fit, holding the username and then the stored messages, each
+ * as a varint length followed by the UTF-8 bytes. The file
+ * is created by the first message and deleted once the messages are handed out, and is written
+ * behind by a single thread, so neither readers nor event loops wait for the disk. Only users with
+ * messages waiting are known across restarts.
+ */
+final class Mailboxes {
+
+    enum Deposit {
+        /** The message waits in the mailbox. */
+        STORED,
+        /** Nobody by that name has ever logged in. */
+        UNKNOWN_USER,
+        /** The mailbox holds as many messages as it may. */
+        FULL,
+        /** The user has logged in meanwhile, the message can be sent straight away. */
+        ONLINE
+    }
+
+    private static final String SUFFIX = ".mbox";
+
+    private static final class Mailbox {
+        private final String user;
+        private final File file;
+        private final ArrayDeque<String> messages;
+        private boolean online;
+        private boolean idle;
+        private boolean forgotten;
+
+        Mailbox(String user, File file, ArrayDeque<String> messages) {
+            this.user = user;
+            this.file = file;
+            this.messages = messages;
+        }
+    }
+
+    private final int capacity;
+    private final int maxUsers;
+    private final File directory;
+    private final ServerLog serverLog;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes;
+    private final AtomicInteger count;
+    private final ConcurrentLinkedQueue<Mailbox> idle;
+    private final ExecutorService writer;
+    private final AtomicLong stored;
+    private final AtomicLong delivered;
+    private final AtomicLong waiting;
+
+    /**
+     * @param capacity  the most messages a mailbox holds, 0 to keep no messages for offline users
+     * @param maxUsers  the most users a mailbox is kept for, at least 1
+     * @param directory where mailboxes are kept, null to keep them in memory only
+     * @param serverLog where failures to write are reported
+     */
+    Mailboxes(int capacity, int maxUsers, File directory, ServerLog serverLog) {
+        this.capacity = capacity;
+        this.maxUsers = maxUsers;
+        this.directory = directory;
+        this.serverLog = serverLog;
+        this.mailboxes = new ConcurrentHashMap<String, Mailbox>();
+        this.count = new AtomicInteger();
+        this.idle = new ConcurrentLinkedQueue<Mailbox>();
+        this.stored = new AtomicLong();
+        this.delivered = new AtomicLong();
+        this.waiting = new AtomicLong();
+        this.writer = directory == null ? null : Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread t = new Thread(task, "mailbox-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Open the mailboxes in a directory, creating it or reading back the mailboxes already in it.
+     *
+     * @throws IOException if the directory cannot be created or read
+     */
+    static Mailboxes open(int capacity, int maxUsers, File directory, ServerLog serverLog) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create mailbox directory " + directory);
+        }
+        Mailboxes result = new Mailboxes(capacity, maxUsers, directory, serverLog);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    ArrayDeque<String> messages = read(file);
+                    String user = messages.poll();
+                    if (messages.isEmpty()) {
+                        // Torn before its first message was written
+                        file.delete();
+                        continue;
+                    }
+                    result.mailboxes.put(user, new Mailbox(user, file, messages));
+                    result.count.incrementAndGet();
+                    result.waiting.addAndGet(messages.size());
+                }
+            }
+        }
+        return result;
+    }
+
+    static Mailboxes open(ServerConfig config, ServerLog serverLog) throws IOException {
+        if (config.getMailboxDir() == null || config.getMailboxSize() == 0) {
+            return new Mailboxes(config.getMailboxSize(), config.getMailboxUsers(), null, serverLog);
+        }
+        return open(config.getMailboxSize(), config.getMailboxUsers(), new File(config.getMailboxDir()), serverLog);
+    }
+
+    /**
+     * Keep a message for a user who is not online.
+     *
+     * @param user    the recipient
+     * @param message the line as the recipient gets it
+     * @return what became of the message
+     */
+    Deposit deposit(String user, String message) {
+        Mailbox mailbox = capacity == 0 ? null : mailboxes.get(user);
+        if (mailbox == null) {
+            return Deposit.UNKNOWN_USER;
+        }
+        synchronized (mailbox) {
+            if (mailbox.forgotten) {
+                return Deposit.UNKNOWN_USER;
+            }
+            if (mailbox.online) {
+                return Deposit.ONLINE;
+            }
+            if (mailbox.messages.size() >= capacity) {
+                return Deposit.FULL;
+            }
+            if (writer != null) {
+                final File file = mailbox.file;
+                // An empty mailbox has no file, the first message creates it after the username
+                final byte[] record = mailbox.messages.isEmpty()
+                        ? concat(encode(user), encode(message)) : encode(message);
+                writer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        append(file, record);
+                    }
+                });
+            }
+            mailbox.messages.add(message);
+        }
+        stored.incrementAndGet();
+        waiting.incrementAndGet();
+        return Deposit.STORED;
+    }
+
+    /**
+     * Mark a user online, making them known if they are new and there is room, and empty their mailbox.
+     * Must be called after the user is registered, so a sender who finds them offline either
+     * stores the message in time to be handed out here or is told the user is online.
+     *
+     * @param user the user who logged in
+     * @return the messages stored for the user, oldest first
+     */
+    List<String> checkIn(String user) {
+        if (capacity == 0) {
+            return Collections.emptyList();
+        }
+        List<String> messages;
+        while (true) {
+            Mailbox mailbox = mailboxes.get(user);
+            if (mailbox == null) {
+                if (!makeRoom()) {
+                    return Collections.emptyList();
+                }
+                Mailbox fresh = new Mailbox(user, directory == null ? null : new File(directory, fileName(user)),
+                        new ArrayDeque<String>());
+                mailbox = mailboxes.putIfAbsent(user, fresh);
+                if (mailbox == null) {
+                    mailbox = fresh;
+                } else {
+                    count.decrementAndGet();
+                }
+            }
+            synchronized (mailbox) {
+                if (mailbox.forgotten) {
+                    continue;
+                }
+                mailbox.online = true;
+                if (mailbox.messages.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                messages = new ArrayList<String>(mailbox.messages);
+                mailbox.messages.clear();
+                delete(mailbox);
+            }
+            break;
+        }
+        delivered.addAndGet(messages.size());
+        waiting.addAndGet(-messages.size());
+        return messages;
+    }
+
+    /**
+     * Mark a user offline, from now on messages for them are stored.
+     *
+     * @param user the user who left, after they were unregistered
+     */
+    void checkOut(String user) {
+        Mailbox mailbox = mailboxes.get(user);
+        if (mailbox != null) {
+            synchronized (mailbox) {
+                mailbox.online = false;
+                if (!mailbox.idle) {
+                    mailbox.idle = true;
+                    idle.add(mailbox);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of users with a mailbox
+     */
+    int getUsers() {
+        return count.get();
+    }
+
+    /**
+     * Take a place for a new mailbox, forgetting idle mailboxes while there are too many.
+     *
+     * @return false if every mailbox holds messages or belongs to a user who is online
+     */
+    private boolean makeRoom() {
+        while (true) {
+            int users = count.get();
+            if (users < maxUsers) {
+                if (count.compareAndSet(users, users + 1)) {
+                    return true;
+                }
+            } else if (!forgetIdle()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Forget the mailbox of the user who left longest ago and has no messages waiting.
+     * A mailbox that was used again since it was queued is skipped, checkOut queues it again.
+     *
+     * @return false if there is no such mailbox
+     */
+    private boolean forgetIdle() {
+        Mailbox mailbox;
+        while ((mailbox = idle.poll()) != null) {
+            synchronized (mailbox) {
+                mailbox.idle = false;
+                if (mailbox.forgotten || mailbox.online || !mailbox.messages.isEmpty()) {
+                    continue;
+                }
+                mailbox.forgotten = true;
+            }
+            mailboxes.remove(mailbox.user, mailbox);
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of messages stored for offline users so far
+     */
+    long getStored() {
+        return stored.get();
+    }
+
+    /**
+     * @return the number of stored messages handed out to users logging in so far
+     */
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the number of messages waiting in mailboxes now
+     */
+    long getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * Wait for the mailbox files to be written.
+     */
+    void close() {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void delete(Mailbox mailbox) {
+        if (writer != null) {
+            final File file = mailbox.file;
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (file.exists() && !file.delete()) {
+                        serverLog.warn("cannot delete mailbox " + file.getName());
+                    }
+                }
+            });
+        }
+    }
+
+    private void append(File file, byte[] bytes) {
+        try {
+            // The first message creates the file
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            serverLog.error("error writing mailbox " + file.getName(), e);
+        }
+    }
+
+    static byte[] encode(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(text.length + 5);
+        int length = text.length;
+        while ((length & ~0x7f) != 0) {
+            record.write((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        record.write(length);
+        record.write(text, 0, text.length);
+        return record.toByteArray();
+    }
+
+    /**
+     * Read the records of a mailbox file, the username and then the messages, ignoring a last
+     * record that was only partly written.
+     */
+    static ArrayDeque<String> read(File file) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        ArrayDeque<String> messages = new ArrayDeque<String>();
+        int at = 0;
+        while (at < content.length) {
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (at == content.length || shift > 28) {
+                    return messages;
+                }
+                b = content[at++] & 0xff;
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length < 0 || length > content.length - at) {
+                return messages;
+            }
+            messages.add(new String(content, at, length, StandardCharsets.UTF_8));
+            at += length;
+        }
+        return messages;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * @return the name of the mailbox file of a user, the same length whatever the username
+     */
+    static String fileName(String user) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(user.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.append(SUFFIX).toString();
+    }
+}
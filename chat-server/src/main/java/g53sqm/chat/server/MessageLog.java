@@ -0,0 +1,351 @@
+package g53sqm.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only history of the broadcasts, room messages and private messages users send, kept in a
+ * directory of memory-mapped LogSegment files. Every message gets the next offset, starting at 0,
+ * when it is queued, a message that is dropped later leaves a gap.
+ * <p>
+ * Senders only put the message in a bounded queue. A single appender thread takes whatever has
+ * queued up, copies it into the active segment and commits the whole batch with one force, so the
+ * cost of syncing is shared by every message that arrived meanwhile. When the appender falls
+ * behind and the queue is full messages are not stored and are counted as dropped, a sender never waits.
+ */
+final class MessageLog {
+
+    enum Kind {
+        BROADCAST(1), ROOM(2), PRIVATE(3);
+
+        final byte code;
+
+        Kind(int code) {
+            this.code = (byte) code;
+        }
+
+        static Kind of(byte code) {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("unknown record kind " + code);
+        }
+    }
+
+    /**
+     * A stored message.
+     */
+    static final class Record {
+        private final long offset;
+        private final Kind kind;
+        private final long time;
+        private final String recipient;
+        private final String text;
+        private byte[] recipientBytes;
+        private byte[] textBytes;
+
+        Record(long offset, Kind kind, long time, String recipient, String text) {
+            this.offset = offset;
+            this.kind = kind;
+            this.time = time;
+            this.recipient = recipient;
+            this.text = text;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return when the message was sent, in milliseconds since the epoch
+         */
+        long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the user or room the message was sent to, null for a broadcast
+         */
+        String getRecipient() {
+            return recipient;
+        }
+
+        /**
+         * @return the line as the recipients got it
+         */
+        String getText() {
+            return text;
+        }
+
+        /**
+         * Encoded on the appender thread, so senders do not pay for it.
+         */
+        byte[] recipientBytes() {
+            if (recipientBytes == null) {
+                recipientBytes = recipient == null ? new byte[0] : recipient.getBytes(StandardCharsets.UTF_8);
+            }
+            return recipientBytes;
+        }
+
+        byte[] textBytes() {
+            if (textBytes == null) {
+                textBytes = text.getBytes(StandardCharsets.UTF_8);
+            }
+            return textBytes;
+        }
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ServerLog serverLog;
+    private final ArrayBlockingQueue<Record> pending;
+    private final AtomicLong appended;
+    private final AtomicLong dropped;
+    private final AtomicLong commits;
+    private final ReentrantLock sequenceLock;
+    private long nextOffset;
+    private volatile LogSegment[] segments;
+    private volatile boolean closed;
+    private final Thread appender;
+
+    private MessageLog(File directory, int segmentSize, int queueCapacity, ServerLog serverLog,
+                       LogSegment[] segments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.serverLog = serverLog;
+        this.pending = new ArrayBlockingQueue<Record>(queueCapacity);
+        this.appended = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.commits = new AtomicLong();
+        this.sequenceLock = new ReentrantLock();
+        this.segments = segments;
+        this.nextOffset = segments[segments.length - 1].getCommittedOffset();
+        this.appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                appendUntilClosed();
+            }
+        }, "message-log");
+        this.appender.setDaemon(true);
+        this.appender.start();
+    }
+
+    /**
+     * Open the log in a directory, creating the directory or recovering the segments already in it.
+     *
+     * @param directory     where the segment files are kept
+     * @param segmentSize   the size of a new segment file in bytes
+     * @param queueCapacity the number of messages that can wait for the appender
+     * @param serverLog     where failures to write are reported
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    static MessageLog open(File directory, int segmentSize, int queueCapacity, ServerLog serverLog)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create message log directory " + directory);
+        }
+        String[] names = directory.list();
+        ArrayList<Long> baseOffsets = new ArrayList<Long>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("\\d{20}\\.log")) {
+                    baseOffsets.add(Long.parseLong(name.substring(0, 20)));
+                }
+            }
+        }
+        Collections.sort(baseOffsets);
+        LogSegment[] segments = new LogSegment[Math.max(1, baseOffsets.size())];
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            segments[i] = LogSegment.recover(directory, baseOffsets.get(i));
+        }
+        if (baseOffsets.isEmpty()) {
+            segments[0] = LogSegment.create(directory, 0, segmentSize);
+        }
+        return new MessageLog(directory, segmentSize, queueCapacity, serverLog, segments);
+    }
+
+    static MessageLog open(ServerConfig config, ServerLog serverLog) throws IOException {
+        return open(new File(config.getMessageLogDir()), config.getMessageLogSegmentSize(),
+                config.getMessageLogQueue(), serverLog);
+    }
+
+    /**
+     * Queue a message to be stored, without waiting for the disk.
+     *
+     * @param kind      what kind of message it is
+     * @param recipient the user or room it was sent to, null for a broadcast
+     * @param text      the line as the recipients got it
+     * @return the offset the message will be stored at, or -1 if it was dropped because the queue is
+     * full or the log is closed
+     */
+    long append(Kind kind, String recipient, String text) {
+        long time = System.currentTimeMillis();
+        if (!closed) {
+            // Offsets must be claimed in queue order, so the appender sees them increasing
+            sequenceLock.lock();
+            try {
+                if (pending.offer(new Record(nextOffset, kind, time, recipient, text))) {
+                    return nextOffset++;
+                }
+            } finally {
+                sequenceLock.unlock();
+            }
+        }
+        dropped.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Read committed records in offset order.
+     *
+     * @param from the offset of the first record wanted
+     * @param max  the most records to return
+     * @return the records from the offset on, empty if there are none yet
+     */
+    List<Record> read(long from, int max) {
+        LogSegment[] current = segments;
+        List<Record> result = new ArrayList<Record>(Math.min(max, 256));
+        int i = segmentFor(current, from);
+        long next = Math.max(from, current[0].getBaseOffset());
+        for (; i < current.length && result.size() < max; i++) {
+            current[i].read(next, max - result.size(), result);
+        }
+        return result;
+    }
+
+    private static int segmentFor(LogSegment[] current, long offset) {
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (current[middle].getBaseOffset() <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the offset of the oldest record kept
+     */
+    long getStartOffset() {
+        return segments[0].getBaseOffset();
+    }
+
+    /**
+     * @return the offset after the last committed record
+     */
+    long getEndOffset() {
+        LogSegment[] current = segments;
+        return current[current.length - 1].getCommittedOffset();
+    }
+
+    long getAppended() {
+        return appended.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of forces to disk, each committing one batch
+     */
+    long getCommits() {
+        return commits.get();
+    }
+
+    int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Stop accepting messages and wait for the appender to commit what is already queued.
+     */
+    void close() {
+        closed = true;
+        try {
+            appender.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void appendUntilClosed() {
+        List<Record> batch = new ArrayList<Record>(MAX_BATCH);
+        while (!closed || !pending.isEmpty()) {
+            Record first;
+            try {
+                first = pending.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first != null) {
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+                appendBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Copy a batch into the active segment, rolling to a new segment when it is full, and commit it.
+     */
+    private void appendBatch(List<Record> batch) {
+        LogSegment active = segments[segments.length - 1];
+        int written = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            if (!active.append(record)) {
+                if (LogSegment.sizeOf(record) > segmentSize) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                active.commit();
+                try {
+                    active = roll(record.getOffset());
+                } catch (IOException e) {
+                    // The next batch tries to roll again
+                    serverLog.error("error creating a message log segment", e);
+                    dropped.addAndGet(batch.size() - i);
+                    break;
+                }
+                active.append(record);
+            }
+            written++;
+        }
+        active.commit();
+        appended.addAndGet(written);
+        commits.incrementAndGet();
+    }
+
+    private LogSegment roll(long baseOffset) throws IOException {
+        LogSegment next = LogSegment.create(directory, baseOffset, segmentSize);
+        LogSegment[] current = segments;
+        LogSegment[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = next;
+        segments = grown;
+        return next;
+    }
+}
@@ -0,0 +1,258 @@
+package g53sqm.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection served by an NioEventLoop rather than by its own thread.
+ * Reads are decoded into lines on the loop thread and handed to the shared command logic,
+ * output is queued and written by the loop when the socket is writable.
+ */
+class NioConnection extends Connection {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+    private static final int MAX_WRITE_BATCH = 64;
+
+    private final SocketChannel channel;
+    private final AtomicBoolean writeRequested;
+    private final ByteBuffer[] inFlight;
+    private int inFlightStart;
+    private int inFlightEnd;
+    private NioEventLoop loop;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private boolean skipLineFeed;
+    private boolean framesAccepted;
+    private boolean closed;
+
+    NioConnection(SocketChannel channel, Server serverReference) {
+        super(serverReference);
+        this.channel = channel;
+        this.writeRequested = new AtomicBoolean();
+        this.inFlight = new ByteBuffer[MAX_WRITE_BATCH];
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Messages are mostly produced on the event loops, which must never wait for a slow client,
+     * so the BLOCK policy disconnects straight away.
+     */
+    @Override
+    protected OutboundQueue createOutboundQueue(ServerConfig config) {
+        ServerConfig.SlowConsumerPolicy policy = config.getSlowConsumerPolicy();
+        if (policy == ServerConfig.SlowConsumerPolicy.BLOCK) {
+            policy = ServerConfig.SlowConsumerPolicy.DISCONNECT;
+        }
+        return new OutboundQueue(config.getOutboundQueueCapacity(), policy, 0);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    synchronized SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Called by the event loop once the channel has been registered with its selector.
+     */
+    synchronized void attach(NioEventLoop loop, SelectionKey key) {
+        this.loop = loop;
+        this.key = key;
+        if (writeRequested.get()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Read what is available on the channel and handle every complete line.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            getServer().getLog().warn("Read failed for " + describe());
+            read = -1;
+        }
+        if (read < 0) {
+            onClosed();
+            return;
+        }
+        getServer().getMetrics().bytesRead(read);
+        readBuffer.flip();
+        try {
+            handleCompleteLines();
+        } catch (IOException e) {
+            getServer().getLog().warn(e.getMessage() + ", closing connection of " + describe());
+            onClosed();
+            return;
+        }
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                getServer().getLog().warn("Line too long, closing connection of " + describe());
+                onClosed();
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    private void handleCompleteLines() throws IOException {
+        int start = readBuffer.position();
+        for (int i = start; i < readBuffer.limit() && isRunning(); i++) {
+            byte b = readBuffer.get(i);
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (b == '\n') {
+                    start = i + 1;
+                    continue;
+                }
+            }
+            if (framesAccepted && i == start && BinaryFraming.isOpcode(b)) {
+                byte[] array = readBuffer.array();
+                int offset = readBuffer.arrayOffset();
+                int header = BinaryFraming.completeHeader(array, offset + start, offset + readBuffer.limit());
+                if (header == 0) {
+                    // Keep the partial frame for the next read
+                    break;
+                }
+                int length = BinaryFraming.payloadLength(array, offset + start);
+                int payload = start + header;
+                start = payload + length;
+                i = start - 1;
+                handleLine(array, offset + payload, length);
+                continue;
+            }
+            if (b == '\n' || b == '\r') {
+                int lineStart = start;
+                skipLineFeed = b == '\r';
+                start = i + 1;
+                handleLine(readBuffer.array(), readBuffer.arrayOffset() + lineStart, i - lineStart);
+            }
+        }
+        readBuffer.position(start);
+    }
+
+    /**
+     * Write queued output now that the socket can take more bytes, gathering the pending
+     * messages into a single write call. Only ever called on the loop thread.
+     */
+    void onWritable() {
+        OutboundQueue outbound = getOutbound();
+        try {
+            while (true) {
+                if (inFlightStart == inFlightEnd) {
+                    inFlightStart = 0;
+                    inFlightEnd = compressBatch(inFlight, outbound.drainTo(inFlight));
+                    if (inFlightEnd == 0) {
+                        writeRequested.set(false);
+                        // A replay chunk is written on a later turn of the loop, after other connections
+                        continueReplay();
+                        // Go again if something was queued after the drain and nobody asked the loop yet
+                        if (outbound.isEmpty() || !writeRequested.compareAndSet(false, true)) {
+                            break;
+                        }
+                        continue;
+                    }
+                }
+                long written = channel.write(inFlight, inFlightStart, inFlightEnd - inFlightStart);
+                getServer().getMetrics().bytesWritten(written);
+                while (inFlightStart < inFlightEnd && !inFlight[inFlightStart].hasRemaining()) {
+                    inFlight[inFlightStart++] = null;
+                }
+                if (inFlightStart < inFlightEnd) {
+                    // Socket is full, stay interested in writability
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (isCloseRequested() && outbound.isEmpty()) {
+                releaseCompressor();
+                onClosed();
+            }
+        } catch (IOException e) {
+            // Released here as only the loop thread may touch the compressor, other close paths leave it to the GC
+            releaseCompressor();
+            onClosed();
+        }
+    }
+
+    /**
+     * The peer went away or the connection finished quitting, release the channel
+     * and let the server forget about this connection.
+     */
+    void onClosed() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        getServer().getLog().info("disconnect ", describe());
+        stopRunning();
+        getOutbound().clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            getServer().getLog().error("error closing connection of " + describe(), e);
+        }
+        getServer().removeConnection(this);
+    }
+
+    @Override
+    boolean isClosed() {
+        synchronized (this) {
+            return closed;
+        }
+    }
+
+    @Override
+    protected void acceptFrames() {
+        framesAccepted = true;
+    }
+
+    @Override
+    protected void closeConnection() {
+        super.closeConnection();
+        // Always wake the loop, the goodbye may already have been written
+        NioEventLoop wakeLoop;
+        synchronized (this) {
+            writeRequested.set(true);
+            wakeLoop = loop;
+        }
+        if (wakeLoop != null) {
+            wakeLoop.requestWrite(this);
+        }
+    }
+
+    @Override
+    protected void abort() {
+        onClosed();
+    }
+
+    @Override
+    protected void scheduleFlush() {
+        if (!writeRequested.compareAndSet(false, true)) {
+            return;
+        }
+        NioEventLoop wakeLoop;
+        synchronized (this) {
+            wakeLoop = loop;
+        }
+        // Before the connection is attached to its loop, attach() takes care of the pending output
+        if (wakeLoop != null) {
+            wakeLoop.requestWrite(this);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package g53sqm.chat.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread serving the reads and writes of many NioConnections.
+ * Other threads hand work to the loop through its queues and wake the selector up.
+ */
+class NioEventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<NioConnection> registrations;
+    private final Queue<NioConnection> writeRequests;
+    private final ServerLog log;
+    private volatile boolean running;
+
+    NioEventLoop(ServerLog log) throws IOException {
+        this.log = log;
+        selector = Selector.open();
+        registrations = new ConcurrentLinkedQueue<NioConnection>();
+        writeRequests = new ConcurrentLinkedQueue<NioConnection>();
+        running = true;
+    }
+
+    /**
+     * Hand a freshly accepted connection to this loop.
+     *
+     * @param connection the connection to serve
+     */
+    void register(NioConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the loop to watch the connection for writability, used when a write
+     * could not be completed by the thread that produced it.
+     *
+     * @param connection the connection with pending output
+     */
+    void requestWrite(NioConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("selector failed", e);
+                break;
+            }
+            processRegistrations();
+            processWriteRequests();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                } catch (CancelledKeyException e) {
+                    connection.onClosed();
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("error closing selector", e);
+        }
+    }
+
+    private void processRegistrations() {
+        NioConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(this, key);
+                connection.open();
+            } catch (ClosedChannelException e) {
+                connection.onClosed();
+            }
+        }
+    }
+
+    private void processWriteRequests() {
+        NioConnection connection;
+        while ((connection = writeRequests.poll()) != null) {
+            SelectionKey key = connection.getKey();
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package g53sqm.chat.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Server engine built on non-blocking channels.
+ * Accepted clients are spread over a fixed number of NioEventLoops instead of getting a thread each,
+ * the command handling is the same as the blocking Server.
+ */
+public class NioServer extends Server {
+
+    private final ServerSocketChannel channel;
+    private final NioEventLoop[] loops;
+    private int nextLoop;
+
+    /**
+     * @throws UncheckedIOException if the port cannot be bound, there is nothing to serve then
+     */
+    public NioServer(int port, ServerConfig config) {
+        this(port, config, new ServerLog(config));
+    }
+
+    private NioServer(int port, ServerConfig config, ServerLog log) {
+        super(openSocket(port, log), config, log);
+        channel = getServerSocket().getChannel();
+        loops = new NioEventLoop[config.getIoThreads()];
+    }
+
+    private static ServerSocket openSocket(int port, ServerLog log) {
+        ServerSocketChannel channel = null;
+        try {
+            channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            return channel.socket();
+        } catch (IOException e) {
+            log.error("error initialising server", e);
+            log.close();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closing) {
+                    e.addSuppressed(closing);
+                }
+            }
+            throw new UncheckedIOException("cannot listen on port " + port, e);
+        }
+    }
+
+    @Override
+    public void listen() {
+        if (!this.isListening) {
+            this.isListening = true;
+            if (!startLoops()) {
+                this.isListening = false;
+                return;
+            }
+            while (this.isListening) {
+                try {
+                    SocketChannel client = channel.accept();
+                    client.configureBlocking(false);
+                    NioConnection c = new NioConnection(client, this);
+                    addConnection(c);
+                    getLog().info("connect ", client.getRemoteAddress());
+                    nextLoop().register(c);
+                } catch (IOException e) {
+                    if (this.isListening) {
+                        getLog().error("error setting up new client connection.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void stopEngine() {
+        stopLoops();
+    }
+
+    private boolean startLoops() {
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(getLog());
+                Thread t = new Thread(loops[i], "nio-loop-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            return true;
+        } catch (IOException e) {
+            getLog().error("error starting event loops", e);
+            stopLoops();
+            return false;
+        }
+    }
+
+    private void stopLoops() {
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] != null) {
+                loops[i].stop();
+                loops[i] = null;
+            }
+        }
+    }
+
+    private NioEventLoop nextLoop() {
+        NioEventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loop;
+    }
+}
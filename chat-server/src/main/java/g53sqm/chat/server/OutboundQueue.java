@@ -0,0 +1,191 @@
+package g53sqm.chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to one client.
+ * Producers never touch the socket, a single writer drains the queue and writes
+ * whatever has piled up in one go. When the queue is full the configured
+ * SlowConsumerPolicy decides whether to drop, wait or give up on the client.
+ * <p>
+ * The messages are kept in linked nodes and the bound is a separate counter, so an idle
+ * connection's queue holds no storage sized to its capacity.
+ */
+class OutboundQueue {
+
+    private final ConcurrentLinkedQueue<ByteBuffer> queue;
+    private final AtomicInteger size;
+    private final int capacity;
+    private final ServerConfig.SlowConsumerPolicy policy;
+    private final long blockTimeoutMillis;
+    private final AtomicLong dropped;
+    private final Object roomFreed;
+    private volatile int waiting;
+
+    OutboundQueue(int capacity, ServerConfig.SlowConsumerPolicy policy, long blockTimeoutMillis) {
+        this.queue = new ConcurrentLinkedQueue<ByteBuffer>();
+        this.size = new AtomicInteger();
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.dropped = new AtomicLong();
+        this.roomFreed = new Object();
+    }
+
+    OutboundQueue(ServerConfig config) {
+        this(config.getOutboundQueueCapacity(), config.getSlowConsumerPolicy(), config.getBlockTimeoutMillis());
+    }
+
+    /**
+     * Queue a message for the writer.
+     *
+     * @param message the encoded message
+     * @return false if the client cannot keep up and should be disconnected
+     */
+    boolean offer(ByteBuffer message) {
+        if (reserve()) {
+            queue.add(message);
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!reserve()) {
+                    if (queue.poll() != null) {
+                        size.decrementAndGet();
+                        dropped.incrementAndGet();
+                    }
+                }
+                queue.add(message);
+                return true;
+
+            case BLOCK:
+                if (awaitRoom()) {
+                    queue.add(message);
+                    return true;
+                }
+                return false;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Take a place in the queue if there is one left.
+     */
+    private boolean reserve() {
+        while (true) {
+            int current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Wait up to the block timeout for the writer to make room, only the BLOCK policy ever waits.
+     *
+     * @return true once a place was taken, false on timeout
+     */
+    private boolean awaitRoom() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        synchronized (roomFreed) {
+            waiting++;
+            try {
+                while (!reserve()) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    roomFreed.wait(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    /**
+     * Wake producers waiting for room, costs a volatile read when nobody waits.
+     */
+    private void freed() {
+        if (waiting > 0) {
+            synchronized (roomFreed) {
+                roomFreed.notifyAll();
+            }
+        }
+    }
+
+    ByteBuffer poll() {
+        ByteBuffer message = queue.poll();
+        if (message != null) {
+            size.decrementAndGet();
+            freed();
+        }
+        return message;
+    }
+
+    /**
+     * Move up to batch.length queued messages into batch.
+     *
+     * @param batch array to fill from index 0
+     * @return the number of messages moved
+     */
+    int drainTo(ByteBuffer[] batch) {
+        int count = 0;
+        ByteBuffer message;
+        while (count < batch.length && (message = queue.poll()) != null) {
+            batch[count++] = message;
+        }
+        if (count > 0) {
+            size.addAndGet(-count);
+            freed();
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    void clear() {
+        int cleared = 0;
+        while (queue.poll() != null) {
+            cleared++;
+        }
+        if (cleared > 0) {
+            size.addAndGet(-cleared);
+            freed();
+        }
+    }
+
+    /**
+     * @return how many messages were discarded under the DROP_OLDEST policy
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    ServerConfig.SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+}
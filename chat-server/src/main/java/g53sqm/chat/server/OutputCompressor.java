@@ -0,0 +1,83 @@
+package g53sqm.chat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the output of one connection that switched to MODE DEFLATE into a raw deflate stream.
+ * Every batch of messages is flushed with SYNC_FLUSH so the client can decode it at once, and the
+ * stream starts with a preset dictionary of the text most lines begin with, so even the first
+ * messages compress well.
+ * Only ever used by the single thread writing for the connection.
+ */
+final class OutputCompressor {
+
+    /**
+     * Clients must inflate with the same dictionary. The most frequent prefixes come last, as
+     * deflate finds the closest match first.
+     */
+    static final byte[] DICTIONARY = ("OK STAT There are currently  user(s) on the server You have not logged in yet"
+            + "You are logged in and have sent  message(s)OK PRES LEAVE OK PRES JOIN OK LIST "
+            + "OK MESG your message has been sentPM from Broadcast from ").getBytes(StandardCharsets.UTF_8);
+
+    private static final int INITIAL_SIZE = 1024;
+
+    private final Deflater deflater;
+    private byte[] input;
+    private byte[] output;
+
+    /**
+     * @param level the Deflater compression level, 1 to 9
+     */
+    OutputCompressor(int level) {
+        deflater = new Deflater(level, true);
+        deflater.setDictionary(DICTIONARY);
+        input = new byte[INITIAL_SIZE];
+        output = new byte[INITIAL_SIZE];
+    }
+
+    /**
+     * Compress messages, consuming them.
+     *
+     * @param messages the encoded messages
+     * @param from     index of the first message to compress
+     * @param to       index after the last message to compress
+     * @return the compressed bytes, only valid until the next call
+     */
+    ByteBuffer compress(ByteBuffer[] messages, int from, int to) {
+        int total = 0;
+        for (int i = from; i < to; i++) {
+            total += messages[i].remaining();
+        }
+        if (input.length < total) {
+            input = new byte[Math.max(total, input.length * 2)];
+        }
+        int used = 0;
+        for (int i = from; i < to; i++) {
+            int n = messages[i].remaining();
+            messages[i].get(input, used, n);
+            used += n;
+        }
+        deflater.setInput(input, 0, used);
+        int produced = 0;
+        while (true) {
+            produced += deflater.deflate(output, produced, output.length - produced, Deflater.SYNC_FLUSH);
+            if (produced < output.length) {
+                break;
+            }
+            // A full output buffer may mean more is pending
+            byte[] larger = new byte[output.length * 2];
+            System.arraycopy(output, 0, larger, 0, produced);
+            output = larger;
+        }
+        return ByteBuffer.wrap(output, 0, produced);
+    }
+
+    /**
+     * Free the native memory of the deflater, the compressor cannot be used afterwards.
+     */
+    void release() {
+        deflater.end();
+    }
+}
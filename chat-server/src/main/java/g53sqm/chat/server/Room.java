@@ -0,0 +1,68 @@
+package g53sqm.chat.server;
+
+/**
+ * A named channel. Messages sent to the room only go to its members, so the cost of a room
+ * message depends on the size of the room rather than on the number of users on the server.
+ */
+final class Room {
+
+    static final char PREFIX = '#';
+    static final int MAX_NAME_LENGTH = 32;
+
+    private final String name;
+    private final ConnectionRegistry members;
+
+    Room(String name) {
+        this.name = name;
+        this.members = new ConnectionRegistry();
+    }
+
+    /**
+     * @param name a requested room name
+     * @return true if the name starts with # followed by at least one character, is not too long
+     * and has no line breaks
+     */
+    static boolean isValidName(String name) {
+        return name.length() > 1 && name.length() <= MAX_NAME_LENGTH && name.charAt(0) == PREFIX
+                && !Frame.hasLineBreak(name);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @param c the connection joining
+     * @return false if the connection already was a member
+     */
+    boolean add(Connection c) {
+        if (isMember(c)) {
+            return false;
+        }
+        members.add(c);
+        return true;
+    }
+
+    boolean remove(Connection c) {
+        return members.remove(c);
+    }
+
+    boolean isMember(Connection c) {
+        return members.sequenceOf(c) >= 0;
+    }
+
+    boolean isEmpty() {
+        return members.size() == 0;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    /**
+     * @return the members at some point during the call, must not be modified
+     */
+    Connection[] snapshot() {
+        return members.snapshot();
+    }
+}
@@ -3,10 +3,24 @@ package g53sqm.chat.server;
 
 public class Runner {
     static Server server;
-    final static int PORT = 9000;
 
     public static void main(String[] args) {
-        server = new Server(PORT);
+        final ServerConfig config = ServerConfig.fromArgs(args);
+        switch (config.getEngine()) {
+            case NIO:
+                server = new NioServer(config.getPort(), config);
+                break;
+
+            default:
+                server = new Server(config.getPort(), config);
+                break;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.shutdown(config.getShutdownTimeoutMillis());
+            }
+        }));
         server.listen();
     }
 }
@@ -2,103 +2,737 @@ package g53sqm.chat.server;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Server {
 
     private ServerSocket server;
-    private volatile ArrayList<Connection> list;
-    protected boolean isListening;
+    private ConnectionRegistry connections;
+    private ConcurrentHashMap<String, Connection> users;
+    private ConcurrentHashMap<String, Room> rooms;
+    private final ServerConfig config;
+    private Executor connectionExecutor;
+    private Executor writerExecutor;
+    private final ServerLog log;
+    private ServerMetrics metrics;
+    private BroadcastFanOut fanOut;
+    private MessageLog messageLog;
+    private History history;
+    private Mailboxes mailboxes;
+    private ClusterNode cluster;
+    private IdleReaper reaper;
+    private ScheduledExecutorService sweeper;
+    private TokenBucket broadcastBudget;
+    private int metricsPort;
+    private AtomicLong userListVersion;
+    private volatile UserListCache userListCache;
+    private ReentrantLock presenceLock;
+    private Set<Connection> presenceSubscribers;
+    private ConcurrentLinkedQueue<PresenceUpdate> presenceUpdates;
+    private AtomicInteger presenceDelivering;
+    private ShutdownReport shutdownReport;
+    private static final long SHUTDOWN_POLL_MILLIS = 10;
+    protected volatile boolean isListening;
 
     public Server(int port) {
+        this(port, new ServerConfig());
+    }
+
+    public Server(int port, ServerConfig config) {
+        this.config = config;
+        log = new ServerLog(config);
         try {
             server = new ServerSocket(port);
-            System.out.println("Server has been initialised on port " + server.getLocalPort());
         } catch (IOException e) {
-            System.err.println("error initialising server");
-            e.printStackTrace();
+            log.error("error initialising server", e);
+        }
+        init();
+    }
+
+    /**
+     * Constructor for server engines that bind their own socket.
+     *
+     * @param server the bound server socket
+     * @param config the start up options
+     * @param log    the log the engine reported its start up to
+     */
+    protected Server(ServerSocket server, ServerConfig config, ServerLog log) {
+        this.server = server;
+        this.config = config;
+        this.log = log;
+        init();
+    }
+
+    /**
+     * Set up everything but the server socket, shared by the constructors.
+     */
+    private void init() {
+        metrics = new ServerMetrics(this);
+        if (server != null) {
+            log.info("Server has been initialised on port " + server.getLocalPort());
+        }
+        connections = new ConnectionRegistry();
+        users = new ConcurrentHashMap<String, Connection>();
+        rooms = new ConcurrentHashMap<String, Room>();
+        userListVersion = new AtomicLong();
+        userListCache = new UserListCache(-1, null);
+        presenceLock = new ReentrantLock();
+        presenceSubscribers = ConcurrentHashMap.newKeySet();
+        presenceUpdates = new ConcurrentLinkedQueue<PresenceUpdate>();
+        presenceDelivering = new AtomicInteger();
+        broadcastBudget = TokenBucket.of(config.getBroadcastRate(), config.getBroadcastBurst());
+        connectionExecutor = ConnectionThreads.forMode(config.getThreadMode());
+        writerExecutor = ConnectionThreads.writers(config.getThreadMode());
+        fanOut = new BroadcastFanOut(config);
+        openMessageLog();
+        openMailboxes();
+        startMetrics();
+        joinCluster();
+        reaper = IdleReaper.start(config, log);
+        startSweeper();
+    }
+
+    private void openMessageLog() {
+        if (config.getMessageLogDir() != null) {
+            try {
+                messageLog = MessageLog.open(config, log);
+                log.info("Messages are stored in " + config.getMessageLogDir());
+            } catch (IOException e) {
+                log.error("error opening the message log, messages are not stored", e);
+            }
+        }
+        history = new History(config.getHistorySize(), messageLog);
+    }
+
+    private void openMailboxes() {
+        try {
+            mailboxes = Mailboxes.open(config, log);
+        } catch (IOException e) {
+            log.error("error opening the mailboxes, they are kept in memory only", e);
+            mailboxes = new Mailboxes(config.getMailboxSize(), config.getMailboxUsers(), null, log);
+        }
+    }
+
+    private void joinCluster() {
+        if (config.getClusterDir() == null) {
+            return;
+        }
+        try {
+            cluster = ClusterNode.start(this, config);
+            log.info("Cluster node " + cluster.getNodeId() + " joined " + config.getClusterDir());
+        } catch (IOException e) {
+            log.error("error joining the cluster, running alone", e);
+        }
+    }
+
+    private void startSweeper() {
+        long interval = config.getSweepIntervalMillis();
+        if (interval == 0) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread t = new Thread(task, "dead-connection-sweep");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                removeDeadUsers();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void startMetrics() {
+        metricsPort = -1;
+        if (server == null) {
+            return;
+        }
+        metrics.registerMBean(server.getLocalPort());
+        if (config.getMetricsPort() >= 0) {
+            metricsPort = metrics.startEndpoint(config.getMetricsPort());
+            if (metricsPort >= 0) {
+                log.info("Metrics are served on http://localhost:" + metricsPort + "/metrics");
+            }
         }
-        list = new ArrayList<Connection>();
     }
 
     public void listen() {
         if (!this.isListening) {
             this.isListening = true;
             while (this.isListening) {
-                Connection c = null;
                 try {
-                    c = new Connection(server.accept(), this);
+                    Socket client = server.accept();
+                    Connection c = new Connection(client, this);
+                    addConnection(c);
+                    log.info("connect ", client.getRemoteSocketAddress());
+                    connectionExecutor.execute(c);
                 } catch (IOException e) {
-                    System.err.println("error setting up new client connection.");
-                    e.printStackTrace();
-                }
-                Thread t = new Thread(c);
-                t.start();
-                synchronized (this) {
-                    this.list.add(c);
+                    if (isListening) {
+                        log.error("error setting up new client connection.", e);
+                    }
                 }
             }
         }
     }
 
+    protected void addConnection(Connection c) {
+        connections.add(c);
+        metrics.connectionAccepted();
+        if (reaper != null) {
+            reaper.track(c);
+        }
+    }
+
+    /**
+     * @return the open connections in the order they were accepted
+     */
+    ArrayList<Connection> getConnections() {
+        return connections.inAcceptOrder();
+    }
+
+    /**
+     * Stop accepting connections, the connections already open carry on.
+     */
     public void stopListening() {
         this.isListening = false;
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (server != null) {
+            try {
+                // Wakes the accept loop
+                server.close();
+            } catch (IOException e) {
+                log.error("error closing server socket", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the server for good. Accepting stops, every connection is told the server is going away
+     * and closed once it has written what is queued for it. Connections that have not drained by
+     * the deadline are closed regardless and what they still had queued is counted in the report.
+     * Every thread and file of the server is released, including the log, calling it again only
+     * returns the first report.
+     *
+     * @param timeoutMillis how long connections get to drain
+     * @return how the connections were closed, also written to the log
+     */
+    public synchronized ShutdownReport shutdown(long timeoutMillis) {
+        if (shutdownReport != null) {
+            return shutdownReport;
+        }
+        long start = System.nanoTime();
+        stopListening();
+        if (reaper != null) {
+            reaper.close();
+        }
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        Connection[] open = connections.snapshot();
+        Frame notice = Frame.of("OK QUIT the server is shutting down, goodbye");
+        for (Connection c : open) {
+            c.sendFrame(notice);
+            c.closeConnection();
+        }
+
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int remaining = open.length;
+        while (remaining > 0 && System.nanoTime() < deadline) {
+            remaining = 0;
+            for (Connection c : open) {
+                if (!c.isClosed()) {
+                    remaining++;
+                }
+            }
+            if (remaining > 0) {
+                try {
+                    Thread.sleep(SHUTDOWN_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        int drained = 0;
+        long pending = 0;
+        for (Connection c : open) {
+            if (c.isClosed()) {
+                drained++;
+            } else {
+                pending += c.getPendingCount();
+                c.abort();
+            }
+            removeConnection(c);
+        }
+
+        stopEngine();
+        shutdownExecutor(connectionExecutor);
+        shutdownExecutor(writerExecutor);
+        fanOut.shutdown();
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        mailboxes.close();
+        metrics.close();
+        shutdownReport = new ShutdownReport(open.length, drained, pending,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.info(shutdownReport.toString());
+        log.close();
+        return shutdownReport;
+    }
+
+    private static void shutdownExecutor(Executor executor) {
+        // The platform connection executor starts bare threads, which end with their connections
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Stop the threads of the server engine, after the connections are closed.
+     */
+    protected void stopEngine() {
     }
 
     public ArrayList<String> getUserList() {
-        ArrayList<String> userList = new ArrayList<String>();
-        Iterator<Connection> it = list.iterator();
-        while (it.hasNext()) {
-            Connection clientThread = it.next();
-            if (clientThread.getState() == Connection.STATE_REGISTERED) {
-                userList.add(clientThread.getUserName());
+        ArrayList<Map.Entry<String, Long>> registered = new ArrayList<Map.Entry<String, Long>>(users.size());
+        for (Map.Entry<String, Connection> user : users.entrySet()) {
+            long sequence = connections.sequenceOf(user.getValue());
+            if (sequence >= 0) {
+                registered.add(new AbstractMap.SimpleEntry<String, Long>(user.getKey(), sequence));
+            }
+        }
+        Collections.sort(registered, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(a.getValue(), b.getValue());
             }
+        });
+        ArrayList<String> userList = new ArrayList<String>(registered.size());
+        for (Map.Entry<String, Long> user : registered) {
+            userList.add(user.getKey());
         }
         return userList;
     }
 
+    /**
+     * The reply to LIST, rendered once per change of the registered users and shared by every
+     * LIST request until the next change.
+     *
+     * @return the encoded "OK LIST" line
+     */
+    Frame getUserListFrame() {
+        UserListCache cached = userListCache;
+        // Read before the users so that a change made while rendering forces another rebuild
+        long version = userListVersion.get();
+        if (cached.version != version) {
+            StringBuilder list = new StringBuilder("OK LIST ");
+            for (String user : getUserList()) {
+                list.append(user).append(", ");
+            }
+            cached = new UserListCache(version, Frame.of(list.toString()));
+            userListCache = cached;
+        }
+        return cached.frame;
+    }
+
     public boolean doesUserExist(String newUser) {
-        for (Connection clientThread : list) {
-            if (clientThread.getState() == Connection.STATE_REGISTERED) {
-                if (clientThread.getUserName().equals(newUser)) {
-                    return true;
-                }
+        return users.containsKey(newUser) || (cluster != null && cluster.hasUser(newUser));
+    }
+
+    /**
+     * @return the users registered on this node
+     */
+    Set<String> getRegisteredUsernames() {
+        return users.keySet();
+    }
+
+    /**
+     * Claim a username for a connection, atomically so that two clients can never hold the same name.
+     * In a cluster two nodes can both take a name before either hears of the other, the node with the
+     * lowest id keeps it and the other drops its user when the JOIN arrives, see ClusterNode.
+     *
+     * @param username the requested username
+     * @param c        the connection asking for it
+     * @return true if the name was free and now belongs to the connection
+     */
+    boolean registerUser(String username, Connection c) {
+        if (cluster != null && cluster.hasUser(username)) {
+            return false;
+        }
+        if (users.putIfAbsent(username, c) == null) {
+            if (cluster != null && cluster.losesClaim(username)) {
+                // A node that wins the name joined it meanwhile
+                users.remove(username, c);
+                return false;
+            }
+            if (cluster != null) {
+                cluster.userJoined(username);
             }
+            userListVersion.incrementAndGet();
+            publishPresence("JOIN ", username);
+            return true;
         }
         return false;
     }
 
+    /**
+     * @return true if a user by that name is registered on this node
+     */
+    boolean hasLocalUser(String username) {
+        return users.containsKey(username);
+    }
+
+    /**
+     * Disconnect the local user holding a name another node won.
+     *
+     * @param username the name taken elsewhere
+     */
+    void dropUserTakenElsewhere(String username) {
+        Connection c = users.get(username);
+        if (c != null) {
+            c.nameTakenElsewhere();
+        }
+    }
+
+    /**
+     * Free the username of a connection, if it still holds it.
+     *
+     * @param c the connection giving up its name
+     */
+    void unregisterUser(Connection c) {
+        String username = c.getUserName();
+        if (username != null && users.remove(username, c)) {
+            mailboxes.checkOut(username);
+            if (cluster != null) {
+                cluster.userLeft(username);
+            }
+            userListVersion.incrementAndGet();
+            publishPresence("LEAVE ", username);
+        }
+    }
+
+    /**
+     * Send the connection the users online now and from then on every JOIN and LEAVE.
+     * The snapshot takes its place in the same queue as the events, so it always arrives before
+     * them, an event for a user that registered while the snapshot was taken may repeat what the
+     * snapshot already says.
+     *
+     * @param c the registered connection subscribing
+     */
+    void subscribePresence(Connection c) {
+        presenceLock.lock();
+        try {
+            StringBuilder snapshot = new StringBuilder("OK PRES SNAP ");
+            for (String user : getUserList()) {
+                snapshot.append(user).append(", ");
+            }
+            presenceUpdates.add(new PresenceUpdate(c, snapshot.toString()));
+        } finally {
+            presenceLock.unlock();
+        }
+        deliverPresence();
+    }
+
+    private void publishPresence(String event, String username) {
+        presenceLock.lock();
+        try {
+            presenceUpdates.add(new PresenceUpdate(null, "OK PRES " + event + username));
+        } finally {
+            presenceLock.unlock();
+        }
+        deliverPresence();
+    }
+
+    /**
+     * Queue the pending presence updates for the subscribers, outside the presence lock so a full
+     * queue never holds up a login. One thread delivers at a time, in the order the updates were
+     * taken, a thread that finds another delivering leaves its update to that one.
+     */
+    private void deliverPresence() {
+        if (presenceDelivering.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            PresenceUpdate update;
+            while ((update = presenceUpdates.poll()) != null) {
+                if (update.subscriber != null) {
+                    update.subscriber.sendOverConnection(update.line);
+                    presenceSubscribers.add(update.subscriber);
+                    if (!update.subscriber.isRunning()) {
+                        // Stopped meanwhile, removeConnection may have run before the add
+                        presenceSubscribers.remove(update.subscriber);
+                    }
+                    continue;
+                }
+                // Only the subscribers are visited, so logins and logouts cost nothing per other connection
+                Frame frame = null;
+                for (Connection c : presenceSubscribers) {
+                    if (frame == null) {
+                        frame = Frame.of(update.line);
+                    }
+                    c.sendFrame(frame);
+                }
+            }
+            missed = presenceDelivering.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Take a broadcast from the budget shared by all clients.
+     *
+     * @return false if clients have used up the broadcasts allowed for now
+     */
+    boolean tryBroadcast() {
+        return broadcastBudget == null || broadcastBudget.tryAcquire();
+    }
+
+    /**
+     * Send a line to every connection. The line is encoded once and the same bytes are
+     * queued for every recipient, by several threads when there are many recipients.
+     *
+     * @param theMessage the line to send
+     */
     public void broadcastMessage(String theMessage) {
-        System.out.println(theMessage);
-        for (Connection clientThread : list) {
-            clientThread.messageForConnection(theMessage + System.lineSeparator());
+        deliverBroadcast(theMessage);
+        if (cluster != null) {
+            cluster.forwardBroadcast(theMessage);
         }
     }
 
-    public boolean sendPrivateMessage(String message, String user) {
-        for (Connection clientThread : list) {
-            if (clientThread.getState() == Connection.STATE_REGISTERED) {
-                if (clientThread.getUserName().compareTo(user) == 0) {
-                    clientThread.messageForConnection(message + System.lineSeparator());
-                    return true;
+    /**
+     * Send a broadcast to the connections of this node only, for broadcasts from other nodes.
+     */
+    void deliverBroadcast(String theMessage) {
+        log.info("broadcast ", theMessage);
+        long start = System.nanoTime();
+        Frame frame = Frame.of(theMessage);
+        Connection[] recipients = connections.snapshot();
+        fanOut.send(recipients, frame);
+        metrics.broadcastSent(recipients.length, System.nanoTime() - start);
+        long offset = messageLog == null ? -1 : messageLog.append(MessageLog.Kind.BROADCAST, null, theMessage);
+        history.add(frame, offset);
+    }
+
+    /**
+     * Add a connection to a room, creating the room if it does not exist yet.
+     *
+     * @param name the room name, already validated
+     * @param c    the connection joining
+     * @return false if the connection already was a member
+     */
+    boolean joinRoom(String name, final Connection c) {
+        final boolean[] joined = new boolean[1];
+        rooms.compute(name, new BiFunction<String, Room, Room>() {
+            @Override
+            public Room apply(String name, Room room) {
+                if (room == null) {
+                    room = new Room(name);
                 }
+                joined[0] = room.add(c);
+                return room;
             }
+        });
+        if (joined[0]) {
+            c.getRooms().add(name);
+        }
+        return joined[0];
+    }
+
+    /**
+     * Remove a connection from a room, the room is dropped once its last member left.
+     *
+     * @param name the room name
+     * @param c    the connection leaving
+     * @return false if the connection was not a member
+     */
+    boolean partRoom(String name, final Connection c) {
+        final boolean[] parted = new boolean[1];
+        rooms.computeIfPresent(name, new BiFunction<String, Room, Room>() {
+            @Override
+            public Room apply(String name, Room room) {
+                parted[0] = room.remove(c);
+                return room.isEmpty() ? null : room;
+            }
+        });
+        c.getRooms().remove(name);
+        return parted[0];
+    }
+
+    private void leaveRooms(Connection c) {
+        for (String name : c.getRooms()) {
+            partRoom(name, c);
+        }
+    }
+
+    /**
+     * Send a line to the members of a room only, like broadcastMessage does for the whole server.
+     *
+     * @param name       the room name
+     * @param sender     the connection sending, must be a member
+     * @param theMessage the line to send
+     * @return false if the sender is not a member of the room
+     */
+    boolean broadcastToRoom(String name, Connection sender, String theMessage) {
+        Room room = rooms.get(name);
+        if (room == null || !room.isMember(sender)) {
+            return false;
+        }
+        log.info("broadcast ", theMessage);
+        long start = System.nanoTime();
+        Frame frame = Frame.of(theMessage);
+        Connection[] recipients = room.snapshot();
+        fanOut.send(recipients, frame);
+        metrics.broadcastSent(recipients.length, System.nanoTime() - start);
+        if (messageLog != null) {
+            messageLog.append(MessageLog.Kind.ROOM, name, theMessage);
+        }
+        return true;
+    }
+
+    /**
+     * @param name a room name
+     * @return the number of members of the room, 0 if it does not exist
+     */
+    int getRoomSize(String name) {
+        Room room = rooms.get(name);
+        return room == null ? 0 : room.size();
+    }
+
+    int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Send a private message to a user who is online. A message for a known user who is offline is
+     * kept in their mailbox, deliverPrivateMessage tells what became of it.
+     *
+     * @return true if the message was sent, false if it was stored or the user is unknown
+     */
+    public boolean sendPrivateMessage(String message, String user) {
+        return deliverPrivateMessage(message, user) == null;
+    }
+
+    /**
+     * Send a private message to a user who is online, or keep it in their mailbox if they are not.
+     *
+     * @return null if the message was sent, otherwise what became of it
+     */
+    Mailboxes.Deposit deliverPrivateMessage(String message, String user) {
+        return deliverPrivateMessage(message, user, true);
+    }
+
+    /**
+     * Deliver a private message another node forwarded, without forwarding it again.
+     */
+    void deliverLocalPrivateMessage(String message, String user) {
+        deliverPrivateMessage(message, user, false);
+    }
+
+    private Mailboxes.Deposit deliverPrivateMessage(String message, String user, boolean forward) {
+        Mailboxes.Deposit outcome;
+        do {
+            Connection clientThread = users.get(user);
+            if (clientThread != null) {
+                clientThread.messageForConnection(message);
+                outcome = null;
+                break;
+            }
+            if (forward && cluster != null && cluster.forwardPrivateMessage(user, message)) {
+                // The node holding the user stores the message
+                return null;
+            }
+            // ONLINE means the user logged in after the lookup, so they can be found now
+            outcome = mailboxes.deposit(user, message);
+        } while (outcome == Mailboxes.Deposit.ONLINE);
+        if (messageLog != null && (outcome == null || outcome == Mailboxes.Deposit.STORED)) {
+            messageLog.append(MessageLog.Kind.PRIVATE, user, message);
+        }
+        return outcome;
+    }
+
+    /**
+     * Hand a user who just logged in the private messages sent while they were offline.
+     *
+     * @param username the registered user
+     * @return the messages, oldest first
+     */
+    List<String> checkInMailbox(String username) {
+        return mailboxes.checkIn(username);
+    }
+
+    /**
+     * Forget a connection that stopped running, without looking at any other connection.
+     * Removing a connection that is already gone does nothing.
+     *
+     * @param c the connection that stopped
+     * @return true if the connection was still known
+     */
+    boolean removeConnection(Connection c) {
+        if (connections.remove(c)) {
+            presenceSubscribers.remove(c);
+            leaveRooms(c);
+            unregisterUser(c);
+            return true;
         }
         return false;
     }
 
-    public synchronized void removeDeadUsers() {
-        Iterator<Connection> it = list.iterator();
-        while (it.hasNext()) {
-            Connection c = it.next();
-            if (c != null && !c.isRunning())
-                it.remove();
+    /**
+     * Safety sweep over every connection for those that stopped running without removing themselves.
+     * Connections remove themselves when they stop, so this only runs every sweep-interval-ms.
+     */
+    public void removeDeadUsers() {
+        int removed = 0;
+        for (Connection c : connections.snapshot()) {
+            if (!c.isRunning() && removeConnection(c)) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            log.warn("swept " + removed + " dead connection(s)");
         }
     }
 
     public int getNumberOfUsers() {
-        return list.size();
+        return connections.size();
+    }
+
+    int getRegisteredUserCount() {
+        return users.size();
+    }
+
+    /**
+     * @return every open connection, must not be modified
+     */
+    Connection[] getConnectionSnapshot() {
+        return connections.snapshot();
     }
 
     public boolean isListening() {
@@ -109,8 +743,95 @@ public class Server {
         return server.getLocalPort();
     }
 
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the executor that drains the outbound queues of blocking connections
+     */
+    Executor getWriterExecutor() {
+        return writerExecutor;
+    }
+
+    /**
+     * @return the log server events are written to
+     */
+    ServerLog getLog() {
+        return log;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the port of the plain text metrics endpoint, -1 if it is not running
+     */
+    int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * @return the store of sent messages, null if messages are not stored
+     */
+    MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * @return the recent public broadcasts
+     */
+    History getHistory() {
+        return history;
+    }
+
+    Mailboxes getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * @return this node of the cluster, null when the server runs alone
+     */
+    ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return the reaper of idle connections, null if they are kept
+     */
+    IdleReaper getIdleReaper() {
+        return reaper;
+    }
+
+    protected ServerSocket getServerSocket() {
+        return server;
+    }
+
     protected void finalize() throws IOException {
         server.close();
     }
 
+    private static final class UserListCache {
+        private final long version;
+        private final Frame frame;
+
+        private UserListCache(long version, Frame frame) {
+            this.version = version;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * A presence event for every subscriber, or a snapshot for the one connection subscribing.
+     */
+    private static final class PresenceUpdate {
+        private final Connection subscriber;
+        private final String line;
+
+        private PresenceUpdate(Connection subscriber, String line) {
+            this.subscriber = subscriber;
+            this.line = line;
+        }
+    }
 }
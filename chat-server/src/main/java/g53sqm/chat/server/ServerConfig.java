@@ -0,0 +1,812 @@
+package g53sqm.chat.server;
+
+/**
+ * Start up options for the chat server.
+ * Options are given on the command line in the form --name=value.
+ */
+public class ServerConfig {
+
+    public enum Engine {
+        BLOCKING, NIO
+    }
+
+    /**
+     * Kind of thread each connection of the blocking engine runs on.
+     */
+    public enum ThreadMode {
+        PLATFORM, VIRTUAL
+    }
+
+    /**
+     * What to do when a client does not read its messages as fast as they are produced
+     * and its outbound queue is full. DISCONNECT, the default, gives up on the client so nobody
+     * else waits for it. BLOCK makes the producer wait up to the block timeout and disconnects the
+     * client after that, it stalls the broadcaster and every other recipient meanwhile so it is only
+     * ever used when asked for. The NIO engine never waits and treats BLOCK as DISCONNECT.
+     */
+    public enum SlowConsumerPolicy {
+        DROP_OLDEST, DISCONNECT, BLOCK
+    }
+
+    private Engine engine;
+    private ThreadMode threadMode;
+    private int ioThreads;
+    private int outboundQueueCapacity;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private long blockTimeoutMillis;
+    private ServerLog.Level logLevel;
+    private int logBufferSize;
+    private int metricsPort;
+    private String adminToken;
+    private int fanOutThreshold;
+    private int fanOutThreads;
+    private int compressionLevel;
+    private String messageLogDir;
+    private int messageLogSegmentSize;
+    private int messageLogQueue;
+    private int historySize;
+    private int historyReplay;
+    private int historyMax;
+    private int mailboxSize;
+    private int mailboxUsers;
+    private String mailboxDir;
+    private int port;
+    private String clusterDir;
+    private int clusterPort;
+    private String clusterHost;
+    private long shutdownTimeoutMillis;
+    private long idleTimeoutMillis;
+    private long pongTimeoutMillis;
+    private long sweepIntervalMillis;
+    private int hailRate;
+    private int hailBurst;
+    private int mesgRate;
+    private int mesgBurst;
+    private int listRate;
+    private int listBurst;
+    private int broadcastRate;
+    private int broadcastBurst;
+
+    public ServerConfig() {
+        engine = Engine.BLOCKING;
+        threadMode = ThreadMode.PLATFORM;
+        ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        outboundQueueCapacity = 1024;
+        slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+        blockTimeoutMillis = 5000;
+        logLevel = ServerLog.Level.INFO;
+        logBufferSize = 8192;
+        metricsPort = -1;
+        adminToken = null;
+        fanOutThreshold = 1024;
+        fanOutThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        compressionLevel = 6;
+        messageLogDir = null;
+        messageLogSegmentSize = 16 * 1024 * 1024;
+        messageLogQueue = 65536;
+        historySize = 256;
+        historyReplay = 0;
+        historyMax = 1000;
+        mailboxSize = 100;
+        mailboxUsers = 10000;
+        mailboxDir = null;
+        port = 9000;
+        clusterDir = null;
+        clusterPort = 0;
+        clusterHost = "localhost";
+        shutdownTimeoutMillis = 5000;
+        idleTimeoutMillis = 60000;
+        pongTimeoutMillis = 15000;
+        sweepIntervalMillis = 30000;
+        hailRate = 0;
+        hailBurst = 0;
+        mesgRate = 0;
+        mesgBurst = 0;
+        listRate = 0;
+        listBurst = 0;
+        broadcastRate = 0;
+        broadcastBurst = 0;
+    }
+
+    /**
+     * Parse the command line arguments into a config, unknown options are reported and ignored.
+     *
+     * @param args the arguments given to the runner
+     * @return the parsed config
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("ignoring invalid option " + arg);
+                continue;
+            }
+            int split = arg.indexOf('=');
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            try {
+                config.set(name, value);
+            } catch (IllegalArgumentException e) {
+                System.err.println("ignoring option " + arg + ": " + e.getMessage());
+            }
+        }
+        return config;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "engine":
+                setEngine(Engine.valueOf(value.toUpperCase()));
+                break;
+
+            case "threads":
+                setThreadMode(ThreadMode.valueOf(value.toUpperCase()));
+                break;
+
+            case "io-threads":
+                setIoThreads(Integer.parseInt(value));
+                break;
+
+            case "outbound-queue":
+                setOutboundQueueCapacity(Integer.parseInt(value));
+                break;
+
+            case "slow-consumer":
+                setSlowConsumerPolicy(SlowConsumerPolicy.valueOf(value.toUpperCase().replace('-', '_')));
+                break;
+
+            case "block-timeout-ms":
+                setBlockTimeoutMillis(Long.parseLong(value));
+                break;
+
+            case "log-level":
+                setLogLevel(ServerLog.Level.valueOf(value.toUpperCase()));
+                break;
+
+            case "log-buffer":
+                setLogBufferSize(Integer.parseInt(value));
+                break;
+
+            case "metrics-port":
+                setMetricsPort(Integer.parseInt(value));
+                break;
+
+            case "admin-token":
+                setAdminToken(value);
+                break;
+
+            case "fanout-threshold":
+                setFanOutThreshold(Integer.parseInt(value));
+                break;
+
+            case "fanout-threads":
+                setFanOutThreads(Integer.parseInt(value));
+                break;
+
+            case "compression-level":
+                setCompressionLevel(Integer.parseInt(value));
+                break;
+
+            case "message-log-dir":
+                setMessageLogDir(value);
+                break;
+
+            case "message-log-segment-size":
+                setMessageLogSegmentSize(Integer.parseInt(value));
+                break;
+
+            case "message-log-queue":
+                setMessageLogQueue(Integer.parseInt(value));
+                break;
+
+            case "history-size":
+                setHistorySize(Integer.parseInt(value));
+                break;
+
+            case "history-replay":
+                setHistoryReplay(Integer.parseInt(value));
+                break;
+
+            case "history-max":
+                setHistoryMax(Integer.parseInt(value));
+                break;
+
+            case "mailbox-size":
+                setMailboxSize(Integer.parseInt(value));
+                break;
+
+            case "mailbox-users":
+                setMailboxUsers(Integer.parseInt(value));
+                break;
+
+            case "mailbox-dir":
+                setMailboxDir(value);
+                break;
+
+            case "port":
+                setPort(Integer.parseInt(value));
+                break;
+
+            case "cluster-dir":
+                setClusterDir(value);
+                break;
+
+            case "cluster-port":
+                setClusterPort(Integer.parseInt(value));
+                break;
+
+            case "cluster-host":
+                setClusterHost(value);
+                break;
+
+            case "shutdown-timeout-ms":
+                setShutdownTimeoutMillis(Long.parseLong(value));
+                break;
+
+            case "idle-timeout-ms":
+                setIdleTimeoutMillis(Long.parseLong(value));
+                break;
+
+            case "pong-timeout-ms":
+                setPongTimeoutMillis(Long.parseLong(value));
+                break;
+
+            case "sweep-interval-ms":
+                setSweepIntervalMillis(Long.parseLong(value));
+                break;
+
+            case "hail-rate":
+                setHailRate(Integer.parseInt(value));
+                break;
+
+            case "hail-burst":
+                setHailBurst(Integer.parseInt(value));
+                break;
+
+            case "mesg-rate":
+                setMesgRate(Integer.parseInt(value));
+                break;
+
+            case "mesg-burst":
+                setMesgBurst(Integer.parseInt(value));
+                break;
+
+            case "list-rate":
+                setListRate(Integer.parseInt(value));
+                break;
+
+            case "list-burst":
+                setListBurst(Integer.parseInt(value));
+                break;
+
+            case "broadcast-rate":
+                setBroadcastRate(Integer.parseInt(value));
+                break;
+
+            case "broadcast-burst":
+                setBroadcastBurst(Integer.parseInt(value));
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown option");
+        }
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public ServerConfig setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    public ServerConfig setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ServerConfig setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("io-threads must be at least 1");
+        }
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public ServerConfig setOutboundQueueCapacity(int outboundQueueCapacity) {
+        if (outboundQueueCapacity < 1) {
+            throw new IllegalArgumentException("outbound-queue must be at least 1");
+        }
+        this.outboundQueueCapacity = outboundQueueCapacity;
+        return this;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public ServerConfig setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        return this;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    public ServerConfig setBlockTimeoutMillis(long blockTimeoutMillis) {
+        if (blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("block-timeout-ms must not be negative");
+        }
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        return this;
+    }
+
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public ServerConfig setLogLevel(ServerLog.Level logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    public ServerConfig setLogBufferSize(int logBufferSize) {
+        if (logBufferSize < 2) {
+            throw new IllegalArgumentException("log-buffer must be at least 2");
+        }
+        this.logBufferSize = logBufferSize;
+        return this;
+    }
+
+    /**
+     * @return the localhost port of the plain text metrics endpoint, 0 for any free port, -1 when disabled
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerConfig setMetricsPort(int metricsPort) {
+        if (metricsPort < -1 || metricsPort > 65535) {
+            throw new IllegalArgumentException("metrics-port must be -1 or a valid port");
+        }
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    /**
+     * @return the token clients pass to STAT ADMIN to see the metrics, null when STAT ADMIN is disabled
+     */
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    public ServerConfig setAdminToken(String adminToken) {
+        if (adminToken != null && adminToken.isEmpty()) {
+            throw new IllegalArgumentException("admin-token must not be empty");
+        }
+        this.adminToken = adminToken;
+        return this;
+    }
+
+    /**
+     * @return the number of recipients from which a broadcast is split across the fan-out threads, 0 for never
+     */
+    public int getFanOutThreshold() {
+        return fanOutThreshold;
+    }
+
+    public ServerConfig setFanOutThreshold(int fanOutThreshold) {
+        if (fanOutThreshold < 0) {
+            throw new IllegalArgumentException("fanout-threshold must not be negative");
+        }
+        this.fanOutThreshold = fanOutThreshold;
+        return this;
+    }
+
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    public ServerConfig setFanOutThreads(int fanOutThreads) {
+        if (fanOutThreads < 1) {
+            throw new IllegalArgumentException("fanout-threads must be at least 1");
+        }
+        this.fanOutThreads = fanOutThreads;
+        return this;
+    }
+
+    /**
+     * @return the deflate level of connections that ask for MODE DEFLATE, 0 if compression is refused
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public ServerConfig setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compression-level must be between 0 and 9");
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * @return the directory messages are stored in, null when they are not stored
+     */
+    public String getMessageLogDir() {
+        return messageLogDir;
+    }
+
+    public ServerConfig setMessageLogDir(String messageLogDir) {
+        if (messageLogDir != null && messageLogDir.isEmpty()) {
+            throw new IllegalArgumentException("message-log-dir must not be empty");
+        }
+        this.messageLogDir = messageLogDir;
+        return this;
+    }
+
+    /**
+     * @return the size in bytes of each file of the message log
+     */
+    public int getMessageLogSegmentSize() {
+        return messageLogSegmentSize;
+    }
+
+    public ServerConfig setMessageLogSegmentSize(int messageLogSegmentSize) {
+        if (messageLogSegmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("message-log-segment-size must be at least 65536");
+        }
+        this.messageLogSegmentSize = messageLogSegmentSize;
+        return this;
+    }
+
+    /**
+     * @return the number of messages that can wait to be stored before new ones are dropped
+     */
+    public int getMessageLogQueue() {
+        return messageLogQueue;
+    }
+
+    public ServerConfig setMessageLogQueue(int messageLogQueue) {
+        if (messageLogQueue < 1) {
+            throw new IllegalArgumentException("message-log-queue must be at least 1");
+        }
+        this.messageLogQueue = messageLogQueue;
+        return this;
+    }
+
+    /**
+     * @return the number of recent broadcasts kept in memory for HIST
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public ServerConfig setHistorySize(int historySize) {
+        if (historySize < 0) {
+            throw new IllegalArgumentException("history-size must not be negative");
+        }
+        this.historySize = historySize;
+        return this;
+    }
+
+    /**
+     * @return the number of broadcasts replayed to a user who logs in, 0 for none, the default.
+     * Clients that expect the baseline login reply get nothing extra, any client can ask with HIST
+     */
+    public int getHistoryReplay() {
+        return historyReplay;
+    }
+
+    public ServerConfig setHistoryReplay(int historyReplay) {
+        if (historyReplay < 0) {
+            throw new IllegalArgumentException("history-replay must not be negative");
+        }
+        this.historyReplay = historyReplay;
+        return this;
+    }
+
+    /**
+     * @return the most broadcasts one HIST command can ask for
+     */
+    public int getHistoryMax() {
+        return historyMax;
+    }
+
+    public ServerConfig setHistoryMax(int historyMax) {
+        if (historyMax < 1) {
+            throw new IllegalArgumentException("history-max must be at least 1");
+        }
+        this.historyMax = historyMax;
+        return this;
+    }
+
+    /**
+     * @return the most private messages kept for a user who is offline, 0 to keep none
+     */
+    public int getMailboxSize() {
+        return mailboxSize;
+    }
+
+    public ServerConfig setMailboxSize(int mailboxSize) {
+        if (mailboxSize < 0) {
+            throw new IllegalArgumentException("mailbox-size must not be negative");
+        }
+        this.mailboxSize = mailboxSize;
+        return this;
+    }
+
+    /**
+     * @return the most users a mailbox is kept for, the mailboxes of users who left longest ago
+     * without messages waiting are forgotten first
+     */
+    public int getMailboxUsers() {
+        return mailboxUsers;
+    }
+
+    public ServerConfig setMailboxUsers(int mailboxUsers) {
+        if (mailboxUsers < 1) {
+            throw new IllegalArgumentException("mailbox-users must be at least 1");
+        }
+        this.mailboxUsers = mailboxUsers;
+        return this;
+    }
+
+    /**
+     * @return the directory the mailboxes of offline users are kept in, null to keep them in memory
+     */
+    public String getMailboxDir() {
+        return mailboxDir;
+    }
+
+    public ServerConfig setMailboxDir(String mailboxDir) {
+        if (mailboxDir != null && mailboxDir.isEmpty()) {
+            throw new IllegalArgumentException("mailbox-dir must not be empty");
+        }
+        this.mailboxDir = mailboxDir;
+        return this;
+    }
+
+    /**
+     * @return the port clients connect to
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("port must be from 0 to 65535");
+        }
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @return the membership directory shared by the nodes of a cluster, null to run alone
+     */
+    public String getClusterDir() {
+        return clusterDir;
+    }
+
+    public ServerConfig setClusterDir(String clusterDir) {
+        if (clusterDir != null && clusterDir.isEmpty()) {
+            throw new IllegalArgumentException("cluster-dir must not be empty");
+        }
+        this.clusterDir = clusterDir;
+        return this;
+    }
+
+    /**
+     * @return the port of the link other nodes connect to, 0 for any free port
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ServerConfig setClusterPort(int clusterPort) {
+        if (clusterPort < 0 || clusterPort > 65535) {
+            throw new IllegalArgumentException("cluster-port must be from 0 to 65535");
+        }
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    /**
+     * @return the host name other nodes reach this node's link at, which the link also listens on.
+     * The link has no authentication, so this must be an address only the other nodes can reach,
+     * never a public one
+     */
+    public String getClusterHost() {
+        return clusterHost;
+    }
+
+    public ServerConfig setClusterHost(String clusterHost) {
+        if (clusterHost == null || clusterHost.isEmpty() || clusterHost.indexOf('_') >= 0) {
+            throw new IllegalArgumentException("cluster-host must be a host name");
+        }
+        this.clusterHost = clusterHost;
+        return this;
+    }
+
+    /**
+     * @return how long connections get to write what is queued when the server shuts down
+     */
+    public long getShutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    public ServerConfig setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        if (shutdownTimeoutMillis < 0) {
+            throw new IllegalArgumentException("shutdown-timeout-ms must not be negative");
+        }
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return how long a connection may stay silent before it is sent a PING, 0 if idle connections are kept
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public ServerConfig setIdleTimeoutMillis(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("idle-timeout-ms must not be negative");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return how long a connection that was sent a PING has to answer before it is closed
+     */
+    public long getPongTimeoutMillis() {
+        return pongTimeoutMillis;
+    }
+
+    public ServerConfig setPongTimeoutMillis(long pongTimeoutMillis) {
+        if (pongTimeoutMillis < 1) {
+            throw new IllegalArgumentException("pong-timeout-ms must be at least 1");
+        }
+        this.pongTimeoutMillis = pongTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return how often every connection is checked for dead ones that were not removed, 0 to never check
+     */
+    public long getSweepIntervalMillis() {
+        return sweepIntervalMillis;
+    }
+
+    public ServerConfig setSweepIntervalMillis(long sweepIntervalMillis) {
+        if (sweepIntervalMillis < 0) {
+            throw new IllegalArgumentException("sweep-interval-ms must not be negative");
+        }
+        this.sweepIntervalMillis = sweepIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return the HAIL commands a connection may send per second, 0 for no limit
+     */
+    public int getHailRate() {
+        return hailRate;
+    }
+
+    public ServerConfig setHailRate(int hailRate) {
+        this.hailRate = checkRate("hail-rate", hailRate);
+        return this;
+    }
+
+    /**
+     * @return the HAIL commands a connection may send at once, 0 for one second's worth
+     */
+    public int getHailBurst() {
+        return hailBurst;
+    }
+
+    public ServerConfig setHailBurst(int hailBurst) {
+        this.hailBurst = checkRate("hail-burst", hailBurst);
+        return this;
+    }
+
+    /**
+     * @return the MESG commands a connection may send per second, 0 for no limit
+     */
+    public int getMesgRate() {
+        return mesgRate;
+    }
+
+    public ServerConfig setMesgRate(int mesgRate) {
+        this.mesgRate = checkRate("mesg-rate", mesgRate);
+        return this;
+    }
+
+    /**
+     * @return the MESG commands a connection may send at once, 0 for one second's worth
+     */
+    public int getMesgBurst() {
+        return mesgBurst;
+    }
+
+    public ServerConfig setMesgBurst(int mesgBurst) {
+        this.mesgBurst = checkRate("mesg-burst", mesgBurst);
+        return this;
+    }
+
+    /**
+     * @return the LIST commands a connection may send per second, 0 for no limit
+     */
+    public int getListRate() {
+        return listRate;
+    }
+
+    public ServerConfig setListRate(int listRate) {
+        this.listRate = checkRate("list-rate", listRate);
+        return this;
+    }
+
+    /**
+     * @return the LIST commands a connection may send at once, 0 for one second's worth
+     */
+    public int getListBurst() {
+        return listBurst;
+    }
+
+    public ServerConfig setListBurst(int listBurst) {
+        this.listBurst = checkRate("list-burst", listBurst);
+        return this;
+    }
+
+    /**
+     * @return the broadcasts all clients together may send per second, 0 for no limit
+     */
+    public int getBroadcastRate() {
+        return broadcastRate;
+    }
+
+    public ServerConfig setBroadcastRate(int broadcastRate) {
+        this.broadcastRate = checkRate("broadcast-rate", broadcastRate);
+        return this;
+    }
+
+    /**
+     * @return the broadcasts all clients together may send at once, 0 for one second's worth
+     */
+    public int getBroadcastBurst() {
+        return broadcastBurst;
+    }
+
+    public ServerConfig setBroadcastBurst(int broadcastBurst) {
+        this.broadcastBurst = checkRate("broadcast-burst", broadcastBurst);
+        return this;
+    }
+
+    private static int checkRate(String name, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must not be negative");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,205 @@
+package g53sqm.chat.server;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log for server events.
+ * Callers only claim a slot in a lock-free ring buffer, formatting and console output happen on a
+ * background writer thread, so logging never makes a connection wait for the console.
+ * When the writer falls behind and the ring is full new entries are dropped and counted.
+ */
+public class ServerLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final long IDLE_PARK_NANOS = 100000000L;
+
+    private final Level level;
+    private final PrintStream output;
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+    private volatile long head;
+    private volatile boolean writerSleeping;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    /**
+     * @param level    the lowest level that is written
+     * @param capacity the number of entries the ring holds, rounded up to a power of two
+     * @param output   where entries are written
+     */
+    public ServerLog(Level level, int capacity, PrintStream output) {
+        this.level = level;
+        this.output = output;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainUntilClosed();
+            }
+        }, "server-log");
+        this.writer.setDaemon(true);
+        if (level != Level.OFF) {
+            this.writer.start();
+        }
+    }
+
+    public ServerLog(ServerConfig config) {
+        this(config.getLogLevel(), config.getLogBufferSize(), System.out);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0 && this.level != Level.OFF;
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null, null);
+    }
+
+    /**
+     * The detail is only turned into a string on the writer thread.
+     */
+    public void info(String message, Object detail) {
+        log(Level.INFO, message, detail, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null, null);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null, null);
+    }
+
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, null, error);
+    }
+
+    /**
+     * @return the number of entries lost because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void log(Level level, String message, Object detail, Throwable error) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), level, message, detail, error);
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        ring.lazySet((int) sequence & mask, entry);
+        if (writerSleeping) {
+            writerSleeping = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Stop accepting entries and wait for the writer to write what is already queued.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainUntilClosed() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            long position = head;
+            Entry entry;
+            while ((entry = ring.get((int) position & mask)) != null) {
+                ring.lazySet((int) position & mask, null);
+                position++;
+                head = position;
+                entry.appendTo(batch, format);
+            }
+            long lost = dropped.get();
+            if (lost != reportedDrops) {
+                batch.append(format.format(new Date())).append(" WARN log buffer full, ")
+                        .append(lost - reportedDrops).append(" entries dropped").append(System.lineSeparator());
+                reportedDrops = lost;
+            }
+            if (batch.length() > 0) {
+                output.print(batch);
+                output.flush();
+                batch.setLength(0);
+            }
+            if (position != tail.get()) {
+                // A producer claimed a slot but has not published it yet
+                Thread.yield();
+                continue;
+            }
+            if (closed) {
+                return;
+            }
+            writerSleeping = true;
+            if (position == tail.get()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerSleeping = false;
+        }
+    }
+
+    private static final class Entry {
+        private final long time;
+        private final Level level;
+        private final String message;
+        private final Object detail;
+        private final Throwable error;
+
+        private Entry(long time, Level level, String message, Object detail, Throwable error) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+            this.detail = detail;
+            this.error = error;
+        }
+
+        private void appendTo(StringBuilder batch, SimpleDateFormat format) {
+            batch.append(format.format(new Date(time))).append(' ').append(level).append(' ').append(message);
+            if (detail != null) {
+                batch.append(detail);
+            }
+            batch.append(System.lineSeparator());
+            if (error != null) {
+                StringWriter trace = new StringWriter();
+                error.printStackTrace(new PrintWriter(trace));
+                batch.append(trace);
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package g53sqm.chat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of one server. Recording only touches striped counters, so it is cheap
+ * enough to stay on for every command. The figures can be read through JMX, an optional plain text
+ * endpoint on localhost and the STAT ADMIN command.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final CommandDecoder.Verb[] VERBS = CommandDecoder.Verb.values();
+
+    private final Server server;
+    private final LongAdder acceptedConnections;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder slowConsumerDisconnects;
+    private final LongAdder compressionIn;
+    private final LongAdder compressionOut;
+    private final LongAdder[] commands;
+    private final TimingHistogram[] commandTimes;
+    private final TimingHistogram broadcastTimes;
+    private final LongAdder broadcastRecipients;
+    private final LongAdder[] rateLimited;
+    private final LongAdder broadcastsLimited;
+    private ObjectName objectName;
+    private HttpServer endpoint;
+
+    ServerMetrics(Server server) {
+        this.server = server;
+        acceptedConnections = new LongAdder();
+        bytesIn = new LongAdder();
+        bytesOut = new LongAdder();
+        slowConsumerDisconnects = new LongAdder();
+        compressionIn = new LongAdder();
+        compressionOut = new LongAdder();
+        commands = new LongAdder[VERBS.length];
+        commandTimes = new TimingHistogram[VERBS.length];
+        rateLimited = new LongAdder[VERBS.length];
+        for (int i = 0; i < VERBS.length; i++) {
+            commands[i] = new LongAdder();
+            commandTimes[i] = new TimingHistogram();
+            rateLimited[i] = new LongAdder();
+        }
+        broadcastsLimited = new LongAdder();
+        broadcastTimes = new TimingHistogram();
+        broadcastRecipients = new LongAdder();
+    }
+
+    void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    void bytesRead(long count) {
+        bytesIn.add(count);
+    }
+
+    void bytesWritten(long count) {
+        bytesOut.add(count);
+    }
+
+    /**
+     * @param bytesIn  the size of the messages compressed
+     * @param bytesOut the size they were compressed to
+     */
+    void compressed(long bytesIn, long bytesOut) {
+        compressionIn.add(bytesIn);
+        compressionOut.add(bytesOut);
+    }
+
+    void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    /**
+     * @param verb the command refused for going over its rate limit
+     */
+    void rateLimited(CommandDecoder.Verb verb) {
+        rateLimited[verb.ordinal()].increment();
+    }
+
+    void broadcastLimited() {
+        broadcastsLimited.increment();
+    }
+
+    /**
+     * @param verb  the command handled
+     * @param nanos how long handling it took
+     */
+    void commandHandled(CommandDecoder.Verb verb, long nanos) {
+        commands[verb.ordinal()].increment();
+        commandTimes[verb.ordinal()].record(nanos);
+    }
+
+    /**
+     * @param recipients the number of connections the message was queued for
+     * @param nanos      how long queueing it for all of them took
+     */
+    void broadcastSent(int recipients, long nanos) {
+        broadcastRecipients.add(recipients);
+        broadcastTimes.record(nanos);
+    }
+
+    LongAdder getBytesInCounter() {
+        return bytesIn;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.getNumberOfUsers();
+    }
+
+    @Override
+    public int getRegisteredUsers() {
+        return server.getRegisteredUserCount();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcastTimes.getCount();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        long queued = 0;
+        for (Connection c : server.getConnectionSnapshot()) {
+            queued += c.getOutbound().size();
+        }
+        return queued;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (CommandDecoder.Verb verb : VERBS) {
+            counts.put(verb.name(), commands[verb.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, String> getSnapshot() {
+        Map<String, String> snapshot = new LinkedHashMap<String, String>();
+        snapshot.put("connections.accepted", Long.toString(getAcceptedConnections()));
+        snapshot.put("connections.active", Integer.toString(getActiveConnections()));
+        snapshot.put("users.registered", Integer.toString(getRegisteredUsers()));
+        snapshot.put("bytes.in", Long.toString(getBytesIn()));
+        snapshot.put("bytes.out", Long.toString(getBytesOut()));
+        snapshot.put("compression.bytes_in", Long.toString(compressionIn.sum()));
+        snapshot.put("compression.bytes_out", Long.toString(compressionOut.sum()));
+
+        long queued = 0;
+        int deepest = 0;
+        for (Connection c : server.getConnectionSnapshot()) {
+            int depth = c.getOutbound().size();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        snapshot.put("outbound.queued", Long.toString(queued));
+        snapshot.put("outbound.queued.max", Integer.toString(deepest));
+        snapshot.put("outbound.slow_consumers_disconnected", Long.toString(getSlowConsumerDisconnects()));
+
+        snapshot.put("broadcast.count", Long.toString(getBroadcasts()));
+        snapshot.put("broadcast.recipients", Long.toString(broadcastRecipients.sum()));
+        snapshot.put("broadcast.limited", Long.toString(broadcastsLimited.sum()));
+        putTimes(snapshot, "broadcast.fanout", broadcastTimes);
+
+        for (CommandDecoder.Verb verb : VERBS) {
+            String name = "command." + verb.name().toLowerCase(Locale.ROOT);
+            snapshot.put(name + ".count", Long.toString(commands[verb.ordinal()].sum()));
+            if (commandTimes[verb.ordinal()].getCount() > 0) {
+                putTimes(snapshot, name, commandTimes[verb.ordinal()]);
+            }
+            if (rateLimited[verb.ordinal()].sum() > 0) {
+                snapshot.put(name + ".limited", Long.toString(rateLimited[verb.ordinal()].sum()));
+            }
+        }
+        MessageLog messageLog = server.getMessageLog();
+        if (messageLog != null) {
+            snapshot.put("messagelog.appended", Long.toString(messageLog.getAppended()));
+            snapshot.put("messagelog.dropped", Long.toString(messageLog.getDropped()));
+            snapshot.put("messagelog.commits", Long.toString(messageLog.getCommits()));
+            snapshot.put("messagelog.segments", Integer.toString(messageLog.getSegmentCount()));
+        }
+        Mailboxes mailboxes = server.getMailboxes();
+        snapshot.put("mailbox.stored", Long.toString(mailboxes.getStored()));
+        snapshot.put("mailbox.delivered", Long.toString(mailboxes.getDelivered()));
+        snapshot.put("mailbox.waiting", Long.toString(mailboxes.getWaiting()));
+        IdleReaper reaper = server.getIdleReaper();
+        if (reaper != null) {
+            snapshot.put("connections.pinged", Long.toString(reaper.getPinged()));
+            snapshot.put("connections.reaped", Long.toString(reaper.getReaped()));
+        }
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            snapshot.put("cluster.peers", Integer.toString(cluster.getConnectedPeerCount()));
+            snapshot.put("cluster.remote_users", Integer.toString(cluster.getRemoteUserCount()));
+            snapshot.put("cluster.frames_sent", Long.toString(cluster.getFramesSent()));
+            snapshot.put("cluster.batches_sent", Long.toString(cluster.getBatchesSent()));
+            snapshot.put("cluster.frames_dropped", Long.toString(cluster.getFramesDropped()));
+        }
+        snapshot.put("log.dropped", Long.toString(server.getLog().getDropped()));
+        return snapshot;
+    }
+
+    private static void putTimes(Map<String, String> snapshot, String name, TimingHistogram times) {
+        snapshot.put(name + ".p50_us", micros(times.percentileNanos(0.5)));
+        snapshot.put(name + ".p99_us", micros(times.percentileNanos(0.99)));
+        snapshot.put(name + ".max_us", micros(times.getMaxNanos()));
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    /**
+     * @param separator what to put between two metrics
+     * @return every metric as name=value
+     */
+    String render(String separator) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> metric : getSnapshot().entrySet()) {
+            if (text.length() > 0) {
+                text.append(separator);
+            }
+            text.append(metric.getKey()).append('=').append(metric.getValue());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Register with the platform MBean server, failures are logged as the server works without JMX.
+     *
+     * @param port the port of the server, to tell several servers in one JVM apart
+     */
+    void registerMBean(int port) {
+        try {
+            objectName = new ObjectName("g53sqm.chat.server:type=ServerMetrics,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            server.getLog().warn("could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serve the metrics as plain text, one per line, on http://localhost:&lt;port&gt;/metrics.
+     *
+     * @param port the port to listen on, 0 picks a free one
+     * @return the port the endpoint listens on, or -1 if it could not be started
+     */
+    int startEndpoint(int port) {
+        try {
+            endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            server.getLog().error("could not start the metrics endpoint", e);
+            return -1;
+        }
+        endpoint.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = (render("\n") + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        endpoint.start();
+        return endpoint.getAddress().getPort();
+    }
+
+    /**
+     * Unregister from JMX and stop the text endpoint.
+     */
+    void close() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+            endpoint = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                server.getLog().warn("could not unregister metrics from JMX: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package g53sqm.chat.server;
+
+import java.util.Map;
+
+/**
+ * Management interface of ServerMetrics, registered with the platform MBean server
+ * as g53sqm.chat.server:type=ServerMetrics,port=&lt;port&gt;.
+ */
+public interface ServerMetricsMXBean {
+
+    long getAcceptedConnections();
+
+    int getActiveConnections();
+
+    int getRegisteredUsers();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBroadcasts();
+
+    long getSlowConsumerDisconnects();
+
+    /**
+     * @return the number of messages waiting in all outbound queues
+     */
+    long getQueuedMessages();
+
+    /**
+     * @return the number of handled commands by verb
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return every metric by name, rendered as text
+     */
+    Map<String, String> getSnapshot();
+}
@@ -0,0 +1,57 @@
+package g53sqm.chat.server;
+
+/**
+ * What Server.shutdown found when it stopped the server.
+ */
+public final class ShutdownReport {
+
+    private final int connections;
+    private final int drained;
+    private final long pendingMessages;
+    private final long elapsedMillis;
+
+    ShutdownReport(int connections, int drained, long pendingMessages, long elapsedMillis) {
+        this.connections = connections;
+        this.drained = drained;
+        this.pendingMessages = pendingMessages;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return the connections open when the shutdown started
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return the connections that wrote everything queued and closed before the deadline
+     */
+    public int getDrained() {
+        return drained;
+    }
+
+    /**
+     * @return the connections closed at the deadline with output still queued
+     */
+    public int getForced() {
+        return connections - drained;
+    }
+
+    /**
+     * @return the messages the forced connections never got
+     */
+    public long getPendingMessages() {
+        return pendingMessages;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "shut down in " + elapsedMillis + " ms, " + drained + " of " + connections
+                + " connection(s) drained, " + getForced() + " closed with " + pendingMessages + " message(s) pending";
+    }
+}
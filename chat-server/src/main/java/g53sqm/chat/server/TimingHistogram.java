@@ -0,0 +1,95 @@
+package g53sqm.chat.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Histogram of durations that many threads can record into without contending.
+ * Every power of two is split into four buckets, so percentiles are accurate to within 25%,
+ * which is plenty to tell microseconds from milliseconds.
+ */
+class TimingHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final LongAdder[] counts;
+    private final LongAdder total;
+    private final LongAccumulator max;
+
+    TimingHistogram() {
+        counts = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+        total = new LongAdder();
+        max = new LongAccumulator(new LongBinaryOperator() {
+            @Override
+            public long applyAsLong(long a, long b) {
+                return Math.max(a, b);
+            }
+        }, 0);
+    }
+
+    /**
+     * @param nanos the duration to record
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[index(value)].increment();
+        total.increment();
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        return total.sum();
+    }
+
+    long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * @param fraction the percentile wanted, between 0 and 1
+     * @return an upper bound of the percentile in nanoseconds, 0 if nothing was recorded
+     */
+    long percentileNanos(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            recorded += snapshot[i];
+        }
+        if (recorded == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(getMaxNanos(), highestValue(i));
+            }
+        }
+        return getMaxNanos();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >> (highestBit - 2)) & (SUB_BUCKETS - 1);
+        return highestBit * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int highestBit = index / SUB_BUCKETS;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (highestBit - 2)) - 1;
+    }
+}
@@ -0,0 +1,62 @@
+package g53sqm.chat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that refills at a steady rate up to a burst, without locks.
+ * Rather than counting tokens the bucket keeps the time at which it will be full again,
+ * so taking a token is a single compare and set of that time and refilling costs nothing.
+ */
+final class TokenBucket {
+
+    private final long interval;
+    private final long capacity;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param perSecond the tokens added every second, at least 1
+     * @param burst     the tokens the bucket holds when full, at least 1
+     */
+    TokenBucket(int perSecond, int burst) {
+        this.interval = TimeUnit.SECONDS.toNanos(1) / perSecond;
+        this.capacity = interval * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @param perSecond the tokens added every second, 0 for no limit
+     * @param burst     the tokens the bucket holds when full, 0 for one second's worth
+     * @return the bucket, or null if there is no limit
+     */
+    static TokenBucket of(int perSecond, int burst) {
+        if (perSecond == 0) {
+            return null;
+        }
+        return new TokenBucket(perSecond, burst == 0 ? perSecond : burst);
+    }
+
+    /**
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * @param now the current System.nanoTime
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    boolean tryAcquire(long now) {
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now < 0 ? now : full) + interval;
+            if (next - now > capacity) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+}
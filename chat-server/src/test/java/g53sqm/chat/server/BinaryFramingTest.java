@@ -0,0 +1,53 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryFramingTest {
+
+    @Test
+    public void encode_ShortPayload_OpcodeAndSingleLengthByte() {
+        ByteBuffer frame = BinaryFraming.encode("HAIL hi");
+        assertEquals(BinaryFraming.OP_MESSAGE, frame.get(0));
+        assertEquals(7, frame.get(1));
+        assertEquals(9, frame.remaining());
+    }
+
+    @Test
+    public void encode_LongPayload_VarintLengthDecodesBack() throws IOException {
+        byte[] payload = new byte[300];
+        byte[] frame = BinaryFraming.encode(payload).array();
+        assertEquals(3, BinaryFraming.headerLength(300));
+        assertEquals(3, BinaryFraming.completeHeader(frame, 0, frame.length));
+        assertEquals(300, BinaryFraming.payloadLength(frame, 0));
+    }
+
+    @Test
+    public void completeHeader_PartialFrame_ReturnsZero() throws IOException {
+        byte[] frame = BinaryFraming.encode("MESG bob hello").array();
+        assertEquals(0, BinaryFraming.completeHeader(frame, 0, 1));
+        assertEquals(0, BinaryFraming.completeHeader(frame, 0, frame.length - 1));
+        assertEquals(2, BinaryFraming.completeHeader(frame, 0, frame.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void completeHeader_LengthOverLimit_Throws() throws IOException {
+        byte[] header = {BinaryFraming.OP_MESSAGE, (byte) 0xff, (byte) 0xff, (byte) 0x7f};
+        BinaryFraming.completeHeader(header, 0, header.length);
+    }
+
+    @Test
+    public void isOpcode_FirstCharactersOfTextLines_False() {
+        assertTrue(BinaryFraming.isOpcode(BinaryFraming.OP_MESSAGE));
+        for (byte b : "LIST\r\n\t ".getBytes(StandardCharsets.US_ASCII)) {
+            assertFalse(BinaryFraming.isOpcode(b));
+        }
+    }
+}
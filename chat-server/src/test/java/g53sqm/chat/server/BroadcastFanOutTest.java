@@ -0,0 +1,90 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BroadcastFanOutTest {
+
+    private Server server;
+    private BroadcastFanOut fanOut;
+
+    @Before
+    public void setup() {
+        server = new Server(0);
+    }
+
+    @After
+    public void teardown() {
+        if (fanOut != null) {
+            fanOut.shutdown();
+        }
+    }
+
+    @Test
+    public void send_BelowThreshold_AllOnCallingThread() {
+        fanOut = new BroadcastFanOut(100, 4);
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        Connection[] recipients = recipients(99, new AtomicInteger(), threads);
+
+        fanOut.send(recipients, Frame.of("hello"));
+
+        assertFalse(fanOut.isSharded(99));
+        assertEquals(Collections.singleton(Thread.currentThread().getName()), threads);
+    }
+
+    @Test
+    public void send_AboveThreshold_EveryRecipientOnce() {
+        fanOut = new BroadcastFanOut(100, 4);
+        AtomicInteger sent = new AtomicInteger();
+        Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        Connection[] recipients = recipients(1000, sent, threads);
+
+        fanOut.send(recipients, Frame.of("hello"));
+
+        assertTrue(fanOut.isSharded(1000));
+        assertEquals(1000, sent.get());
+        for (String name : threads) {
+            assertTrue(name, name.startsWith("broadcast-fanout-") || name.equals(Thread.currentThread().getName()));
+        }
+    }
+
+    @Test
+    public void send_SingleThread_NeverSharded() {
+        fanOut = new BroadcastFanOut(1, 1);
+        AtomicInteger sent = new AtomicInteger();
+        fanOut.send(recipients(500, sent, Collections.synchronizedSet(new HashSet<String>())), Frame.of("hello"));
+
+        assertFalse(fanOut.isSharded(500));
+        assertEquals(500, sent.get());
+    }
+
+    @Test
+    public void send_ZeroThreshold_NeverSharded() {
+        fanOut = new BroadcastFanOut(0, 4);
+        assertFalse(fanOut.isSharded(100000));
+    }
+
+    private Connection[] recipients(int count, final AtomicInteger sent, final Set<String> threads) {
+        Connection[] recipients = new Connection[count];
+        for (int i = 0; i < count; i++) {
+            recipients[i] = new Connection(null, server) {
+                @Override
+                void sendFrame(Frame frame) {
+                    sent.incrementAndGet();
+                    threads.add(Thread.currentThread().getName());
+                }
+            };
+        }
+        return recipients;
+    }
+}
@@ -0,0 +1,275 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterTest {
+
+    private static final int NODES = 3;
+
+    private File directory;
+    private Server[] nodes;
+    private ArrayList<Socket> sockets;
+
+    @Before
+    public void startCluster() throws IOException {
+        directory = Files.createTempDirectory("cluster").toFile();
+        nodes = new Server[NODES];
+        sockets = new ArrayList<Socket>();
+        for (int i = 0; i < NODES; i++) {
+            ServerConfig config = new ServerConfig().setLogLevel(ServerLog.Level.OFF)
+                    .setClusterDir(directory.getPath());
+            final Server node = i == 1 ? new NioServer(0, config.setIoThreads(1)) : new Server(0, config);
+            nodes[i] = node;
+            Thread listener = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    node.listen();
+                }
+            });
+            listener.setDaemon(true);
+            listener.start();
+        }
+        for (final Server node : nodes) {
+            awaitTrue(new Condition() {
+                @Override
+                public boolean holds() {
+                    return node.getCluster().getConnectedPeerCount() == NODES - 1;
+                }
+            });
+        }
+    }
+
+    @After
+    public void stopCluster() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        for (Server node : nodes) {
+            node.shutdown(0);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void doesUserExist_UserOnOtherNode_TrueOnEveryNode() throws IOException {
+        login(0, "user1");
+        login(1, "user2");
+        awaitKnownEverywhere("user1");
+        awaitKnownEverywhere("user2");
+        assertFalse(nodes[2].doesUserExist("user3"));
+        assertEquals(2, nodes[2].getCluster().getRemoteUserCount());
+    }
+
+    @Test
+    public void iden_NameTakenOnOtherNode_Refused() throws IOException {
+        login(0, "user1");
+        awaitKnownEverywhere("user1");
+
+        BufferedReader reader = connect(2);
+        send(sockets.get(sockets.size() - 1), "IDEN user1");
+        assertEquals("BAD IDEN username is already taken", reader.readLine());
+    }
+
+    @Test
+    public void mesg_RecipientOnOtherNode_Delivered() throws IOException {
+        BufferedReader user1 = login(0, "user1");
+        BufferedReader user3 = login(2, "user3");
+        awaitKnownEverywhere("user1");
+
+        send(sockets.get(1), "MESG user1 hello from node 2");
+        assertEquals("OK MESG your message has been sent", user3.readLine());
+        assertEquals("PM from user3:hello from node 2", user1.readLine());
+        assertTrue(nodes[1].sendPrivateMessage("PM from server:hi", "user1"));
+        assertEquals("PM from server:hi", user1.readLine());
+        assertFalse(nodes[1].sendPrivateMessage("PM from server:hi", "nobody"));
+    }
+
+    @Test
+    public void hail_UsersOnEveryNode_AllReceiveBroadcast() throws IOException {
+        BufferedReader[] readers = new BufferedReader[NODES];
+        for (int i = 0; i < NODES; i++) {
+            readers[i] = login(i, "user" + i);
+        }
+        for (int i = 0; i < NODES; i++) {
+            awaitKnownEverywhere("user" + i);
+        }
+
+        send(sockets.get(1), "HAIL hello cluster");
+        for (BufferedReader reader : readers) {
+            assertEquals("Broadcast from user1: hello cluster", reader.readLine());
+        }
+    }
+
+    @Test
+    public void quit_UserOnOtherNode_ForgottenEverywhere() throws IOException {
+        BufferedReader user1 = login(0, "user1");
+        awaitKnownEverywhere("user1");
+
+        send(sockets.get(0), "QUIT");
+        user1.readLine();
+        for (final Server node : nodes) {
+            awaitTrue(new Condition() {
+                @Override
+                public boolean holds() {
+                    return !node.doesUserExist("user1");
+                }
+            });
+        }
+    }
+
+    @Test
+    public void stopListening_NodeLeaves_ItsUsersForgotten() throws IOException {
+        login(2, "user2");
+        awaitKnownEverywhere("user2");
+
+        nodes[2].stopListening();
+        awaitTrue(new Condition() {
+            @Override
+            public boolean holds() {
+                return !nodes[0].doesUserExist("user2") && nodes[0].getCluster().getConnectedPeerCount() == 1;
+            }
+        });
+    }
+
+    @Test
+    public void readLink_PeerReconnectsWhileOldLinkCloses_UsersOfNewLinkKept() throws Exception {
+        Socket old = linkAs(0, "peer:1", "user1");
+        awaitTrue(new Condition() {
+            @Override
+            public boolean holds() {
+                return nodes[0].doesUserExist("user1");
+            }
+        });
+        linkAs(0, "peer:1", "user1", "user2");
+        awaitTrue(new Condition() {
+            @Override
+            public boolean holds() {
+                return nodes[0].doesUserExist("user2");
+            }
+        });
+
+        old.close();
+        Thread.sleep(500);
+        assertTrue(nodes[0].doesUserExist("user1"));
+        assertTrue(nodes[0].doesUserExist("user2"));
+    }
+
+    @Test
+    public void iden_SameNameTakenMeanwhileOnLowerNode_LocalUserDropped() throws IOException {
+        BufferedReader reader = login(0, "user1");
+        linkAs(0, "a:1", "user1");
+
+        assertEquals("BAD IDEN username is already taken", reader.readLine());
+        awaitTrue(new Condition() {
+            @Override
+            public boolean holds() {
+                return !nodes[0].getUserList().contains("user1") && nodes[0].doesUserExist("user1");
+            }
+        });
+    }
+
+    @Test
+    public void iden_SameNameTakenMeanwhileOnHigherNode_LocalUserKept() throws IOException {
+        login(0, "user1");
+        linkAs(0, "z:1", "user1", "user2");
+        awaitTrue(new Condition() {
+            @Override
+            public boolean holds() {
+                return nodes[0].doesUserExist("user2");
+            }
+        });
+
+        assertTrue(nodes[0].getUserList().contains("user1"));
+    }
+
+    /**
+     * Open a cluster link to a node as if from another node holding some users.
+     */
+    private Socket linkAs(int node, String nodeId, String... users) throws IOException {
+        String id = nodes[node].getCluster().getNodeId();
+        Socket socket = new Socket("localhost", Integer.parseInt(id.substring(id.lastIndexOf(':') + 1)));
+        sockets.add(socket);
+        OutputStream out = socket.getOutputStream();
+        writeFrame(out, "HELLO " + nodeId);
+        for (String user : users) {
+            writeFrame(out, "JOIN " + user);
+        }
+        out.flush();
+        return socket;
+    }
+
+    private static void writeFrame(OutputStream out, String event) throws IOException {
+        ByteBuffer frame = BinaryFraming.encode(event);
+        out.write(frame.array(), frame.arrayOffset(), frame.limit());
+    }
+
+    private BufferedReader login(int node, String username) throws IOException {
+        BufferedReader reader = connect(node);
+        send(sockets.get(sockets.size() - 1), "IDEN " + username);
+        assertEquals("OK IDEN Welcome to the chat server " + username, reader.readLine());
+        return reader;
+    }
+
+    private BufferedReader connect(int node) throws IOException {
+        Socket socket = new Socket("localhost", nodes[node].getServerPort());
+        sockets.add(socket);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        reader.readLine(); // The welcome message
+        return reader;
+    }
+
+    private void send(Socket socket, String line) throws IOException {
+        new PrintWriter(socket.getOutputStream(), true).println(line);
+    }
+
+    private void awaitKnownEverywhere(final String username) {
+        for (final Server node : nodes) {
+            awaitTrue(new Condition() {
+                @Override
+                public boolean holds() {
+                    return node.doesUserExist(username);
+                }
+            });
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void awaitTrue(Condition condition) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
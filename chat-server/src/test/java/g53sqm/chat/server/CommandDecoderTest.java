@@ -0,0 +1,115 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandDecoderTest {
+
+    private final CommandDecoder decoder = new CommandDecoder();
+
+    @Test
+    public void decode_ShortLine_Invalid() {
+        assertEquals(CommandDecoder.Verb.INVALID, decode("HAI"));
+        assertEquals(CommandDecoder.Verb.INVALID, decode(""));
+    }
+
+    @Test
+    public void decode_ShortLineOfMultiByteCharacters_Invalid() {
+        assertEquals(CommandDecoder.Verb.INVALID, decode("\u00e9\u00e9\u00e9"));
+    }
+
+    @Test
+    public void decode_CommandsWithoutArgument_RecognisedIgnoringRest() {
+        assertEquals(CommandDecoder.Verb.LIST, decode("LIST"));
+        assertEquals(CommandDecoder.Verb.STAT, decode("STAT anything"));
+        assertEquals(CommandDecoder.Verb.QUIT, decode("QUIT"));
+        assertEquals(CommandDecoder.Verb.PONG, decode("PONG"));
+    }
+
+    @Test
+    public void decode_UnknownVerb_Unrecognised() {
+        assertEquals(CommandDecoder.Verb.UNRECOGNISED, decode("list"));
+        assertEquals(CommandDecoder.Verb.UNRECOGNISED, decode(" HAIL hello"));
+    }
+
+    @Test
+    public void decode_VerbWithoutArgument_Unrecognised() {
+        assertEquals(CommandDecoder.Verb.UNRECOGNISED, decode("HAIL"));
+        assertEquals(CommandDecoder.Verb.UNRECOGNISED, decode("IDEN   "));
+    }
+
+    @Test
+    public void decode_HailWithTrailingWhitespace_ArgumentTrimmed() {
+        assertEquals(CommandDecoder.Verb.HAIL, decode("HAIL hello world \t "));
+        assertEquals("hello world", decoder.argument());
+    }
+
+    @Test
+    public void decode_Iden_FirstWordIsUsername() {
+        assertEquals(CommandDecoder.Verb.IDEN, decode("IDEN alice and more"));
+        assertEquals("alice", decoder.firstWord());
+    }
+
+    @Test
+    public void decode_JoinAndPart_FirstWordIsRoom() {
+        assertEquals(CommandDecoder.Verb.JOIN, decode("JOIN #dev"));
+        assertEquals("#dev", decoder.firstWord());
+        assertEquals(CommandDecoder.Verb.PART, decode("PART #dev "));
+        assertEquals("#dev", decoder.firstWord());
+        assertEquals(CommandDecoder.Verb.UNRECOGNISED, decode("JOIN"));
+    }
+
+    @Test
+    public void decode_Hist_CountIsOptional() {
+        assertEquals(CommandDecoder.Verb.HIST, decode("HIST"));
+        assertFalse(decoder.hasArgument());
+        assertEquals(CommandDecoder.Verb.HIST, decode("HIST 50"));
+        assertEquals("50", decoder.firstWord());
+    }
+
+    @Test
+    public void decode_Mode_FirstWordIsMode() {
+        assertEquals(CommandDecoder.Verb.MODE, decode("MODE BINARY"));
+        assertEquals("BINARY", decoder.firstWord());
+    }
+
+    @Test
+    public void decode_Mesg_SplitOnFirstSpace() {
+        assertEquals(CommandDecoder.Verb.MESG, decode("MESG bob hi there"));
+        assertTrue(decoder.argumentHasSpace());
+        assertEquals("bob", decoder.firstWord());
+        assertEquals("hi there", decoder.afterFirstWord());
+    }
+
+    @Test
+    public void decode_MesgWithoutMessage_HasNoSpace() {
+        assertEquals(CommandDecoder.Verb.MESG, decode("MESG bob"));
+        assertFalse(decoder.argumentHasSpace());
+        assertNull(decoder.afterFirstWord());
+    }
+
+    @Test
+    public void decode_MultiByteSeparator_SkippedLikeSubstring() {
+        String line = "HAIL\u00e9caf\u00e9";
+        assertEquals(CommandDecoder.Verb.HAIL, decode(line));
+        assertEquals(line.trim().substring(5), decoder.argument());
+    }
+
+    @Test
+    public void decode_LineInsideLargerBuffer_OnlyLineDecoded() {
+        byte[] buffer = "xxHAIL hi\nLIST".getBytes(StandardCharsets.UTF_8);
+        assertEquals(CommandDecoder.Verb.HAIL, decoder.decode(buffer, 2, 7));
+        assertEquals("hi", decoder.argument());
+    }
+
+    private CommandDecoder.Verb decode(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return decoder.decode(bytes, 0, bytes.length);
+    }
+}
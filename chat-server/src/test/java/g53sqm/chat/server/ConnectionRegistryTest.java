@@ -0,0 +1,74 @@
+package g53sqm.chat.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionRegistryTest {
+
+    private ConnectionRegistry registry;
+    private Server server;
+
+    @Before
+    public void setup() {
+        registry = new ConnectionRegistry();
+        server = new Server(0);
+    }
+
+    @Test
+    public void snapshot_Empty_ReturnsEmptyArray() {
+        assertEquals(0, registry.snapshot().length);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void snapshot_NoChanges_ReturnsSameArray() {
+        registry.add(new Connection(null, server));
+        Connection[] first = registry.snapshot();
+        assertSame(first, registry.snapshot());
+    }
+
+    @Test
+    public void snapshot_AfterChange_ReturnsNewArrayAndKeepsOldUntouched() {
+        Connection c1 = new Connection(null, server);
+        Connection c2 = new Connection(null, server);
+        registry.add(c1);
+        Connection[] before = registry.snapshot();
+
+        registry.add(c2);
+        Connection[] after = registry.snapshot();
+
+        assertNotSame(before, after);
+        assertArrayEquals(new Connection[]{c1}, before);
+        assertEquals(2, after.length);
+    }
+
+    @Test
+    public void remove_RegisteredConnection_ReturnsTrueOnlyOnce() {
+        Connection c = new Connection(null, server);
+        registry.add(c);
+        assertTrue(registry.remove(c));
+        assertFalse(registry.remove(c));
+        assertEquals(0, registry.snapshot().length);
+    }
+
+    @Test
+    public void inAcceptOrder_SeveralConnections_ReturnsInsertionOrder() {
+        ArrayList<Connection> expected = new ArrayList<Connection>();
+        for (int i = 0; i < 100; i++) {
+            Connection c = new Connection(null, server);
+            expected.add(c);
+            registry.add(c);
+        }
+        registry.remove(expected.remove(50));
+        assertEquals(expected, registry.inAcceptOrder());
+    }
+}
@@ -6,11 +6,18 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.lang.reflect.Field;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.ArrayList;
 
 import static g53sqm.chat.server.Connection.STATE_REGISTERED;
@@ -22,6 +29,7 @@ public class ConnectionTest {
     private int serverPort;
     private Thread serverThread;
     private ArrayList<Connection> connectionList;
+    private Socket connectionSocket;
 
 
     @Before
@@ -371,6 +379,281 @@ public class ConnectionTest {
         assertEquals(expectedMsg, actualMsg);
     }
 
+    @Test
+    public void pres_UnregisteredUser_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+
+        //Clear welcome msg
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "PRES");
+        String expectedMsg = "BAD PRES You have not logged in yet";
+        String actualMsg = waitAndRetrieveNextMessage(socket);
+        assertEquals(expectedMsg, actualMsg);
+    }
+
+    @Test
+    public void pres_OtherUserJoinsAndQuits_ReturnsSnapshotThenJoinAndLeave() {
+        Socket socket1 = createNewConnection(serverPort);
+
+        // Clear welcome and iden msg
+        socketSendMessage(socket1, "IDEN user1");
+        waitAndRetrieveNextMessage(socket1);
+
+        socketSendMessage(socket1, "PRES");
+        assertEquals("OK PRES SNAP user1, ", waitAndRetrieveNextMessage(socket1));
+
+        Socket socket2 = createNewConnection(serverPort);
+        socketSendMessage(socket2, "IDEN user2");
+        assertEquals("OK PRES JOIN user2", waitAndRetrieveNextMessage(socket1));
+
+        socketSendMessage(socket2, "QUIT");
+        assertEquals("OK PRES LEAVE user2", waitAndRetrieveNextMessage(socket1));
+    }
+
+    @Test
+    public void join_UnregisteredUser_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+
+        // Clear welcome msg
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "JOIN #dev");
+        assertEquals("BAD JOIN You have not logged in yet", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void join_NameWithoutPrefix_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+
+        // Clear welcome and iden msg
+        socketSendMessage(socket, "IDEN user1");
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "JOIN dev");
+        assertEquals("BAD JOIN room names start with # and have at most 32 characters", waitAndRetrieveNextMessage(socket));
+        assertEquals(0, server.getRoomCount());
+    }
+
+    @Test
+    public void join_SameRoomTwice_SecondJoinReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+
+        // Clear welcome and iden msg
+        socketSendMessage(socket, "IDEN user1");
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "JOIN #dev");
+        assertEquals("OK JOIN you have joined #dev, there are 1 member(s)", waitAndRetrieveNextMessage(socket));
+        socketSendMessage(socket, "JOIN #dev");
+        assertEquals("BAD JOIN you are already in #dev", waitAndRetrieveNextMessage(socket));
+        assertEquals(1, server.getRoomSize("#dev"));
+    }
+
+    @Test
+    public void part_JoinedRoom_RoomRemovedWhenEmpty() {
+        Socket socket = createNewConnection(serverPort);
+
+        // Clear welcome and iden msg
+        socketSendMessage(socket, "IDEN user1");
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "JOIN #dev");
+        waitAndRetrieveNextMessage(socket);
+        socketSendMessage(socket, "PART #dev");
+        assertEquals("OK PART you have left #dev", waitAndRetrieveNextMessage(socket));
+        assertEquals(0, server.getRoomCount());
+
+        socketSendMessage(socket, "PART #dev");
+        assertEquals("BAD PART you are not in #dev", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void quit_MemberOfRoom_LeavesRoom() {
+        Socket socket1 = createNewConnection(serverPort);
+        socketSendMessage(socket1, "IDEN user1");
+        waitAndRetrieveNextMessage(socket1);
+        socketSendMessage(socket1, "JOIN #dev");
+        waitAndRetrieveNextMessage(socket1);
+
+        Socket socket2 = createNewConnection(serverPort);
+        socketSendMessage(socket2, "IDEN user2");
+        waitAndRetrieveNextMessage(socket2);
+        socketSendMessage(socket2, "JOIN #dev");
+        assertEquals("OK JOIN you have joined #dev, there are 2 member(s)", waitAndRetrieveNextMessage(socket2));
+
+        socketSendMessage(socket2, "QUIT");
+        assertEquals(1, server.getRoomSize("#dev"));
+        socketSendMessage(socket1, "QUIT");
+        assertEquals(0, server.getRoomCount());
+    }
+
+    @Test
+    public void hail_ToRoom_OnlyMembersReceiveMsg() {
+        Socket socket1 = createNewConnection(serverPort);
+        socketSendMessage(socket1, "IDEN user1");
+        waitAndRetrieveNextMessage(socket1);
+        socketSendMessage(socket1, "JOIN #dev");
+        waitAndRetrieveNextMessage(socket1);
+
+        Socket socket2 = createNewConnection(serverPort);
+        socketSendMessage(socket2, "IDEN user2");
+        waitAndRetrieveNextMessage(socket2);
+        socketSendMessage(socket2, "JOIN #dev");
+        waitAndRetrieveNextMessage(socket2);
+
+        Socket socket3 = createNewConnection(serverPort);
+        socketSendMessage(socket3, "IDEN user3");
+        waitAndRetrieveNextMessage(socket3);
+
+        socketSendMessage(socket1, "HAIL #dev hello room");
+        assertEquals("Broadcast from user1 to #dev: hello room", waitAndRetrieveNextMessage(socket1));
+        assertEquals("Broadcast from user1 to #dev: hello room", waitAndRetrieveNextMessage(socket2));
+
+        // The first line user3 gets must be the public message, not the room one
+        socketSendMessage(socket1, "HAIL hello everyone");
+        assertEquals("Broadcast from user1: hello everyone", waitAndRetrieveNextMessage(socket3));
+    }
+
+    @Test
+    public void hail_ToRoomNotJoined_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+
+        // Clear welcome and iden msg
+        socketSendMessage(socket, "IDEN user1");
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "HAIL #dev hello");
+        assertEquals("BAD HAIL you are not in #dev", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void mode_UnknownMode_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+
+        // Clear welcome msg
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "MODE JSON");
+        assertEquals("BAD MODE unknown mode, use BINARY or DEFLATE", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void mode_Binary_FramesKeepLineBreaksTextClientsGetOneLine() throws IOException {
+        Socket socket1 = createNewConnection(serverPort);
+        waitAndRetrieveNextMessage(socket1);
+        socketSendMessage(socket1, "MODE BINARY");
+        assertEquals("OK MODE BINARY", waitAndRetrieveNextMessage(socket1));
+
+        Socket socket2 = createNewConnection(serverPort);
+        socketSendMessage(socket2, "IDEN user2");
+        waitAndRetrieveNextMessage(socket2);
+
+        socketSendFrame(socket1, "IDEN user1");
+        assertEquals("OK IDEN Welcome to the chat server user1", waitAndRetrieveNextFrame(socket1));
+        assertTrue(connectionList.get(0).isBinary());
+
+        socketSendFrame(socket1, "HAIL first line\nsecond line");
+        assertEquals("Broadcast from user1: first line\nsecond line", waitAndRetrieveNextFrame(socket1));
+        assertEquals("Broadcast from user1: first line second line", waitAndRetrieveNextMessage(socket2));
+    }
+
+    @Test
+    public void mode_Deflate_LaterMessagesCompressed() throws IOException {
+        Socket socket = createNewConnection(serverPort);
+        waitAndRetrieveNextMessage(socket);
+        socketSendMessage(socket, "MODE DEFLATE");
+        assertEquals("OK MODE DEFLATE", waitAndRetrieveNextMessage(socket));
+
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(OutputCompressor.DICTIONARY);
+        InputStream inflated = new InflaterInputStream(socket.getInputStream(), inflater);
+        socketSendMessage(socket, "IDEN user1");
+        assertEquals("OK IDEN Welcome to the chat server user1", readLine(inflated));
+        socketSendMessage(socket, "HAIL hello");
+        assertEquals("Broadcast from user1: hello", readLine(inflated));
+        assertTrue(connectionList.get(0).isCompressed());
+        assertTrue(server.getMetrics().getSnapshot().get("compression.bytes_in").length() > 1);
+    }
+
+    @Test
+    public void mode_DeflateDisabled_ReturnsErrorMsg() {
+        server.shutdown(0);
+        server = new Server(0, new ServerConfig().setCompressionLevel(0));
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Socket socket = createNewConnection(server.getServerPort());
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "MODE DEFLATE");
+        assertEquals("BAD MODE compression is disabled on this server", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void iden_UsernameWithLineBreak_ReturnsErrorMsg() throws IOException {
+        Socket socket = createNewConnection(serverPort);
+        waitAndRetrieveNextMessage(socket);
+        socketSendMessage(socket, "MODE BINARY");
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendFrame(socket, "IDEN user\n1");
+        assertEquals("BAD IDEN username must not contain line breaks", waitAndRetrieveNextFrame(socket));
+    }
+
+    @Test
+    public void hail_OverRateLimit_ReturnsErrorMsgAndCounted() throws IOException {
+        BufferedReader reader = loginOnServer(new ServerConfig().setHailRate(1).setHailBurst(2));
+        PrintWriter writer = new PrintWriter(connectionSocket.getOutputStream(), true);
+
+        writer.print("HAIL one\nHAIL two\nHAIL three\n");
+        writer.flush();
+        assertEquals("Broadcast from user1: one", reader.readLine());
+        assertEquals("Broadcast from user1: two", reader.readLine());
+        assertEquals("BAD HAIL you are sending too fast, slow down", reader.readLine());
+        assertEquals("1", server.getMetrics().getSnapshot().get("command.hail.limited"));
+    }
+
+    @Test
+    public void list_OverRateLimit_ReturnsErrorMsg() throws IOException {
+        BufferedReader reader = loginOnServer(new ServerConfig().setListRate(1));
+        PrintWriter writer = new PrintWriter(connectionSocket.getOutputStream(), true);
+
+        writer.print("LIST\nLIST\n");
+        writer.flush();
+        assertEquals("OK LIST user1, ", reader.readLine());
+        assertEquals("BAD LIST you are sending too fast, slow down", reader.readLine());
+    }
+
+    @Test
+    public void hail_OverBroadcastBudget_ReturnsBusyMsgAndCounted() throws IOException {
+        BufferedReader reader = loginOnServer(new ServerConfig().setBroadcastRate(1));
+        PrintWriter writer = new PrintWriter(connectionSocket.getOutputStream(), true);
+
+        writer.print("HAIL one\nHAIL two\n");
+        writer.flush();
+        assertEquals("Broadcast from user1: one", reader.readLine());
+        assertEquals("BAD HAIL the server is too busy to broadcast, try again later", reader.readLine());
+        assertEquals("1", server.getMetrics().getSnapshot().get("broadcast.limited"));
+    }
+
+    @Test
+    public void hail_NotInRoomOverBroadcastBudget_BudgetLeftForNextHail() throws IOException {
+        BufferedReader reader = loginOnServer(new ServerConfig().setBroadcastRate(1));
+        PrintWriter writer = new PrintWriter(connectionSocket.getOutputStream(), true);
+
+        writer.print("HAIL #dev hi\nHAIL one\n");
+        writer.flush();
+        assertEquals("BAD HAIL you are not in #dev", reader.readLine());
+        assertEquals("Broadcast from user1: one", reader.readLine());
+        assertEquals("0", server.getMetrics().getSnapshot().get("broadcast.limited"));
+    }
+
     @Test
     public void hail_UnregisteredUser_ReturnsErrorMsg() {
         Socket socket = createNewConnection(serverPort);
@@ -551,6 +834,32 @@ public class ConnectionTest {
         assertEquals(expectedSenderMsg, actualSenderMsg);
     }
 
+    @Test
+    public void mesg_KnownUserOffline_StoredAndDeliveredOnIden() throws IOException {
+        Socket socket1 = createNewConnection(serverPort);
+        socketSendMessage(socket1, "IDEN user1");
+        socketSendMessage(socket1, "QUIT");
+        socket1.close();
+        sleep(500);
+
+        Socket socket2 = createNewConnection(serverPort);
+        BufferedReader reader2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        reader2.readLine();
+        socketSendMessage(socket2, "IDEN user2");
+        reader2.readLine();
+        socketSendMessage(socket2, "MESG user1 are you there?");
+        assertEquals("OK MESG user1 is offline, your message will be delivered when they log in", reader2.readLine());
+        socketSendMessage(socket2, "MESG user3 hello");
+        assertEquals("BAD MESG the user does not exist", reader2.readLine());
+
+        Socket socket3 = createNewConnection(serverPort);
+        BufferedReader reader3 = new BufferedReader(new InputStreamReader(socket3.getInputStream()));
+        reader3.readLine();
+        socketSendMessage(socket3, "IDEN user1");
+        assertEquals("OK IDEN Welcome to the chat server user1", reader3.readLine());
+        assertEquals("PM from user2:are you there?", reader3.readLine());
+    }
+
     @Test
     public void mesg_RegisteredUserSendEmptyPrivateMsgToExistingUser_ReturnsErrorMsg() {
         Socket socket1 = createNewConnection(serverPort);
@@ -600,9 +909,78 @@ public class ConnectionTest {
     }
 
 
+    @Test
+    public void hist_UnregisteredUser_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "HIST");
+        assertEquals("BAD HIST You have not logged in yet", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void hist_CountOutOfRange_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+        socketSendMessage(socket, "IDEN user1");
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "HIST 0");
+        assertEquals("BAD HIST the number of messages must be between 1 and 1000", waitAndRetrieveNextMessage(socket));
+        socketSendMessage(socket, "HIST lots");
+        assertEquals("BAD HIST the number of messages must be between 1 and 1000", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void hist_AfterBroadcasts_ReplaysNewestOldestFirst() throws IOException {
+        Socket socket = createNewConnection(serverPort);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        reader.readLine();
+        socketSendMessage(socket, "IDEN user1");
+        reader.readLine();
+        for (int i = 0; i < 3; i++) {
+            socketSendMessage(socket, "HAIL message " + i);
+            reader.readLine();
+        }
+
+        socketSendMessage(socket, "HIST 2");
+        assertEquals("OK HIST 2 message(s)", reader.readLine());
+        assertEquals("Broadcast from user1: message 1", reader.readLine());
+        assertEquals("Broadcast from user1: message 2", reader.readLine());
+    }
+
+    @Test
+    public void iden_ReplayOnAndEarlierBroadcasts_ReplayedAfterWelcome() throws IOException {
+        loginOnServer(new ServerConfig().setHistoryReplay(20));
+        socketSendMessage(connectionSocket, "HAIL anyone here?");
+
+        Socket socket2 = createNewConnection(server.getServerPort());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        reader.readLine();
+        socketSendMessage(socket2, "IDEN user2");
+        assertEquals("OK IDEN Welcome to the chat server user2", reader.readLine());
+        assertEquals("OK HIST 1 message(s)", reader.readLine());
+        assertEquals("Broadcast from user1: anyone here?", reader.readLine());
+    }
+
+
+    @Test
+    public void iden_EarlierBroadcastsByDefault_NothingReplayed() throws IOException {
+        Socket socket1 = createNewConnection(serverPort);
+        socketSendMessage(socket1, "IDEN user1");
+        socketSendMessage(socket1, "HAIL anyone here?");
+
+        Socket socket2 = createNewConnection(serverPort);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+        reader.readLine();
+        socketSendMessage(socket2, "IDEN user2");
+        socketSendMessage(socket2, "LIST");
+        assertEquals("OK IDEN Welcome to the chat server user2", reader.readLine());
+        assertEquals("OK LIST user1, user2, ", reader.readLine());
+    }
+
     @After
     public void cleanUp() {
-        server.stopListening();
+        server.shutdown(0);
     }
 
     /**
@@ -620,19 +998,37 @@ public class ConnectionTest {
             Assert.fail("Fail to create mock user.");
         }
 
-        // Update connection array
-        try {
-            Field field = Server.class.getDeclaredField("list");
-            field.setAccessible(true);
-            connectionList = (ArrayList<Connection>) field.get(server);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            System.err.println("Unable to access connection object.");
-            e.printStackTrace();
-        }
         sleep(500);
+        // Update connection array
+        connectionList = server.getConnections();
         return socket;
     }
 
+    /**
+     * Replace the server with one using the given options and log user1 in on it.
+     *
+     * @param config the options of the new server
+     * @return the reader of user1's socket, past the login reply
+     */
+    private BufferedReader loginOnServer(ServerConfig config) throws IOException {
+        server.shutdown(0);
+        server = new Server(0, config);
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        connectionSocket = new Socket("localhost", server.getServerPort());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connectionSocket.getInputStream()));
+        reader.readLine(); // The welcome message
+        new PrintWriter(connectionSocket.getOutputStream(), true).println("IDEN user1");
+        assertEquals("OK IDEN Welcome to the chat server user1", reader.readLine());
+        return reader;
+    }
+
     /**
      * Sends a given message through the given socket.
      *
@@ -666,6 +1062,46 @@ public class ConnectionTest {
         return line;
     }
 
+    private void socketSendFrame(Socket socket, String msg) {
+        try {
+            OutputStream socketOut = socket.getOutputStream();
+            ByteBuffer frame = BinaryFraming.encode(msg);
+            socketOut.write(frame.array(), 0, frame.limit());
+            socketOut.flush();
+            sleep(500);
+        } catch (IOException e) {
+            Assert.fail("Fail to send message");
+        }
+    }
+
+    private String waitAndRetrieveNextFrame(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(BinaryFraming.OP_MESSAGE, in.readByte());
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a line byte by byte, as a Reader would block asking an InflaterInputStream for more.
+     */
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     private void sleep(int ms) {
         try {
             Thread.sleep(ms);
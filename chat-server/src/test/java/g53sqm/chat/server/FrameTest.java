@@ -0,0 +1,80 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTest {
+
+    @Test
+    public void of_Text_EncodedWithSingleLineSeparator() {
+        Frame frame = Frame.of("Broadcast from user1: hi");
+        assertEquals("Broadcast from user1: hi" + System.lineSeparator(), text(frame.view()));
+        assertEquals(frame.size(), frame.view().remaining());
+        assertEquals("Broadcast from user1: hi", frame.getText());
+    }
+
+    @Test
+    public void of_MultiByteText_EncodedAsUtf8() {
+        Frame frame = Frame.of("h\u00e9llo \u4f60\u597d");
+        assertEquals("h\u00e9llo \u4f60\u597d" + System.lineSeparator(), text(frame.view()));
+    }
+
+    @Test
+    public void view_ConsumingOneView_OtherViewsUnaffected() {
+        Frame frame = Frame.of("shared");
+        ByteBuffer first = frame.view();
+        ByteBuffer second = frame.view();
+        first.get(new byte[first.remaining()]);
+
+        assertEquals(0, first.remaining());
+        assertEquals(frame.size(), second.remaining());
+        assertEquals(frame.size(), frame.view().remaining());
+    }
+
+    @Test
+    public void view_Always_ReadOnly() {
+        Frame frame = Frame.of("shared");
+        assertTrue(frame.view().isReadOnly());
+        assertTrue(frame.binaryView().isReadOnly());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void view_PutByOneRecipient_Refused() {
+        Frame.of("shared").view().put((byte) 'x');
+    }
+
+    @Test
+    public void binaryView_Text_FrameWithOriginalLineBreaks() throws IOException {
+        Frame frame = Frame.of("Broadcast from user1: a\nb");
+        assertEquals("Broadcast from user1: a b" + System.lineSeparator(), text(frame.view()));
+
+        ByteBuffer binary = frame.binaryView();
+        byte[] bytes = new byte[binary.remaining()];
+        binary.get(bytes);
+        int header = BinaryFraming.completeHeader(bytes, 0, bytes.length);
+        assertEquals("Broadcast from user1: a\nb", new String(bytes, header, bytes.length - header, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void encodeLine_TextWithLineBreaks_SingleLine() {
+        assertEquals("PM from a:x y  z" + System.lineSeparator(), text(Frame.encodeLine("PM from a:x\ny\r\nz")));
+    }
+
+    @Test
+    public void encodeLine_Text_HeapBufferWithLineSeparator() {
+        ByteBuffer line = Frame.encodeLine("OK LIST user1, ");
+        assertTrue(line.hasArray());
+        assertEquals("OK LIST user1, " + System.lineSeparator(), text(line));
+    }
+
+    private String text(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
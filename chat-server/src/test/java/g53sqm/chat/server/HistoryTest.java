@@ -0,0 +1,151 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryTest {
+
+    private File directory;
+    private MessageLog log;
+
+    @After
+    public void tearDown() {
+        if (log != null) {
+            log.close();
+        }
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void replay_FewerSentThanWanted_AnnouncesAndReplaysOldestFirst() {
+        History history = new History(8, null);
+        for (int i = 0; i < 3; i++) {
+            history.add(Frame.of("Broadcast from user: " + i), -1);
+        }
+        List<String> lines = drain(history.replay(20, true), 32);
+        assertEquals(4, lines.size());
+        assertEquals("OK HIST 3 message(s)", lines.get(0));
+        assertEquals("Broadcast from user: 0", lines.get(1));
+        assertEquals("Broadcast from user: 2", lines.get(3));
+    }
+
+    @Test
+    public void replay_RingWrappedAround_ReplaysNewest() {
+        History history = new History(4, null);
+        for (int i = 0; i < 10; i++) {
+            history.add(Frame.of("message " + i), -1);
+        }
+        List<String> lines = drain(history.replay(3, true), 32);
+        assertEquals("OK HIST 3 message(s)", lines.get(0));
+        assertEquals("message 7", lines.get(1));
+        assertEquals("message 9", lines.get(3));
+        assertEquals(5, drain(history.replay(100, true), 32).size());
+    }
+
+    @Test
+    public void replay_NothingSent_AnnouncedOnlyWhenAsked() {
+        History history = new History(4, null);
+        assertEquals(1, drain(history.replay(5, true), 32).size());
+        assertTrue(drain(history.replay(5, false), 32).isEmpty());
+    }
+
+    @Test
+    public void replay_SmallChunks_SplitsAcrossChunks() {
+        History history = new History(64, null);
+        for (int i = 0; i < 50; i++) {
+            history.add(Frame.of("message " + i), -1);
+        }
+        HistoryReplay replay = history.replay(50, true);
+        assertEquals(11, replay.nextChunk(10).size());
+        assertTrue(!replay.isComplete());
+        int chunks = 1;
+        while (!replay.isComplete()) {
+            assertTrue(replay.nextChunk(10).size() <= 10);
+            chunks++;
+        }
+        assertEquals(5, chunks);
+    }
+
+    @Test
+    public void replay_OlderThanRing_ReadFromMessageLog() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+        log = MessageLog.open(directory, 64 * 1024, 4096,
+                new ServerLog(ServerLog.Level.OFF, 16, new PrintStream(new ByteArrayOutputStream())));
+        History history = new History(4, log);
+        for (int i = 0; i < 30; i++) {
+            String text = "Broadcast from user: " + i;
+            history.add(Frame.of(text), log.append(MessageLog.Kind.BROADCAST, null, text));
+            // Private messages in between are skipped
+            log.append(MessageLog.Kind.PRIVATE, "user", "PM from user:" + i);
+        }
+        awaitEndOffset(60);
+
+        List<String> lines = drain(history.replay(10, true), 3);
+        assertEquals(11, lines.size());
+        assertEquals("OK HIST 10 message(s)", lines.get(0));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Broadcast from user: " + (20 + i), lines.get(i + 1));
+        }
+    }
+
+    @Test
+    public void replay_EmptyRingAfterRestart_ReadFromMessageLog() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+        log = MessageLog.open(directory, 64 * 1024, 4096,
+                new ServerLog(ServerLog.Level.OFF, 16, new PrintStream(new ByteArrayOutputStream())));
+        for (int i = 0; i < 5; i++) {
+            log.append(MessageLog.Kind.BROADCAST, null, "Broadcast from user: " + i);
+        }
+        awaitEndOffset(5);
+
+        List<String> lines = drain(new History(4, log).replay(3, true), 32);
+        assertEquals("OK HIST 3 message(s)", lines.get(0));
+        assertEquals("Broadcast from user: 2", lines.get(1));
+        assertEquals("Broadcast from user: 4", lines.get(3));
+    }
+
+    private static List<String> drain(HistoryReplay replay, int chunkSize) {
+        List<String> lines = new ArrayList<String>();
+        if (replay.needsOlder()) {
+            replay.setOlder(replay.loadOlder());
+        }
+        do {
+            for (Frame frame : replay.nextChunk(chunkSize)) {
+                lines.add(frame.getText());
+            }
+        } while (!replay.isComplete());
+        return lines;
+    }
+
+    private void awaitEndOffset(long offset) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.getEndOffset() < offset && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        assertEquals(offset, log.getEndOffset());
+    }
+}
@@ -0,0 +1,125 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdleReaperTest {
+
+    private Server server;
+    private ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (server != null) {
+            server.shutdown(0);
+        }
+    }
+
+    @Test
+    public void silentClient_PingedThenReaped_UserRemoved() throws IOException {
+        start(new Server(0, config()));
+        BufferedReader reader = login("user1");
+
+        assertEquals("PING", reader.readLine());
+        assertNull(reader.readLine());
+        awaitTrue(new Condition() {
+            @Override
+            public boolean holds() {
+                return !server.doesUserExist("user1") && server.getConnections().isEmpty();
+            }
+        });
+        assertEquals("1", server.getMetrics().getSnapshot().get("connections.reaped"));
+    }
+
+    @Test
+    public void clientAnsweringPong_StaysConnected() throws IOException {
+        start(new Server(0, config()));
+        BufferedReader reader = login("user1");
+        PrintWriter writer = new PrintWriter(sockets.get(0).getOutputStream(), true);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("PING", reader.readLine());
+            writer.println("PONG");
+        }
+        assertTrue(server.doesUserExist("user1"));
+        assertEquals("0", server.getMetrics().getSnapshot().get("connections.reaped"));
+    }
+
+    @Test
+    public void silentClient_NioEngine_Reaped() throws IOException {
+        start(new NioServer(0, config().setIoThreads(1)));
+        BufferedReader reader = login("user1");
+
+        assertEquals("PING", reader.readLine());
+        assertNull(reader.readLine());
+        awaitTrue(new Condition() {
+            @Override
+            public boolean holds() {
+                return !server.doesUserExist("user1");
+            }
+        });
+    }
+
+    @Test
+    public void idleTimeoutZero_NoReaper() {
+        server = new Server(0, new ServerConfig().setLogLevel(ServerLog.Level.OFF).setIdleTimeoutMillis(0));
+        assertNull(server.getIdleReaper());
+    }
+
+    private static ServerConfig config() {
+        return new ServerConfig().setLogLevel(ServerLog.Level.OFF).setIdleTimeoutMillis(200).setPongTimeoutMillis(200);
+    }
+
+    private void start(final Server started) {
+        server = started;
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.listen();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private BufferedReader login(String username) throws IOException {
+        Socket socket = new Socket("localhost", server.getServerPort());
+        sockets.add(socket);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        reader.readLine(); // The welcome message
+        new PrintWriter(socket.getOutputStream(), true).println("IDEN " + username);
+        assertEquals("OK IDEN Welcome to the chat server " + username, reader.readLine());
+        return reader;
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void awaitTrue(Condition condition) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
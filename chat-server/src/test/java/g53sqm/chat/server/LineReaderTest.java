@@ -0,0 +1,117 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LineReaderTest {
+
+    @Test
+    public void readLine_LineFeedTerminated_ReturnsLines() throws IOException {
+        LineReader reader = readerFor("IDEN user\nHAIL hello\n");
+        assertEquals("IDEN user", reader.readLine());
+        assertEquals("HAIL hello", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void readLine_CarriageReturnTerminators_ReturnsLinesWithoutTerminators() throws IOException {
+        LineReader reader = readerFor("LIST\r\nSTAT\rQUIT\r\n");
+        assertEquals("LIST", reader.readLine());
+        assertEquals("STAT", reader.readLine());
+        assertEquals("QUIT", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void readLine_EmptyLines_ReturnsEmptyStrings() throws IOException {
+        LineReader reader = readerFor("\n\r\n");
+        assertEquals("", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void readLine_UnterminatedLastLine_ReturnsLine() throws IOException {
+        LineReader reader = readerFor("LIST\nSTAT");
+        assertEquals("LIST", reader.readLine());
+        assertEquals("STAT", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void readLine_LineLongerThanBuffer_ReturnsWholeLine() throws IOException {
+        StringBuilder longMessage = new StringBuilder("HAIL ");
+        for (int i = 0; i < 1000; i++) {
+            longMessage.append("word ");
+        }
+        LineReader reader = readerFor(longMessage + "\nLIST\n");
+        assertEquals(longMessage.toString(), reader.readLine());
+        assertEquals("LIST", reader.readLine());
+    }
+
+    @Test
+    public void readLine_MultiByteCharacters_DecodedAsUtf8() throws IOException {
+        LineReader reader = readerFor("HAIL h\u00e9llo \u4f60\u597d\n");
+        assertEquals("HAIL h\u00e9llo \u4f60\u597d", reader.readLine());
+    }
+
+    @Test
+    public void nextLine_LineFeedTerminated_ExposesLineBytes() throws IOException {
+        LineReader reader = readerFor("IDEN user\nLIST\n");
+        assertTrue(reader.nextLine());
+        assertEquals("IDEN user", new String(reader.lineBuffer(), reader.lineOffset(), reader.lineLength(), StandardCharsets.UTF_8));
+        assertTrue(reader.nextLine());
+        assertEquals("LIST", new String(reader.lineBuffer(), reader.lineOffset(), reader.lineLength(), StandardCharsets.UTF_8));
+        assertFalse(reader.nextLine());
+    }
+
+    @Test
+    public void readLine_FramesAccepted_FramesAndLinesMixed() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("MODE BINARY\r".getBytes(StandardCharsets.UTF_8));
+        stream.write(BinaryFraming.encode("HAIL first\nsecond").array());
+        stream.write("LIST\n".getBytes(StandardCharsets.UTF_8));
+        LineReader reader = new LineReader(new ByteArrayInputStream(stream.toByteArray()));
+
+        assertEquals("MODE BINARY", reader.readLine());
+        reader.acceptFrames();
+        assertEquals("HAIL first\nsecond", reader.readLine());
+        assertEquals("LIST", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void readLine_FrameLongerThanBuffer_ReturnsWholePayload() throws IOException {
+        StringBuilder payload = new StringBuilder("HAIL ");
+        for (int i = 0; i < 1000; i++) {
+            payload.append('x');
+        }
+        LineReader reader = new LineReader(new ByteArrayInputStream(BinaryFraming.encode(payload.toString()).array()));
+        reader.acceptFrames();
+        assertEquals(payload.toString(), reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test(expected = IOException.class)
+    public void readLine_StreamEndsInsideFrame_Throws() throws IOException {
+        byte[] frame = BinaryFraming.encode("HAIL hello").array();
+        byte[] truncated = new byte[frame.length - 2];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        LineReader reader = new LineReader(new ByteArrayInputStream(truncated));
+        reader.acceptFrames();
+        reader.readLine();
+    }
+
+    private LineReader readerFor(String text) {
+        return new LineReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+}
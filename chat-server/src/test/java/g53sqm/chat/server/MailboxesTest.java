@@ -0,0 +1,191 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxesTest {
+
+    private File directory;
+    private ServerLog serverLog;
+    private Mailboxes mailboxes;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("mailboxes").toFile();
+        serverLog = new ServerLog(ServerLog.Level.OFF, 16, new PrintStream(new ByteArrayOutputStream()));
+        mailboxes = Mailboxes.open(3, 2, directory, serverLog);
+    }
+
+    @After
+    public void tearDown() {
+        mailboxes.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void deposit_UserNeverLoggedIn_UnknownUser() {
+        assertEquals(Mailboxes.Deposit.UNKNOWN_USER, mailboxes.deposit("nobody", "PM from user1:hi"));
+    }
+
+    @Test
+    public void deposit_UserOnline_Online() {
+        mailboxes.checkIn("user2");
+        assertEquals(Mailboxes.Deposit.ONLINE, mailboxes.deposit("user2", "PM from user1:hi"));
+    }
+
+    @Test
+    public void checkIn_MessagesStoredWhileOffline_DrainedOldestFirst() {
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user2");
+        assertEquals(Mailboxes.Deposit.STORED, mailboxes.deposit("user2", "PM from user1:first"));
+        assertEquals(Mailboxes.Deposit.STORED, mailboxes.deposit("user2", "PM from user3:second"));
+        assertEquals(2, mailboxes.getWaiting());
+
+        assertEquals(Arrays.asList("PM from user1:first", "PM from user3:second"), mailboxes.checkIn("user2"));
+        assertEquals(0, mailboxes.getWaiting());
+        assertEquals(2, mailboxes.getDelivered());
+        mailboxes.checkOut("user2");
+        assertTrue(mailboxes.checkIn("user2").isEmpty());
+    }
+
+    @Test
+    public void deposit_MailboxFull_Full() {
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user2");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Mailboxes.Deposit.STORED, mailboxes.deposit("user2", "PM from user1:" + i));
+        }
+        assertEquals(Mailboxes.Deposit.FULL, mailboxes.deposit("user2", "PM from user1:one too many"));
+        assertEquals(3, mailboxes.checkIn("user2").size());
+    }
+
+    @Test
+    public void open_ExistingMailboxes_MessagesKeptAndEmptyMailboxesForgotten() throws IOException {
+        mailboxes.checkIn("user2");
+        mailboxes.checkIn("empty");
+        mailboxes.checkOut("user2");
+        mailboxes.checkOut("empty");
+        mailboxes.deposit("user2", "PM from user1:h\u00e9llo");
+        mailboxes.deposit("user2", "PM from user1:" + new String(new char[300]).replace('\0', 'x'));
+        mailboxes.close();
+
+        mailboxes = Mailboxes.open(3, 2, directory, serverLog);
+        assertEquals(2, mailboxes.getWaiting());
+        assertEquals(Mailboxes.Deposit.UNKNOWN_USER, mailboxes.deposit("empty", "PM from user1:forgotten"));
+        List<String> messages = mailboxes.checkIn("user2");
+        assertEquals("PM from user1:h\u00e9llo", messages.get(0));
+        assertEquals(314, messages.get(1).length());
+    }
+
+    @Test
+    public void checkIn_NewUser_NoFileUntilFirstMessage() {
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user2");
+        mailboxes.close();
+        File file = new File(directory, Mailboxes.fileName("user2"));
+        assertFalse(file.exists());
+
+        mailboxes = new Mailboxes(3, 2, directory, serverLog);
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user2");
+        mailboxes.deposit("user2", "PM from user1:hi");
+        mailboxes.close();
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void checkIn_MessagesHandedOut_FileDeleted() {
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user2");
+        mailboxes.deposit("user2", "PM from user1:hi");
+        mailboxes.checkIn("user2");
+        mailboxes.close();
+        assertFalse(new File(directory, Mailboxes.fileName("user2")).exists());
+    }
+
+    @Test
+    public void checkIn_MoreUsersThanMax_MailboxOfFirstToLeaveForgotten() {
+        mailboxes.checkIn("user1");
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user1");
+        mailboxes.checkOut("user2");
+        mailboxes.checkIn("user3");
+        mailboxes.checkOut("user3");
+
+        assertEquals(2, mailboxes.getUsers());
+        assertEquals(Mailboxes.Deposit.UNKNOWN_USER, mailboxes.deposit("user1", "PM from user3:hi"));
+        assertEquals(Mailboxes.Deposit.STORED, mailboxes.deposit("user2", "PM from user3:hi"));
+        assertEquals(Mailboxes.Deposit.STORED, mailboxes.deposit("user3", "PM from user2:hi"));
+    }
+
+    @Test
+    public void checkIn_EveryMailboxHoldsMessages_NewUserNotKept() {
+        mailboxes.checkIn("user1");
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user1");
+        mailboxes.checkOut("user2");
+        mailboxes.deposit("user1", "PM from user3:hi");
+        mailboxes.deposit("user2", "PM from user3:hi");
+
+        assertTrue(mailboxes.checkIn("user3").isEmpty());
+        mailboxes.checkOut("user3");
+        assertEquals(2, mailboxes.getUsers());
+        assertEquals(Mailboxes.Deposit.UNKNOWN_USER, mailboxes.deposit("user3", "PM from user1:hi"));
+        assertEquals(1, mailboxes.checkIn("user1").size());
+    }
+
+    @Test
+    public void open_UsernameLongerThanFileNames_MessagesKept() throws IOException {
+        String user = new String(new char[300]).replace('\0', 'u');
+        mailboxes.checkIn(user);
+        mailboxes.checkOut(user);
+        assertEquals(Mailboxes.Deposit.STORED, mailboxes.deposit(user, "PM from user1:hi"));
+        mailboxes.close();
+
+        mailboxes = Mailboxes.open(3, 2, directory, serverLog);
+        assertEquals(Arrays.asList("PM from user1:hi"), mailboxes.checkIn(user));
+    }
+
+    @Test
+    public void open_TornLastRecord_RecordIgnored() throws IOException {
+        mailboxes.checkIn("user2");
+        mailboxes.checkOut("user2");
+        mailboxes.deposit("user2", "PM from user1:kept");
+        mailboxes.close();
+        File file = new File(directory, Mailboxes.fileName("user2"));
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{40, 'P', 'M'});
+        out.close();
+
+        mailboxes = Mailboxes.open(3, 2, directory, serverLog);
+        assertEquals(Arrays.asList("PM from user1:kept"), mailboxes.checkIn("user2"));
+    }
+
+    @Test
+    public void checkIn_NoCapacity_NothingKept() {
+        Mailboxes none = new Mailboxes(0, 2, null, serverLog);
+        none.checkIn("user2");
+        none.checkOut("user2");
+        assertEquals(Mailboxes.Deposit.UNKNOWN_USER, none.deposit("user2", "PM from user1:hi"));
+    }
+}
@@ -0,0 +1,214 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private File directory;
+    private ServerLog serverLog;
+    private MessageLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("message-log").toFile();
+        serverLog = new ServerLog(ServerLog.Level.OFF, 16, new PrintStream(new ByteArrayOutputStream()));
+        log = MessageLog.open(directory, SEGMENT_SIZE, 4096, serverLog);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void append_DifferentKinds_ReadBackInOrderWithOffsets() {
+        log.append(MessageLog.Kind.BROADCAST, null, "Broadcast from user1: hi");
+        log.append(MessageLog.Kind.PRIVATE, "user2", "PM from user1:psst");
+        log.append(MessageLog.Kind.ROOM, "#team", "Broadcast from user1 to #team: standup");
+        awaitEndOffset(3);
+
+        List<MessageLog.Record> records = log.read(0, 10);
+        assertEquals(3, records.size());
+        assertEquals(0, records.get(0).getOffset());
+        assertEquals(MessageLog.Kind.BROADCAST, records.get(0).getKind());
+        assertNull(records.get(0).getRecipient());
+        assertEquals("Broadcast from user1: hi", records.get(0).getText());
+        assertEquals(MessageLog.Kind.PRIVATE, records.get(1).getKind());
+        assertEquals("user2", records.get(1).getRecipient());
+        assertEquals("#team", records.get(2).getRecipient());
+        assertEquals("Broadcast from user1 to #team: standup", records.get(2).getText());
+        assertTrue(records.get(0).getTime() > 0);
+
+        List<MessageLog.Record> middle = log.read(1, 1);
+        assertEquals(1, middle.size());
+        assertEquals("PM from user1:psst", middle.get(0).getText());
+        assertTrue(log.read(3, 10).isEmpty());
+    }
+
+    @Test
+    public void append_MoreThanOneSegment_RollsAndReadsAcrossSegments() {
+        for (int i = 0; i < 2000; i++) {
+            log.append(MessageLog.Kind.BROADCAST, null, "Broadcast from user" + (i % 10) + ": message number " + i
+                    + " with some more text to fill the segments");
+        }
+        awaitEndOffset(2000);
+        assertTrue(log.getSegmentCount() > 2);
+
+        List<MessageLog.Record> records = log.read(1500, 10);
+        assertEquals(10, records.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1500 + i, records.get(i).getOffset());
+            assertTrue(records.get(i).getText().contains("message number " + (1500 + i) + " "));
+        }
+        List<MessageLog.Record> all = log.read(0, 5000);
+        assertEquals(2000, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, all.get(i).getOffset());
+        }
+        assertEquals(2000, log.getAppended());
+        assertTrue(log.getCommits() <= 2000);
+    }
+
+    @Test
+    public void open_ExistingLog_RecoversRecordsAndContinuesOffsets() throws IOException {
+        for (int i = 0; i < 1200; i++) {
+            log.append(MessageLog.Kind.BROADCAST, null, "Broadcast from user: " + i + " padding padding padding padding");
+        }
+        awaitEndOffset(1200);
+        int segments = log.getSegmentCount();
+        log.close();
+
+        log = MessageLog.open(directory, SEGMENT_SIZE, 4096, serverLog);
+        assertEquals(segments, log.getSegmentCount());
+        assertEquals(1200, log.getEndOffset());
+        assertEquals("Broadcast from user: 700 padding padding padding padding", log.read(700, 1).get(0).getText());
+
+        log.append(MessageLog.Kind.BROADCAST, null, "after restart");
+        awaitEndOffset(1201);
+        assertEquals("after restart", log.read(1200, 1).get(0).getText());
+    }
+
+    @Test
+    public void open_TornLastRecord_RecordDiscarded() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            log.append(MessageLog.Kind.BROADCAST, null, "message " + i);
+        }
+        awaitEndOffset(10);
+        log.close();
+
+        File segment = new File(directory, LogSegment.fileName(0, ".log"));
+        byte[] content = Files.readAllBytes(segment.toPath());
+        int at = new String(content, StandardCharsets.ISO_8859_1).indexOf("message 9");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(at);
+        file.write('X');
+        file.close();
+
+        log = MessageLog.open(directory, SEGMENT_SIZE, 4096, serverLog);
+        assertEquals(9, log.getEndOffset());
+        log.append(MessageLog.Kind.BROADCAST, null, "replacement");
+        awaitEndOffset(10);
+        assertEquals("replacement", log.read(9, 1).get(0).getText());
+    }
+
+    @Test
+    public void append_LargerThanSegment_Dropped() {
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() < SEGMENT_SIZE) {
+            huge.append("chat ");
+        }
+        assertEquals(0, log.append(MessageLog.Kind.BROADCAST, null, huge.toString()));
+        assertEquals(1, log.append(MessageLog.Kind.BROADCAST, null, "small"));
+        awaitEndOffset(2);
+        assertEquals(1, log.getDropped());
+        List<MessageLog.Record> records = log.read(0, 10);
+        assertEquals(1, records.size());
+        assertEquals(1, records.get(0).getOffset());
+        assertEquals("small", records.get(0).getText());
+    }
+
+    @Test
+    public void append_RecipientLongerThanShortLength_ReadBackWhole() throws IOException {
+        log.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        log = MessageLog.open(directory, 4 * SEGMENT_SIZE, 4096, serverLog);
+        StringBuilder recipient = new StringBuilder();
+        while (recipient.length() <= 65535) {
+            recipient.append("user ");
+        }
+        log.append(MessageLog.Kind.PRIVATE, recipient.toString(), "PM from user1:hi");
+        awaitEndOffset(1);
+
+        List<MessageLog.Record> records = log.read(0, 10);
+        assertEquals(1, records.size());
+        assertEquals(recipient.toString(), records.get(0).getRecipient());
+        assertEquals("PM from user1:hi", records.get(0).getText());
+    }
+
+    @Test
+    public void open_LogWithGaps_RecoversAndReadsAroundGaps() throws IOException {
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() < SEGMENT_SIZE) {
+            huge.append("chat ");
+        }
+        for (int i = 0; i < 100; i++) {
+            log.append(MessageLog.Kind.BROADCAST, null, i % 10 == 5 ? huge.toString() : "message " + i);
+        }
+        awaitEndOffset(100);
+        log.close();
+
+        log = MessageLog.open(directory, SEGMENT_SIZE, 4096, serverLog);
+        assertEquals(100, log.getEndOffset());
+        List<MessageLog.Record> records = log.read(15, 3);
+        assertEquals(16, records.get(0).getOffset());
+        assertEquals("message 16", records.get(0).getText());
+        assertEquals(90, log.read(0, 1000).size());
+        assertEquals(100, log.append(MessageLog.Kind.BROADCAST, null, "next"));
+    }
+
+    @Test
+    public void append_AfterClose_Dropped() {
+        log.close();
+        assertEquals(-1, log.append(MessageLog.Kind.BROADCAST, null, "too late"));
+        assertEquals(1, log.getDropped());
+    }
+
+    private void awaitEndOffset(long offset) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.getEndOffset() < offset && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        assertEquals(offset, log.getEndOffset());
+    }
+}
@@ -0,0 +1,284 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NioServerTest {
+
+    private NioServer server;
+    private int serverPort;
+    private Thread serverThread;
+
+    @Before
+    public void setupServer() {
+        server = new NioServer(0, new ServerConfig().setIoThreads(2));
+        serverPort = server.getServerPort();
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("Start Server Thread.");
+                server.listen();
+            }
+        });
+        // Start the thread as daemon so it would stop when JVM stop
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        // Let it sleep for 0.5 second to ensure thread executed
+        sleep(500);
+    }
+
+    @Test
+    public void listen_ServerStarted_IsListening() {
+        assertTrue(server.isListening());
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void constructor_PortInUse_FailsStartup() {
+        new NioServer(serverPort, new ServerConfig());
+    }
+
+    @Test
+    public void connect_FirstConnection_ReceiveWelcomeMessage() {
+        Socket user = createConnection(serverPort);
+        String expected = "OK CONNECT Welcome to the chat server, there are currently 1 user(s) online";
+        assertEquals(expected, userWaitForMessage(user));
+    }
+
+    @Test
+    public void iden_UsersSpreadOverLoops_AllRegistered() {
+        Socket user1 = createMockUser("user1", serverPort);
+        Socket user2 = createMockUser("user2", serverPort);
+        Socket user3 = createMockUser("user3", serverPort);
+
+        ArrayList<String> actual = server.getUserList();
+        assertArrayEquals(new String[]{"user1", "user2", "user3"}, actual.toArray());
+        assertEquals(3, server.getNumberOfUsers());
+    }
+
+    @Test
+    public void iden_LineEndsWithCarriageReturn_UsernameWithoutTerminator() {
+        Socket user = createConnection(serverPort);
+        userWaitForMessage(user); // Clean first line of buffer, the welcome message
+
+        userSendRaw(user, "IDEN user1\r\n");
+        assertEquals("OK IDEN Welcome to the chat server user1", userWaitForMessage(user));
+        assertTrue(server.doesUserExist("user1"));
+    }
+
+    @Test
+    public void mode_Binary_CommandsAndRepliesAsFrames() throws IOException {
+        Socket user = createConnection(serverPort);
+        userWaitForMessage(user); // Clean first line of buffer, the welcome message
+
+        userSendMessage(user, "MODE BINARY");
+        assertEquals("OK MODE BINARY", userWaitForMessage(user));
+        userSendFrame(user, "IDEN user1");
+        assertEquals("OK IDEN Welcome to the chat server user1", userWaitForFrame(user));
+        userSendFrame(user, "HAIL first line\nsecond line");
+        assertEquals("Broadcast from user1: first line\nsecond line", userWaitForFrame(user));
+    }
+
+    @Test
+    public void hail_MultipleUsers_AllUsersReceiveBroadcast() {
+        Socket user1 = createMockUser("user1", serverPort);
+        Socket user2 = createMockUser("user2", serverPort);
+        // Clean first line of buffer, the welcome message
+        userWaitForMessage(user1);
+        userWaitForMessage(user2);
+
+        userSendMessage(user1, "HAIL Hello!");
+        assertEquals("Broadcast from user1: Hello!", userWaitForMessage(user1));
+        assertEquals("Broadcast from user1: Hello!", userWaitForMessage(user2));
+    }
+
+    @Test
+    public void mesg_ExistingUser_OnlyRecipientReceivesMessage() {
+        Socket user1 = createMockUser("user1", serverPort);
+        Socket user2 = createMockUser("user2", serverPort);
+        // Clean first line of buffer, the welcome message
+        userWaitForMessage(user1);
+        userWaitForMessage(user2);
+
+        userSendMessage(user2, "MESG user1 Hello!");
+        assertEquals("PM from user2:Hello!", userWaitForMessage(user1));
+        assertEquals("OK MESG your message has been sent", userWaitForMessage(user2));
+    }
+
+    @Test
+    public void quit_RegisteredUser_ReceivesGoodbyeAndIsRemoved() {
+        Socket user1 = createMockUser("user1", serverPort);
+        Socket user2 = createMockUser("user2", serverPort);
+        userWaitForMessage(user1); // Clean first line of buffer, the welcome message
+
+        userSendMessage(user1, "QUIT");
+        String expected = "OK QUIT thank you for sending 0 message(s) with the chat service, goodbye. ";
+        assertEquals(expected, userWaitForMessage(user1));
+        assertEquals(1, server.getNumberOfUsers());
+        assertFalse(server.doesUserExist("user1"));
+        assertTrue(server.doesUserExist("user2"));
+    }
+
+    @Test
+    public void hist_MoreThanOneChunk_AllReplayedInOrder() throws IOException {
+        server.shutdown(0);
+        server = new NioServer(0, new ServerConfig().setIoThreads(2).setHistoryReplay(20));
+        serverPort = server.getServerPort();
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+        for (int i = 0; i < 100; i++) {
+            server.broadcastMessage("Broadcast from server: message " + i);
+        }
+        Socket user = createConnection(serverPort);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(user.getInputStream()));
+        reader.readLine(); // The welcome message
+        userSendMessage(user, "IDEN user1");
+        assertEquals("OK IDEN Welcome to the chat server user1", reader.readLine());
+        assertEquals("OK HIST 20 message(s)", reader.readLine());
+        for (int i = 80; i < 100; i++) {
+            assertEquals("Broadcast from server: message " + i, reader.readLine());
+        }
+
+        userSendMessage(user, "HIST 75");
+        assertEquals("OK HIST 75 message(s)", reader.readLine());
+        for (int i = 25; i < 100; i++) {
+            assertEquals("Broadcast from server: message " + i, reader.readLine());
+        }
+    }
+
+    @Test
+    public void shutdown_ConnectedClients_NoticeSentAndSocketsClosed() throws IOException {
+        Socket user = createConnection(serverPort);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(user.getInputStream()));
+        reader.readLine(); // The welcome message
+
+        ShutdownReport report = server.shutdown(2000);
+        assertEquals("OK QUIT the server is shutting down, goodbye", reader.readLine());
+        assertEquals(null, reader.readLine());
+        assertEquals(1, report.getDrained());
+        assertEquals(0, report.getForced());
+    }
+
+    @Test
+    public void disconnect_SocketClosed_UserIsRemoved() throws IOException {
+        Socket user = createMockUser("user1", serverPort);
+        user.close();
+        sleep(500);
+        assertEquals(0, server.getNumberOfUsers());
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown(0);
+    }
+
+    private Socket createConnection(int port) {
+        Socket user = null;
+        try {
+            user = new Socket("localhost", port);
+        } catch (IOException e) {
+            Assert.fail("Fail to create mock user.");
+        }
+        sleep(500);
+        return user;
+    }
+
+    private Socket createMockUser(String userName, int port) {
+        Socket user = createConnection(port);
+        userSendMessage(user, "IDEN " + userName);
+        return user;
+    }
+
+    private void userSendMessage(Socket user, String msg) {
+        try {
+            PrintWriter userOut = new PrintWriter(user.getOutputStream(), true);
+            userOut.println(msg);
+            sleep(500);
+        } catch (IOException e) {
+            Assert.fail("Fail to send message");
+        }
+    }
+
+    private void userSendRaw(Socket user, String raw) {
+        try {
+            OutputStream userOut = user.getOutputStream();
+            userOut.write(raw.getBytes("UTF-8"));
+            userOut.flush();
+            sleep(500);
+        } catch (IOException e) {
+            Assert.fail("Fail to send message");
+        }
+    }
+
+    private void userSendFrame(Socket user, String msg) {
+        try {
+            OutputStream userOut = user.getOutputStream();
+            ByteBuffer frame = BinaryFraming.encode(msg);
+            userOut.write(frame.array(), 0, frame.limit());
+            userOut.flush();
+            sleep(500);
+        } catch (IOException e) {
+            Assert.fail("Fail to send message");
+        }
+    }
+
+    private String userWaitForFrame(Socket user) throws IOException {
+        DataInputStream in = new DataInputStream(user.getInputStream());
+        assertEquals(BinaryFraming.OP_MESSAGE, in.readByte());
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private String userWaitForMessage(Socket user) {
+        String line = "";
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(user.getInputStream()));
+            line = reader.readLine();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return line;
+    }
+
+    private void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
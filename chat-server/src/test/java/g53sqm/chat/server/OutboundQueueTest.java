@@ -0,0 +1,109 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void offer_BelowCapacity_AcceptedInOrder() {
+        OutboundQueue queue = new OutboundQueue(3, ServerConfig.SlowConsumerPolicy.DISCONNECT, 0);
+        assertTrue(queue.offer(message("a")));
+        assertTrue(queue.offer(message("b")));
+        assertEquals("a", text(queue.poll()));
+        assertEquals("b", text(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void offer_FullWithDisconnectPolicy_ReturnsFalse() {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.SlowConsumerPolicy.DISCONNECT, 0);
+        assertTrue(queue.offer(message("a")));
+        assertTrue(queue.offer(message("b")));
+        assertFalse(queue.offer(message("c")));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void offer_FullWithDropOldestPolicy_DropsOldestMessage() {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.SlowConsumerPolicy.DROP_OLDEST, 0);
+        queue.offer(message("a"));
+        queue.offer(message("b"));
+        assertTrue(queue.offer(message("c")));
+        assertEquals(1, queue.getDropped());
+        assertEquals("b", text(queue.poll()));
+        assertEquals("c", text(queue.poll()));
+    }
+
+    @Test
+    public void offer_FullWithBlockPolicy_WaitsForTimeoutThenReturnsFalse() {
+        OutboundQueue queue = new OutboundQueue(1, ServerConfig.SlowConsumerPolicy.BLOCK, 200);
+        queue.offer(message("a"));
+        long start = System.nanoTime();
+        assertFalse(queue.offer(message("b")));
+        assertTrue(System.nanoTime() - start >= 150000000L);
+    }
+
+    @Test
+    public void offer_FullWithBlockPolicy_AcceptedOnceWriterCatchesUp() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, ServerConfig.SlowConsumerPolicy.BLOCK, 5000);
+        queue.offer(message("a"));
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                queue.poll();
+            }
+        });
+        writer.start();
+        assertTrue(queue.offer(message("b")));
+        writer.join();
+        assertEquals("b", text(queue.poll()));
+    }
+
+    @Test
+    public void drainTo_MoreQueuedThanBatch_DrainsBatchSize() {
+        OutboundQueue queue = new OutboundQueue(10, ServerConfig.SlowConsumerPolicy.DISCONNECT, 0);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(message(Integer.toString(i)));
+        }
+        ByteBuffer[] batch = new ByteBuffer[3];
+        assertEquals(3, queue.drainTo(batch));
+        assertEquals("0", text(batch[0]));
+        assertEquals("2", text(batch[2]));
+        assertEquals(2, queue.drainTo(batch));
+        assertEquals(0, queue.drainTo(batch));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void clear_FullQueue_RoomForAsManyAgain() {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.SlowConsumerPolicy.DISCONNECT, 0);
+        queue.offer(message("a"));
+        queue.offer(message("b"));
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertTrue(queue.offer(message("c")));
+        assertTrue(queue.offer(message("d")));
+        assertFalse(queue.offer(message("e")));
+    }
+
+    private ByteBuffer message(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String text(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
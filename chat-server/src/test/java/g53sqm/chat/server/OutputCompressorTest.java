@@ -0,0 +1,72 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutputCompressorTest {
+
+    @Test
+    public void compress_Batches_InflateBackWithDictionary() throws DataFormatException {
+        OutputCompressor compressor = new OutputCompressor(6);
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(OutputCompressor.DICTIONARY);
+
+        assertEquals("Broadcast from user1: hi\n", inflate(inflater, compressor.compress(batch("Broadcast from user1: hi\n"), 0, 1)));
+        assertEquals("PM from user2:hello\nOK LIST user1, user2, \n",
+                inflate(inflater, compressor.compress(batch("PM from user2:hello\n", "OK LIST user1, user2, \n"), 0, 2)));
+        compressor.release();
+    }
+
+    @Test
+    public void compress_RepeatedBroadcasts_FarSmallerThanInput() {
+        OutputCompressor compressor = new OutputCompressor(6);
+        ByteBuffer[] messages = new ByteBuffer[50];
+        int total = 0;
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = Frame.encodeLine("Broadcast from user" + (i % 5) + ": message number " + i);
+            total += messages[i].remaining();
+        }
+        ByteBuffer compressed = compressor.compress(messages, 0, messages.length);
+        assertTrue("compressed to " + compressed.remaining() + " of " + total, compressed.remaining() * 4 < total);
+        compressor.release();
+    }
+
+    @Test
+    public void compress_LargerThanBuffers_WholeOutputReturned() throws DataFormatException {
+        OutputCompressor compressor = new OutputCompressor(1);
+        byte[] random = new byte[10000];
+        new Random(7).nextBytes(random);
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(OutputCompressor.DICTIONARY);
+
+        ByteBuffer compressed = compressor.compress(new ByteBuffer[]{ByteBuffer.wrap(random)}, 0, 1);
+        byte[] out = new byte[random.length];
+        inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+        assertEquals(random.length, inflater.inflate(out));
+        assertEquals(ByteBuffer.wrap(random), ByteBuffer.wrap(out));
+        compressor.release();
+    }
+
+    private ByteBuffer[] batch(String... lines) {
+        ByteBuffer[] messages = new ByteBuffer[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            messages[i] = ByteBuffer.wrap(lines[i].getBytes(StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+
+    private String inflate(Inflater inflater, ByteBuffer compressed) throws DataFormatException {
+        inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+        byte[] out = new byte[4096];
+        int n = inflater.inflate(out);
+        return new String(out, 0, n, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,189 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ServerConfigTest {
+
+    @Test
+    public void fromArgs_NoArgs_ReturnsDefaults() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{});
+        assertEquals(ServerConfig.Engine.BLOCKING, config.getEngine());
+        assertEquals(ServerConfig.ThreadMode.PLATFORM, config.getThreadMode());
+        assertEquals(ServerConfig.SlowConsumerPolicy.DISCONNECT, config.getSlowConsumerPolicy());
+    }
+
+    @Test
+    public void fromArgs_EngineAndThreads_ParsedCaseInsensitive() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--engine=nio", "--io-threads=3", "--threads=Virtual"});
+        assertEquals(ServerConfig.Engine.NIO, config.getEngine());
+        assertEquals(3, config.getIoThreads());
+        assertEquals(ServerConfig.ThreadMode.VIRTUAL, config.getThreadMode());
+    }
+
+    @Test
+    public void fromArgs_InvalidOptions_Ignored() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"nio", "--engine=fast", "--io-threads=0", "--unknown=1"});
+        assertEquals(ServerConfig.Engine.BLOCKING, config.getEngine());
+        assertEquals(Math.max(1, Runtime.getRuntime().availableProcessors()), config.getIoThreads());
+    }
+
+    @Test
+    public void fromArgs_OutboundQueueOptions_Parsed() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--outbound-queue=16", "--slow-consumer=drop-oldest", "--block-timeout-ms=250"});
+        assertEquals(16, config.getOutboundQueueCapacity());
+        assertEquals(ServerConfig.SlowConsumerPolicy.DROP_OLDEST, config.getSlowConsumerPolicy());
+        assertEquals(250, config.getBlockTimeoutMillis());
+    }
+
+    @Test
+    public void fromArgs_LogOptions_Parsed() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--log-level=warn", "--log-buffer=64"});
+        assertEquals(ServerLog.Level.WARN, config.getLogLevel());
+        assertEquals(64, config.getLogBufferSize());
+    }
+
+    @Test
+    public void fromArgs_MetricsOptions_Parsed() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--metrics-port=9100", "--admin-token=s3cret"});
+        assertEquals(9100, config.getMetricsPort());
+        assertEquals("s3cret", config.getAdminToken());
+    }
+
+    @Test
+    public void fromArgs_NoMetricsOptions_EndpointAndAdminDisabled() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{});
+        assertEquals(-1, config.getMetricsPort());
+        assertNull(config.getAdminToken());
+    }
+
+    @Test
+    public void fromArgs_FanOutOptions_Parsed() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--fanout-threshold=0", "--fanout-threads=3"});
+        assertEquals(0, config.getFanOutThreshold());
+        assertEquals(3, config.getFanOutThreads());
+    }
+
+    @Test
+    public void fromArgs_InvalidFanOutOptions_Ignored() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--fanout-threshold=-1", "--fanout-threads=0"});
+        assertEquals(1024, config.getFanOutThreshold());
+        assertEquals(Math.max(1, Runtime.getRuntime().availableProcessors()), config.getFanOutThreads());
+    }
+
+    @Test
+    public void fromArgs_CompressionLevel_ParsedAndRangeChecked() {
+        assertEquals(6, ServerConfig.fromArgs(new String[]{}).getCompressionLevel());
+        assertEquals(0, ServerConfig.fromArgs(new String[]{"--compression-level=0"}).getCompressionLevel());
+        assertEquals(6, ServerConfig.fromArgs(new String[]{"--compression-level=10"}).getCompressionLevel());
+    }
+
+    @Test
+    public void fromArgs_MessageLogOptions_Parsed() {
+        assertNull(ServerConfig.fromArgs(new String[]{}).getMessageLogDir());
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--message-log-dir=/var/chat",
+                "--message-log-segment-size=1048576", "--message-log-queue=100"});
+        assertEquals("/var/chat", config.getMessageLogDir());
+        assertEquals(1048576, config.getMessageLogSegmentSize());
+        assertEquals(100, config.getMessageLogQueue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMessageLogSegmentSize_TooSmall_Throws() {
+        new ServerConfig().setMessageLogSegmentSize(1024);
+    }
+
+    @Test
+    public void fromArgs_HistoryOptions_Parsed() {
+        ServerConfig defaults = new ServerConfig();
+        assertEquals(256, defaults.getHistorySize());
+        assertEquals(0, defaults.getHistoryReplay());
+        assertEquals(1000, defaults.getHistoryMax());
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--history-size=0", "--history-replay=5",
+                "--history-max=100"});
+        assertEquals(0, config.getHistorySize());
+        assertEquals(5, config.getHistoryReplay());
+        assertEquals(100, config.getHistoryMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setHistoryMax_Zero_Throws() {
+        new ServerConfig().setHistoryMax(0);
+    }
+
+    @Test
+    public void fromArgs_MailboxOptions_Parsed() {
+        assertEquals(100, new ServerConfig().getMailboxSize());
+        assertEquals(10000, new ServerConfig().getMailboxUsers());
+        assertNull(new ServerConfig().getMailboxDir());
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--mailbox-size=10", "--mailbox-users=50",
+                "--mailbox-dir=/var/chat/mail"});
+        assertEquals(10, config.getMailboxSize());
+        assertEquals(50, config.getMailboxUsers());
+        assertEquals("/var/chat/mail", config.getMailboxDir());
+    }
+
+    @Test
+    public void fromArgs_ClusterOptions_Parsed() {
+        ServerConfig defaults = new ServerConfig();
+        assertEquals(9000, defaults.getPort());
+        assertNull(defaults.getClusterDir());
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--port=9001", "--cluster-dir=/srv/chat/cluster",
+                "--cluster-port=9101", "--cluster-host=chat1.lan"});
+        assertEquals(9001, config.getPort());
+        assertEquals("/srv/chat/cluster", config.getClusterDir());
+        assertEquals(9101, config.getClusterPort());
+        assertEquals("chat1.lan", config.getClusterHost());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setClusterHost_WithUnderscore_Throws() {
+        new ServerConfig().setClusterHost("chat_1");
+    }
+
+    @Test
+    public void fromArgs_ShutdownTimeout_Parsed() {
+        assertEquals(5000, new ServerConfig().getShutdownTimeoutMillis());
+        assertEquals(250, ServerConfig.fromArgs(new String[]{"--shutdown-timeout-ms=250"}).getShutdownTimeoutMillis());
+    }
+
+    @Test
+    public void fromArgs_IdleAndPongTimeouts_Parsed() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--idle-timeout-ms=0", "--pong-timeout-ms=500"});
+        assertEquals(0, config.getIdleTimeoutMillis());
+        assertEquals(500, config.getPongTimeoutMillis());
+        assertEquals(60000, new ServerConfig().getIdleTimeoutMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setPongTimeoutMillis_Zero_Rejected() {
+        new ServerConfig().setPongTimeoutMillis(0);
+    }
+
+    @Test
+    public void fromArgs_SweepInterval_Parsed() {
+        assertEquals(30000, new ServerConfig().getSweepIntervalMillis());
+        assertEquals(0, ServerConfig.fromArgs(new String[]{"--sweep-interval-ms=0"}).getSweepIntervalMillis());
+    }
+
+    @Test
+    public void fromArgs_RateLimits_Parsed() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--hail-rate=5", "--hail-burst=10",
+                "--mesg-rate=20", "--list-rate=1", "--list-burst=2", "--broadcast-rate=1000"});
+        assertEquals(5, config.getHailRate());
+        assertEquals(10, config.getHailBurst());
+        assertEquals(20, config.getMesgRate());
+        assertEquals(0, config.getMesgBurst());
+        assertEquals(1, config.getListRate());
+        assertEquals(2, config.getListBurst());
+        assertEquals(1000, config.getBroadcastRate());
+        assertEquals(0, new ServerConfig().getHailRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setHailRate_Negative_Rejected() {
+        new ServerConfig().setHailRate(-1);
+    }
+}
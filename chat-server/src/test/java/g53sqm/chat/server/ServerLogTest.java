@@ -0,0 +1,95 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerLogTest {
+
+    @Test
+    public void info_BelowConfiguredLevel_NotWritten() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ServerLog log = new ServerLog(ServerLog.Level.WARN, 16, new PrintStream(output));
+        log.info("hidden");
+        log.warn("shown");
+        log.close();
+        String written = output.toString();
+        assertFalse(written.contains("hidden"));
+        assertTrue(written.contains("WARN shown"));
+    }
+
+    @Test
+    public void info_WithDetail_DetailAppended() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ServerLog log = new ServerLog(ServerLog.Level.INFO, 16, new PrintStream(output));
+        log.info("IDEN ", "alice");
+        log.close();
+        assertTrue(output.toString().contains("INFO IDEN alice"));
+    }
+
+    @Test
+    public void log_ManyThreads_EveryEntryWrittenInOrderPerThread() throws InterruptedException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ServerLog log = new ServerLog(ServerLog.Level.INFO, 1 << 16, new PrintStream(output));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        log.info("t" + id + " ", i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.close();
+
+        int[] next = new int[threads.length];
+        for (String line : output.toString().split(System.lineSeparator())) {
+            String entry = line.substring(line.indexOf("INFO t") + 6);
+            int id = Integer.parseInt(entry.substring(0, entry.indexOf(' ')));
+            assertEquals(next[id]++, Integer.parseInt(entry.substring(entry.indexOf(' ') + 1)));
+        }
+        for (int count : next) {
+            assertEquals(1000, count);
+        }
+        assertEquals(0, log.getDropped());
+    }
+
+    @Test
+    public void log_WriterStalled_EntriesDroppedInsteadOfBlocking() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        ServerLog log = new ServerLog(ServerLog.Level.INFO, 4, new PrintStream(stalled));
+        log.info("first");
+        Thread.sleep(200);
+        for (int i = 0; i < 10; i++) {
+            log.info("more");
+        }
+        assertEquals(6, log.getDropped());
+        release.countDown();
+        log.close();
+    }
+}
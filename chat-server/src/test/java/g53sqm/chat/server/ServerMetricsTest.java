@@ -0,0 +1,154 @@
+package g53sqm.chat.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServerMetricsTest {
+
+    private static final String TOKEN = "secret";
+
+    private Server server;
+    private int serverPort;
+
+    @Before
+    public void setupServer() {
+        server = new Server(0, new ServerConfig().setAdminToken(TOKEN).setMetricsPort(0));
+        serverPort = server.getServerPort();
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        sleep(500);
+    }
+
+    @After
+    public void cleanUp() {
+        server.shutdown(0);
+    }
+
+    @Test
+    public void statAdmin_CorrectToken_ReturnsMetricsSnapshot() {
+        Socket socket = createNewConnection(serverPort);
+        socketSendMessage(socket, "IDEN user1");
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "STAT ADMIN " + TOKEN);
+        String reply = waitAndRetrieveNextMessage(socket);
+        assertTrue(reply, reply.startsWith("OK STAT connections.accepted=1 connections.active=1 users.registered=1 "));
+        assertTrue(reply, reply.contains(" command.iden.count=1 "));
+    }
+
+    @Test
+    public void statAdmin_WrongToken_ReturnsErrorMsg() {
+        Socket socket = createNewConnection(serverPort);
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "STAT ADMIN guess");
+        assertEquals("BAD STAT invalid admin token", waitAndRetrieveNextMessage(socket));
+    }
+
+    @Test
+    public void statAdmin_NoTokenConfigured_ReturnsErrorMsg() {
+        Server plain = new Server(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                plain.listen();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Socket socket = createNewConnection(plain.getServerPort());
+        waitAndRetrieveNextMessage(socket);
+
+        socketSendMessage(socket, "STAT ADMIN " + TOKEN);
+        assertEquals("BAD STAT admin statistics are disabled", waitAndRetrieveNextMessage(socket));
+        plain.shutdown(0);
+    }
+
+    @Test
+    public void metricsEndpoint_Get_ReturnsOneMetricPerLine() throws IOException {
+        Socket socket = createNewConnection(serverPort);
+        socketSendMessage(socket, "HAIL nobody is listening");
+
+        URL url = new URL("http://localhost:" + server.getMetricsPort() + "/metrics");
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        assertEquals(200, http.getResponseCode());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(http.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("connections.accepted=1", reader.readLine());
+        assertEquals("connections.active=1", reader.readLine());
+        String line;
+        boolean sawHail = false;
+        while ((line = reader.readLine()) != null) {
+            sawHail |= line.equals("command.hail.count=1");
+        }
+        assertTrue(sawHail);
+    }
+
+    @Test
+    public void jmx_ServerStarted_MetricsRegistered() throws Exception {
+        createNewConnection(serverPort);
+        ObjectName name = new ObjectName("g53sqm.chat.server:type=ServerMetrics,port=" + serverPort);
+        assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "AcceptedConnections"));
+    }
+
+    private Socket createNewConnection(int port) {
+        Socket socket = null;
+        try {
+            socket = new Socket("localhost", port);
+        } catch (IOException e) {
+            Assert.fail("Fail to create mock user.");
+        }
+        sleep(500);
+        return socket;
+    }
+
+    private void socketSendMessage(Socket socket, String msg) {
+        try {
+            PrintWriter userOut = new PrintWriter(socket.getOutputStream(), true);
+            userOut.println(msg);
+            sleep(500);
+        } catch (IOException e) {
+            Assert.fail("Fail to send message");
+        }
+    }
+
+    private String waitAndRetrieveNextMessage(Socket socket) {
+        String line = "";
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            line = reader.readLine();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return line;
+    }
+
+    private void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -6,16 +6,26 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ServerTest {
@@ -86,6 +96,29 @@ public class ServerTest {
         assertFalse(server.isListening());
     }
 
+    @Test
+    public void listen_VirtualThreadMode_UsersCanChat() {
+        Server server = new Server(0, new ServerConfig().setThreadMode(ServerConfig.ThreadMode.VIRTUAL));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        Socket user1 = createMockUsers("user1", server.getServerPort());
+        Socket user2 = createMockUsers("user2", server.getServerPort());
+        userWaitForMessage(user1); // Clean first line of buffer, the login message
+        userWaitForMessage(user2);
+
+        userSendMessage(user1, "HAIL Hello!");
+        assertEquals("Broadcast from user1: Hello!", userWaitForMessage(user2));
+        assertArrayEquals(new String[]{"user1", "user2"}, server.getUserList().toArray());
+        server.stopListening();
+    }
+
     @Test
     public void getUserList_NoUsersConnected_ReturnsEmptyList() {
         ArrayList<String> actual = server.getUserList();
@@ -124,6 +157,26 @@ public class ServerTest {
         assertArrayEquals(new String[]{}, actual.toArray());
     }
 
+    @Test
+    public void getUserListFrame_NoMembershipChange_ReturnsSameFrame() {
+        Socket user1 = createMockUsers("user1", serverPort);
+        Frame first = server.getUserListFrame();
+        assertEquals("OK LIST user1, ", first.getText());
+        assertSame(first, server.getUserListFrame());
+    }
+
+    @Test
+    public void getUserListFrame_UserJoinsAndQuits_FrameRebuilt() {
+        Socket user1 = createMockUsers("user1", serverPort);
+        Frame before = server.getUserListFrame();
+        Socket user2 = createMockUsers("user2", serverPort);
+        assertEquals("OK LIST user1, user2, ", server.getUserListFrame().getText());
+        assertNotSame(before, server.getUserListFrame());
+
+        userSendMessage(user1, "QUIT");
+        assertEquals("OK LIST user2, ", server.getUserListFrame().getText());
+    }
+
     @Test
     public void getNumberOfUsers_NoUsersConnected_ReturnsZero() {
         int numberOfUsers = server.getNumberOfUsers();
@@ -205,6 +258,62 @@ public class ServerTest {
         assertFalse(gotUser2);
     }
 
+    @Test
+    public void doesUserExists_SameNameClaimedConcurrently_OnlyOneClientRegistered() throws InterruptedException {
+        int clients = 20;
+        Socket[] sockets = new Socket[clients];
+        for (int i = 0; i < clients; i++) {
+            try {
+                sockets[i] = new Socket("localhost", serverPort);
+            } catch (IOException e) {
+                Assert.fail("Fail to create mock user.");
+            }
+        }
+        Thread.sleep(1000);
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger accepted = new AtomicInteger();
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            Socket socket = sockets[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        reader.readLine(); // Welcome message
+                        start.await();
+                        new PrintWriter(socket.getOutputStream(), true).println("IDEN sameName");
+                        if (reader.readLine().startsWith("OK IDEN")) {
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(1, accepted.get());
+        assertArrayEquals(new String[]{"sameName"}, server.getUserList().toArray());
+    }
+
+    @Test
+    public void doesUserExist_ConnectionRemovedWhileRegistering_NameFreed() {
+        Connection c = new Connection(null, server);
+        server.addConnection(c);
+        c.stopRunning();
+        server.removeConnection(c);
+
+        c.handleLine("IDEN user1");
+        assertFalse(server.doesUserExist("user1"));
+    }
+
     @Test
     public void broadcastMessage_SingleUserSingleMessage_UserReceivesMessage() {
         Socket user = createMockUsers("user1", serverPort);
@@ -233,6 +342,20 @@ public class ServerTest {
         assertEquals(msg2, actual2);
     }
 
+    @Test
+    public void broadcastMessage_ConsecutiveMessages_NoBlankLineBetweenThem() throws IOException {
+        Socket user = createMockUsers("user1", serverPort);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(user.getInputStream()));
+        reader.readLine(); // Welcome message
+        reader.readLine(); // Login message
+
+        server.broadcastMessage("first");
+        server.broadcastMessage("second");
+
+        assertEquals("first", reader.readLine());
+        assertEquals("second", reader.readLine());
+    }
+
     @Test
     public void broadcastMessage_MultipleUsers_UsersReceiveMessage() {
         Socket user1 = createMockUsers("user1", serverPort);
@@ -250,6 +373,110 @@ public class ServerTest {
         assertEquals(msg, actualUser2);
     }
 
+    @Test
+    public void broadcastMessage_ShardedFanOut_UsersReceiveMessagesInOrder() throws IOException {
+        Server server = new Server(0, new ServerConfig().setFanOutThreshold(1).setFanOutThreads(2));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        BufferedReader reader1 = new BufferedReader(new InputStreamReader(
+                createMockUsers("user1", server.getServerPort()).getInputStream()));
+        BufferedReader reader2 = new BufferedReader(new InputStreamReader(
+                createMockUsers("user2", server.getServerPort()).getInputStream()));
+        reader1.readLine(); // Welcome message
+        reader1.readLine(); // Login message
+        reader2.readLine();
+        reader2.readLine();
+
+        server.broadcastMessage("first");
+        server.broadcastMessage("second");
+
+        assertEquals("first", reader1.readLine());
+        assertEquals("second", reader1.readLine());
+        assertEquals("first", reader2.readLine());
+        assertEquals("second", reader2.readLine());
+        server.stopListening();
+    }
+
+    @Test
+    public void broadcastMessage_UserNeverReads_SlowConsumerDisconnectedOthersStillServed() throws InterruptedException {
+        Server server = new Server(0, new ServerConfig().setOutboundQueueCapacity(4)
+                .setSlowConsumerPolicy(ServerConfig.SlowConsumerPolicy.DISCONNECT));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Socket slowUser = createMockUsers("slow", server.getServerPort());
+        Socket user = createMockUsers("user", server.getServerPort());
+        userWaitForMessage(user); // Clean first line of buffer, the login message
+
+        StringBuilder bigMessage = new StringBuilder();
+        for (int i = 0; i < 64 * 1024; i++) {
+            bigMessage.append('x');
+        }
+        for (int i = 0; i < 100 && server.doesUserExist("slow"); i++) {
+            server.broadcastMessage(bigMessage.toString());
+            userWaitForMessage(user);
+            Thread.sleep(10);
+        }
+        Thread.sleep(1000);
+
+        assertFalse(server.doesUserExist("slow"));
+        assertTrue(server.doesUserExist("user"));
+        server.broadcastMessage("still here");
+        assertEquals("still here", userWaitForMessage(user));
+        server.stopListening();
+    }
+
+    @Test
+    public void broadcastMessage_MessageLogEnabled_BroadcastsAndPrivateMessagesStored() throws IOException {
+        File directory = Files.createTempDirectory("message-log").toFile();
+        final Server server = new Server(0, new ServerConfig().setMessageLogDir(directory.getPath()));
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.listen();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Socket user = createMockUsers("user", server.getServerPort());
+        userWaitForMessage(user);
+
+        server.broadcastMessage("Broadcast from user: stored");
+        server.sendPrivateMessage("PM from user:to myself", "user");
+        server.sendPrivateMessage("PM from user:nobody gets this", "nobody");
+        MessageLog messageLog = server.getMessageLog();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messageLog.getEndOffset() < 2 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        List<MessageLog.Record> records = messageLog.read(0, 10);
+        assertEquals(2, records.size());
+        assertEquals("Broadcast from user: stored", records.get(0).getText());
+        assertEquals(MessageLog.Kind.PRIVATE, records.get(1).getKind());
+        assertEquals("user", records.get(1).getRecipient());
+        server.stopListening();
+        messageLog.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
     @Test
     public void sendPrivateMessage_SingleUserCorrectUsername_UserReceivesMessage() {
         Socket user = createMockUsers("user", serverPort);
@@ -262,6 +489,19 @@ public class ServerTest {
         assertEquals(msg, actual);
     }
 
+    @Test
+    public void sendPrivateMessage_UserOffline_FalseAndMessageStored() throws InterruptedException {
+        Socket user = createMockUsers("user", serverPort);
+        userSendMessage(user, "QUIT");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.doesUserExist("user") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(server.sendPrivateMessage("PM from user1:later", "user"));
+        assertEquals(1, server.getMailboxes().getWaiting());
+    }
+
     @Test
     public void sendPrivateMessage_SingleUserIncorrectUsername_UserReceivesMessage() {
         Socket user = createMockUsers("user", serverPort);
@@ -318,6 +558,103 @@ public class ServerTest {
         assertEquals(msg, actualUser2);
     }
 
+    @Test
+    public void broadcastMessage_ClientsJoinAndLeaveDuringHail_NoErrorsAndRegistryConsistent() throws InterruptedException {
+        // The hailer floods faster than it can be sent its own broadcasts, drop them rather than the hailer
+        server.shutdown(0);
+        server = new Server(0, new ServerConfig().setSlowConsumerPolicy(ServerConfig.SlowConsumerPolicy.DROP_OLDEST));
+        serverPort = server.getServerPort();
+        final Server flooded = server;
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flooded.listen();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+        Socket hailer = createMockUsers("hailer", serverPort);
+        AtomicInteger errors = new AtomicInteger();
+        Thread.UncaughtExceptionHandler previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                errors.incrementAndGet();
+                e.printStackTrace();
+            }
+        });
+
+        AtomicBoolean churning = new AtomicBoolean(true);
+        Thread hailThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PrintWriter out = new PrintWriter(hailer.getOutputStream(), true);
+                    while (churning.get()) {
+                        out.println("HAIL load");
+                        server.getUserList();
+                        server.doesUserExist("nobody");
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            }
+        });
+        Thread drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = hailer.getInputStream();
+                    byte[] buffer = new byte[8192];
+                    while (in.read(buffer) >= 0) {
+                        // Keep reading so that the broadcasts never fill the socket
+                    }
+                } catch (IOException e) {
+                    // Socket closed at the end of the test
+                }
+            }
+        });
+        drainThread.setDaemon(true);
+        drainThread.start();
+        hailThread.start();
+
+        int churnThreads = 4;
+        int joinsPerThread = 500;
+        Thread[] threads = new Thread[churnThreads];
+        for (int t = 0; t < churnThreads; t++) {
+            int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < joinsPerThread; i++) {
+                        try (Socket socket = new Socket("localhost", serverPort)) {
+                            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                            out.println("IDEN churn" + id + "_" + i);
+                            if (i % 2 == 0) {
+                                out.println("QUIT");
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        churning.set(false);
+        hailThread.join();
+        Thread.sleep(2000);
+        server.removeDeadUsers();
+        Thread.setDefaultUncaughtExceptionHandler(previousHandler);
+
+        assertEquals(0, errors.get());
+        assertEquals(1, server.getNumberOfUsers());
+        assertArrayEquals(new String[]{"hailer"}, server.getUserList().toArray());
+    }
+
     @Test
     public void removeDeadUser_OnlineUser_UserNotRemoved() {
         Socket user = createMockUsers("user", serverPort);
@@ -353,9 +690,101 @@ public class ServerTest {
         assertEquals("user2", server.getUserList().get(0));
     }
 
+    @Test
+    public void quit_OneOfMultipleUsers_RemovedWithoutSweep() {
+        Socket user1 = createMockUsers("user1", serverPort);
+        Socket user2 = createMockUsers("user2", serverPort);
+
+        userSendMessage(user1, "QUIT");
+        assertEquals(1, server.getNumberOfUsers());
+        assertEquals("user2", server.getUserList().get(0));
+    }
+
+    @Test
+    public void removeDeadUsers_ConnectionStoppedWithoutRemovingItself_SweptPeriodically() throws InterruptedException {
+        server.shutdown(0);
+        server = new Server(0, new ServerConfig().setSweepIntervalMillis(50));
+        Connection c = new Connection(null, server);
+        server.addConnection(c);
+        c.stopRunning();
+        assertEquals(1, server.getNumberOfUsers());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getNumberOfUsers() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.getNumberOfUsers());
+        server.shutdown(0);
+    }
+
+    @Test
+    public void shutdown_ConnectedClients_NoticeSentAndSocketsClosed() throws IOException {
+        Socket user1 = createMockUsers("user1", serverPort);
+        Socket user2 = new Socket("localhost", serverPort);
+        BufferedReader reader1 = new BufferedReader(new InputStreamReader(user1.getInputStream()));
+        BufferedReader reader2 = new BufferedReader(new InputStreamReader(user2.getInputStream()));
+        reader1.readLine(); // The welcome message
+        reader1.readLine(); // The login message
+        reader2.readLine();
+
+        ShutdownReport report = server.shutdown(2000);
+        assertEquals("OK QUIT the server is shutting down, goodbye", reader1.readLine());
+        assertEquals(null, reader1.readLine());
+        assertEquals("OK QUIT the server is shutting down, goodbye", reader2.readLine());
+        assertEquals(null, reader2.readLine());
+        assertEquals(2, report.getConnections());
+        assertEquals(2, report.getDrained());
+        assertEquals(0, report.getPendingMessages());
+        assertFalse(server.isListening());
+        assertEquals(0, server.getNumberOfUsers());
+        try {
+            new Socket("localhost", serverPort).close();
+            Assert.fail("still accepting connections");
+        } catch (IOException e) {
+            // Expected, nobody listens any more
+        }
+    }
+
+    @Test
+    public void shutdown_CalledTwice_FirstReportReturnedAndThreadsStopped() {
+        ShutdownReport report = server.shutdown(0);
+        assertSame(report, server.shutdown(0));
+        assertTrue(((ExecutorService) server.getWriterExecutor()).isShutdown());
+    }
+
+    @Test
+    public void shutdown_ClientNotReading_ForcedAtDeadlineAndPendingCounted() throws IOException {
+        server.shutdown(0);
+        server = new Server(0, new ServerConfig().setOutboundQueueCapacity(4096));
+        final Server stuck = server;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stuck.listen();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Socket user = createMockUsers("user1", server.getServerPort());
+
+        StringBuilder big = new StringBuilder("Broadcast from server: ");
+        while (big.length() < 16 * 1024) {
+            big.append("too much to read ");
+        }
+        for (int i = 0; i < 2000; i++) {
+            server.broadcastMessage(big.toString());
+        }
+        ShutdownReport report = server.shutdown(300);
+        assertEquals(1, report.getConnections());
+        assertEquals(1, report.getForced());
+        assertTrue(report.getPendingMessages() > 0);
+        assertTrue(report.getElapsedMillis() >= 300);
+        user.close();
+    }
+
     @After
     public void stopServer() {
-        server.stopListening();
+        server.shutdown(0);
     }
 
     /**
@@ -0,0 +1,38 @@
+package g53sqm.chat.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingHistogramTest {
+
+    @Test
+    public void percentileNanos_NothingRecorded_ReturnsZero() {
+        TimingHistogram histogram = new TimingHistogram();
+        assertEquals(0, histogram.percentileNanos(0.99));
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void percentileNanos_UniformValues_WithinQuarterOfExact() {
+        TimingHistogram histogram = new TimingHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.percentileNanos(0.5);
+        long p99 = histogram.percentileNanos(0.99);
+        assertTrue("p50 was " + p50, p50 >= 500000 && p50 <= 625000);
+        assertTrue("p99 was " + p99, p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getMaxNanos());
+        assertEquals(1000, histogram.getCount());
+    }
+
+    @Test
+    public void record_NegativeDuration_CountedAsZero() {
+        TimingHistogram histogram = new TimingHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.percentileNanos(1.0));
+        assertEquals(1, histogram.getCount());
+    }
+}